@@ -14,6 +14,14 @@ android {
         versionName = "1.0"
 
         testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+
+        // where saved captures are uploaded, -PexportEndpoint=http://host:port/uploads; unset turns exporting off
+        val exportEndpoint = (project.findProperty("exportEndpoint") as String?) ?: ""
+        buildConfigField("String", "EXPORT_ENDPOINT", "\"$exportEndpoint\"")
+    }
+
+    buildFeatures {
+        buildConfig = true
     }
 
     buildTypes {
@@ -33,6 +41,7 @@ android {
 
 dependencies {
 
+    implementation(project(":core"))
     implementation(libs.appcompat)
     implementation(libs.material)
     implementation(libs.activity)
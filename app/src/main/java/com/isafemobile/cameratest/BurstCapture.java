@@ -0,0 +1,138 @@
+package com.isafemobile.cameratest;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rapid capture from the preview stream. Frames are handed to encoder workers through a
+ * {@link FrameHandoffQueue}; each worker compresses NV21 to JPEG into its own reused
+ * buffer, releases the frame back to the camera and queues the JPEG on the
+ * {@link ImageWriteQueue}. Frames arriving while every worker is busy are dropped
+ * instead of stalling the preview.
+ * <p>
+ * Only the path from the camera to the workers is free of allocations. A worker reuses its
+ * output buffer and one {@link YuvImage} per preview buffer, but
+ * {@link YuvImage#compressToJpeg} allocates a working buffer per call and every saved frame
+ * needs a file name.
+ */
+public class BurstCapture implements FrameConsumer {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final int JPEG_QUALITY = 90;
+
+    public interface Callback {
+        void onBurstFinished(int saved, long dropped);
+    }
+
+    private final ImageWriteQueue mImageWriter;
+    private final MetricsRecorder mMetrics;
+    private final Callback mCallback;
+    private final FrameHandoffQueue mQueue;
+    private final Thread[] mWorkers;
+    private final AtomicInteger mSaved = new AtomicInteger();
+    private final AtomicInteger mStorageDropped = new AtomicInteger();
+    private final AtomicInteger mRunningWorkers = new AtomicInteger();
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final String mTimeStamp;
+    private final int mRotation;
+
+    /**
+     * @param rotation clockwise degrees to show the frames upright
+     */
+    public BurstCapture(ImageWriteQueue imageWriter, int workers, int rotation, MetricsRecorder metrics, Callback callback) {
+        mImageWriter = imageWriter;
+        mRotation = rotation;
+        mMetrics = metrics;
+        mCallback = callback;
+        mQueue = new FrameHandoffQueue(workers);
+        mWorkers = new Thread[workers];
+        mTimeStamp = FileNames.timeStamp();
+        for (int i = 0; i < workers; i++) {
+            mWorkers[i] = new Thread(this::encodeFrames, "BurstEncoder" + i);
+        }
+    }
+
+    public void start() {
+        mRunningWorkers.set(mWorkers.length);
+        for (Thread worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops taking frames; queued frames are still encoded and
+     * {@link Callback#onBurstFinished} follows once the workers are done.
+     */
+    public void stop() {
+        mQueue.close();
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        frame.retain();
+        if (!mQueue.offer(frame)) {
+            frame.release();
+            mMetrics.countDroppedFrame();
+        }
+    }
+
+    private void encodeFrames() {
+        // reused for every frame of this worker
+        ExposedByteArrayOutputStream jpeg = new ExposedByteArrayOutputStream(256 * 1024);
+        Rect rect = new Rect();
+        // the frames cycle through the few preview buffers of the pool
+        Map<byte[], YuvImage> images = new IdentityHashMap<>();
+        try {
+            Frame frame;
+            while ((frame = mQueue.take()) != null) {
+                long shotAt = SystemClock.elapsedRealtime();
+                jpeg.reset();
+                rect.set(0, 0, frame.width, frame.height);
+                try {
+                    YuvImage image = images.get(frame.data);
+                    if (image == null) {
+                        image = new YuvImage(frame.data, ImageFormat.NV21, frame.width, frame.height, null);
+                        images.put(frame.data, image);
+                    }
+                    image.compressToJpeg(rect, JPEG_QUALITY, jpeg);
+                } finally {
+                    frame.release();
+                }
+                String fileName = FileNames.image(mTimeStamp, mSequence.getAndIncrement());
+                if (mImageWriter.offer(jpeg.buffer(), jpeg.size(), fileName, shotAt, mRotation)) {
+                    mSaved.incrementAndGet();
+                } else {
+                    // storage is behind, drop rather than pile up encoded frames
+                    mStorageDropped.incrementAndGet();
+                    mMetrics.countDroppedFrame();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mRunningWorkers.decrementAndGet() == 0) {
+            long dropped = mQueue.dropped() + mStorageDropped.get();
+            Log.d(TAG, "burst finished, " + mSaved.get() + " saved, " + dropped + " dropped");
+            mCallback.onBurstFinished(mSaved.get(), dropped);
+        }
+    }
+
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
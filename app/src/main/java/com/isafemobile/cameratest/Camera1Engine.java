@@ -0,0 +1,191 @@
+package com.isafemobile.cameratest;
+
+import android.hardware.Camera;
+import android.media.MediaRecorder;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link CameraEngine} on {@link android.hardware.Camera}. The recorder gets the camera
+ * through {@link Camera#unlock()} and it is locked again once the recorder let go of it; a
+ * still stops the preview and the engine restarts it before reporting the JPEG. The camera is
+ * exposed for the preview frame callbacks, which only this engine has.
+ */
+public class Camera1Engine extends AbstractCameraEngine<SurfaceHolder, MediaRecorder> {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private Camera mCamera;
+    // fetched once per open, getParameters() is slow on some devices
+    private Camera.Parameters mParameters;
+    private SurfaceHolder mSurface;
+    private Size mPreviewSize;
+
+    /**
+     * @return null while closed
+     */
+    public Camera camera() {
+        return mCamera;
+    }
+
+    public Camera.Parameters parameters() {
+        return mParameters;
+    }
+
+    public Size previewSize() {
+        return mPreviewSize;
+    }
+
+    @Override
+    public List<Size> previewSizes() {
+        return CameraCapabilityCache.toSizes(mParameters.getSupportedPreviewSizes());
+    }
+
+    @Override
+    public List<Size> videoSizes() {
+        List<Camera.Size> videoSizes = mParameters.getSupportedVideoSizes();
+        // null if video uses the preview sizes
+        return videoSizes != null ? CameraCapabilityCache.toSizes(videoSizes) : Collections.<Size>emptyList();
+    }
+
+    @Override
+    public boolean supportsVideoSnapshot() {
+        return mParameters.isVideoSnapshotSupported();
+    }
+
+    @Override
+    public boolean keepsPreviewDuringCapture() {
+        return false;
+    }
+
+    @Override
+    protected void onOpen() throws IOException {
+        try {
+            mCamera = Camera.open();
+            mParameters = mCamera.getParameters();
+        } catch (RuntimeException e) {
+            onClose();
+            throw new IOException("Failed to open camera", e);
+        }
+    }
+
+    @Override
+    protected void onStartPreview(SurfaceHolder surface, SizeSelection sizes, int displayOrientation) throws IOException {
+        try {
+            mCamera.stopPreview();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to stop preview", e);
+        }
+        try {
+            mCamera.setDisplayOrientation(displayOrientation);
+            mParameters.setPreviewSize(sizes.preview.width, sizes.preview.height);
+            mCamera.setParameters(mParameters);
+            mCamera.setPreviewDisplay(surface);
+            mCamera.startPreview();
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to start preview", e);
+        }
+        mSurface = surface;
+        mPreviewSize = sizes.preview;
+        previewStreamStarted();
+    }
+
+    @Override
+    protected void onStopPreview() {
+        try {
+            mCamera.stopPreview();
+            mCamera.setPreviewDisplay(null);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to detach preview", e);
+        }
+        mSurface = null;
+    }
+
+    @Override
+    protected void onRebindPreview(SurfaceHolder surface) throws IOException {
+        // the recorder locked the camera for us again when it started
+        try {
+            mCamera.setPreviewDisplay(surface);
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to rebind preview", e);
+        }
+        mSurface = surface;
+    }
+
+    @Override
+    protected void onAttachRecorder(MediaRecorder recorder) throws IOException {
+        try {
+            mCamera.unlock();
+            recorder.setCamera(mCamera);
+            recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+        } catch (RuntimeException e) {
+            lock();
+            throw new IOException("Failed to hand the camera to the recorder", e);
+        }
+    }
+
+    @Override
+    protected void onBindRecorderSurface(MediaRecorder recorder) {
+        recorder.setPreviewDisplay(mSurface.getSurface());
+    }
+
+    @Override
+    protected void onStartRecorderStream() {
+        // the recorder pulls the frames from the unlocked camera
+    }
+
+    @Override
+    protected void onStopRecorderStream() {
+        // stopping the recorder stops the frames
+    }
+
+    @Override
+    protected void onDetachRecorder() {
+        lock();
+    }
+
+    @Override
+    protected void onTakePicture() throws IOException {
+        boolean restartPreview = state() == State.PREVIEW;
+        try {
+            // called back on the session thread, whose looper opened the camera
+            mCamera.takePicture(null, null, (data, camera) -> {
+                if (restartPreview && camera == mCamera) {
+                    // Restart the preview right away, saving happens on the writer thread
+                    try {
+                        camera.startPreview();
+                        previewStreamStarted();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                stillCaptured(data);
+            });
+        } catch (RuntimeException e) {
+            throw new IOException("takePicture failed", e);
+        }
+    }
+
+    @Override
+    protected void onClose() {
+        if (mCamera != null) {
+            mCamera.release();
+            mCamera = null;
+        }
+        mParameters = null;
+        mSurface = null;
+        mPreviewSize = null;
+    }
+
+    private void lock() {
+        try {
+            mCamera.lock();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to lock camera", e);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.isafemobile.cameratest;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CameraEngine} on Camera2 with a single {@link CameraCaptureSession} holding the
+ * preview, a JPEG {@link ImageReader} and a persistent recorder input surface. Starting a
+ * recording or a still only changes the requests on the running session, the preview never
+ * stops and the camera is never handed over.
+ * <p>
+ * The camera API is asynchronous; the engine blocks the calling session thread until the
+ * callbacks on its own thread arrived, like Camera1 does.
+ */
+public class Camera2Engine extends AbstractCameraEngine<SurfaceHolder, MediaRecorder> {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final long CALLBACK_TIMEOUT_MS = 5000;
+
+    private final Context mContext;
+    private final CameraManager mCameraManager;
+    private final String mCameraId;
+    private final CameraCharacteristics mCharacteristics;
+    private final StreamConfigurationMap mConfigurations;
+
+    private HandlerThread mThread;
+    private Handler mCallbackHandler;
+    private CameraDevice mDevice;
+    private CameraCaptureSession mSession;
+    private SurfaceHolder mSurface;
+    private ImageReader mStillReader;
+    // survives recorders, so the session does not change when a recording starts
+    private Surface mRecorderSurface;
+    private Size mRecorderSurfaceSize;
+    private Size mPreviewSize;
+    private int mJpegOrientation;
+
+    /**
+     * @throws IOException if there is no back facing camera
+     */
+    public Camera2Engine(Context context) throws IOException {
+        mContext = context.getApplicationContext();
+        mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String cameraId = null;
+            CameraCharacteristics characteristics = null;
+            for (String id : mCameraManager.getCameraIdList()) {
+                CameraCharacteristics candidate = mCameraManager.getCameraCharacteristics(id);
+                if (candidate.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_BACK) {
+                    cameraId = id;
+                    characteristics = candidate;
+                    break;
+                }
+            }
+            if (cameraId == null) {
+                throw new IOException("No back facing camera");
+            }
+            mCameraId = cameraId;
+            mCharacteristics = characteristics;
+            mConfigurations = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        } catch (CameraAccessException e) {
+            throw new IOException("Failed to query cameras", e);
+        }
+    }
+
+    /**
+     * @return the INFO_SUPPORTED_HARDWARE_LEVEL of the back camera, or LEGACY if it can't be read
+     */
+    public static int hardwareLevel(Context context) {
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String id : cameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(id);
+                if (characteristics.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_BACK) {
+                    return characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query camera characteristics", e);
+        }
+        return CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+    }
+
+    @Override
+    public List<Size> previewSizes() {
+        return toSizes(mConfigurations.getOutputSizes(SurfaceHolder.class));
+    }
+
+    @Override
+    public List<Size> videoSizes() {
+        return toSizes(mConfigurations.getOutputSizes(MediaRecorder.class));
+    }
+
+    @Override
+    public boolean supportsVideoSnapshot() {
+        // guaranteed for the FULL and LEVEL_3 devices this engine is used on
+        return true;
+    }
+
+    @Override
+    public boolean keepsPreviewDuringCapture() {
+        return true;
+    }
+
+    @Override
+    protected void onOpen() throws IOException {
+        mThread = new HandlerThread("Camera2");
+        mThread.start();
+        mCallbackHandler = new Handler(mThread.getLooper());
+        CountDownLatch opened = new CountDownLatch(1);
+        CameraDevice[] device = new CameraDevice[1];
+        try {
+            mCameraManager.openCamera(mCameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    device[0] = camera;
+                    opened.countDown();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    Log.w(TAG, "camera disconnected");
+                    camera.close();
+                    opened.countDown();
+                }
+
+                @Override
+                public void onError(CameraDevice camera, int error) {
+                    Log.e(TAG, "camera error " + error);
+                    camera.close();
+                    opened.countDown();
+                }
+            }, mCallbackHandler);
+            await(opened, "open");
+        } catch (CameraAccessException | SecurityException e) {
+            onClose();
+            throw new IOException("Failed to open camera", e);
+        } catch (IOException e) {
+            onClose();
+            throw e;
+        }
+        if (device[0] == null) {
+            onClose();
+            throw new IOException("Failed to open camera");
+        }
+        mDevice = device[0];
+    }
+
+    @Override
+    protected void onStartPreview(SurfaceHolder surface, SizeSelection sizes, int displayOrientation) throws IOException {
+        closeSession();
+        mJpegOrientation = displayOrientation;
+        mPreviewSize = sizes.preview;
+        if (!sizes.video.equals(mRecorderSurfaceSize)) {
+            releaseRecorderSurface();
+            mRecorderSurface = createRecorderSurface(sizes.video);
+            mRecorderSurfaceSize = sizes.video;
+        }
+        if (mStillReader == null) {
+            android.util.Size jpegSize = largest(mConfigurations.getOutputSizes(ImageFormat.JPEG));
+            mStillReader = ImageReader.newInstance(jpegSize.getWidth(), jpegSize.getHeight(), ImageFormat.JPEG, 2);
+            mStillReader.setOnImageAvailableListener(this::onStillAvailable, mCallbackHandler);
+        }
+        try {
+            createSession(surface);
+            setRepeating(CameraDevice.TEMPLATE_PREVIEW, false);
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            closeSession();
+            throw new IOException("Failed to start preview", e);
+        }
+        previewStreamStarted();
+    }
+
+    /**
+     * The surfaces of a session are fixed, a new preview surface needs a new session; the
+     * recorder keeps its persistent surface and only misses the frames in between.
+     */
+    @Override
+    protected void onRebindPreview(SurfaceHolder surface) throws IOException {
+        closeSession();
+        try {
+            createSession(surface);
+            setRepeating(CameraDevice.TEMPLATE_RECORD, true);
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            closeSession();
+            throw new IOException("Failed to rebind preview", e);
+        }
+        previewStreamStarted();
+    }
+
+    @Override
+    protected void onStopPreview() {
+        closeSession();
+    }
+
+    @Override
+    protected void onAttachRecorder(MediaRecorder recorder) {
+        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+    }
+
+    @Override
+    protected void onBindRecorderSurface(MediaRecorder recorder) {
+        recorder.setInputSurface(mRecorderSurface);
+    }
+
+    @Override
+    protected void onStartRecorderStream() throws IOException {
+        try {
+            setRepeating(CameraDevice.TEMPLATE_RECORD, true);
+        } catch (CameraAccessException | IllegalStateException e) {
+            throw new IOException("Failed to stream to the recorder", e);
+        }
+    }
+
+    @Override
+    protected void onStopRecorderStream() {
+        try {
+            setRepeating(CameraDevice.TEMPLATE_PREVIEW, false);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Failed to stop streaming to the recorder", e);
+        }
+    }
+
+    @Override
+    protected void onDetachRecorder() {
+        // the recorder surface stays in the session for the next recording
+    }
+
+    @Override
+    protected void onTakePicture() throws IOException {
+        try {
+            CaptureRequest.Builder builder = mDevice.createCaptureRequest(state() == State.RECORDING
+                    ? CameraDevice.TEMPLATE_VIDEO_SNAPSHOT : CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(mSurface.getSurface());
+            if (state() == State.RECORDING) {
+                builder.addTarget(mRecorderSurface);
+            }
+            builder.addTarget(mStillReader.getSurface());
+            builder.set(CaptureRequest.JPEG_ORIENTATION, mJpegOrientation);
+            mSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+                    Log.e(TAG, "still capture failed, reason " + failure.getReason());
+                    stillCaptured(null);
+                }
+            }, mCallbackHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            throw new IOException("Failed to capture still", e);
+        }
+    }
+
+    @Override
+    protected void onClose() {
+        closeSession();
+        if (mDevice != null) {
+            mDevice.close();
+            mDevice = null;
+        }
+        if (mStillReader != null) {
+            mStillReader.close();
+            mStillReader = null;
+        }
+        releaseRecorderSurface();
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+            mCallbackHandler = null;
+        }
+    }
+
+    private void onStillAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) {
+            return;
+        }
+        byte[] jpeg;
+        try {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            jpeg = new byte[buffer.remaining()];
+            buffer.get(jpeg);
+        } finally {
+            image.close();
+        }
+        stillCaptured(jpeg);
+    }
+
+    private void createSession(SurfaceHolder surface) throws IOException, CameraAccessException {
+        // the camera rounds an unset surface size, and it has to be one of the output sizes
+        surface.setFixedSize(mPreviewSize.width, mPreviewSize.height);
+        CountDownLatch configured = new CountDownLatch(1);
+        CameraCaptureSession[] session = new CameraCaptureSession[1];
+        mDevice.createCaptureSession(Arrays.asList(surface.getSurface(), mStillReader.getSurface(), mRecorderSurface),
+                new CameraCaptureSession.StateCallback() {
+                    @Override
+                    public void onConfigured(CameraCaptureSession captureSession) {
+                        session[0] = captureSession;
+                        configured.countDown();
+                    }
+
+                    @Override
+                    public void onConfigureFailed(CameraCaptureSession captureSession) {
+                        configured.countDown();
+                    }
+                }, mCallbackHandler);
+        await(configured, "configure session");
+        if (session[0] == null) {
+            throw new IOException("Failed to configure capture session");
+        }
+        mSession = session[0];
+        mSurface = surface;
+    }
+
+    private void setRepeating(int template, boolean toRecorder) throws CameraAccessException {
+        CaptureRequest.Builder builder = mDevice.createCaptureRequest(template);
+        builder.addTarget(mSurface.getSurface());
+        if (toRecorder) {
+            builder.addTarget(mRecorderSurface);
+        }
+        mSession.setRepeatingRequest(builder.build(), null, mCallbackHandler);
+    }
+
+    /**
+     * A persistent input surface only gets its size from a recorder that was prepared on it,
+     * so a throwaway recorder is prepared once per video size.
+     */
+    private Surface createRecorderSurface(Size videoSize) throws IOException {
+        Surface surface = MediaCodec.createPersistentInputSurface();
+        File scratch = new File(mContext.getCacheDir(), "recorder_surface.mp4");
+        MediaRecorder recorder = new MediaRecorder();
+        try {
+            recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+            recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+            recorder.setOutputFile(scratch);
+            recorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+            recorder.setVideoSize(videoSize.width, videoSize.height);
+            recorder.setInputSurface(surface);
+            recorder.prepare();
+        } catch (IOException | RuntimeException e) {
+            surface.release();
+            throw new IOException("Failed to set up the recorder surface", e);
+        } finally {
+            recorder.release();
+            //noinspection ResultOfMethodCallIgnored
+            scratch.delete();
+        }
+        return surface;
+    }
+
+    private void releaseRecorderSurface() {
+        if (mRecorderSurface != null) {
+            mRecorderSurface.release();
+            mRecorderSurface = null;
+            mRecorderSurfaceSize = null;
+        }
+    }
+
+    private void closeSession() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        mSurface = null;
+    }
+
+    private static void await(CountDownLatch latch, String what) throws IOException {
+        try {
+            if (!latch.await(CALLBACK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for camera " + what);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for camera " + what, e);
+        }
+    }
+
+    private static android.util.Size largest(android.util.Size[] sizes) {
+        android.util.Size largest = sizes[0];
+        for (android.util.Size size : sizes) {
+            if ((long) size.getWidth() * size.getHeight() > (long) largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+        }
+        return largest;
+    }
+
+    private static List<Size> toSizes(android.util.Size[] sizes) {
+        List<Size> result = new ArrayList<>(sizes.length);
+        for (android.util.Size size : sizes) {
+            result.add(new Size(size.getWidth(), size.getHeight()));
+        }
+        return result;
+    }
+}
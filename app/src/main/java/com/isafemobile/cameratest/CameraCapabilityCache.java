@@ -0,0 +1,116 @@
+package com.isafemobile.cameratest;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persists {@link CameraCapabilities} between launches, keyed by {@link Build#FINGERPRINT}
+ * so an OS or camera update invalidates it. Reading it touches the disk, call it off the
+ * main thread.
+ */
+public class CameraCapabilityCache {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final String PREFERENCES = "com.isafemobile.cameratest.capabilities";
+    private static final String PREF_CAPABILITIES = "capabilities";
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+    public CameraCapabilityCache(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the cached capabilities of this build, or null if there are none
+     */
+    public CameraCapabilities load() {
+        return CameraCapabilities.decode(mPreferences.getString(PREF_CAPABILITIES, null), Build.FINGERPRINT);
+    }
+
+    public void save(CameraCapabilities capabilities) {
+        mPreferences.edit().putString(PREF_CAPABILITIES, capabilities.encode()).apply();
+    }
+
+    /**
+     * Queries the characteristics of the back camera and the sizes of the opened camera. The
+     * sizes are only cached from the Camera1 engine, Camera2 lists its own.
+     *
+     * @return null if the characteristics are not available
+     */
+    public CameraCapabilities query(CameraEngine<?, ?> engine) {
+        CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        CameraCharacteristics characteristics = null;
+        try {
+            for (String cameraId : cameraManager.getCameraIdList()) {
+                CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
+                if (cameraCharacteristics.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_FRONT) {
+                    // don't care about front facing camera
+                    continue;
+                }
+                characteristics = cameraCharacteristics;
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to query camera characteristics", e);
+        }
+        if (characteristics == null) {
+            return null;
+        }
+        List<Size> previewSizes = engine.previewSizes();
+        List<Size> videoSizes = engine.videoSizes();
+        return new CameraCapabilities(Build.FINGERPRINT,
+                characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION),
+                characteristics.get(CameraCharacteristics.LENS_FACING),
+                characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL),
+                previewSizes,
+                maxFps(characteristics, previewSizes),
+                // empty if video uses the preview sizes
+                videoSizes.isEmpty() ? previewSizes : videoSizes);
+    }
+
+    /**
+     * Camera1 has no frame rate per size, so it is taken from the minimum frame duration
+     * Camera2 reports for the same size.
+     *
+     * @return 0 for sizes Camera2 does not know
+     */
+    private static int[] maxFps(CameraCharacteristics characteristics, List<Size> sizes) {
+        int[] fps = new int[sizes.size()];
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return fps;
+        }
+        for (int i = 0; i < fps.length; i++) {
+            Size size = sizes.get(i);
+            try {
+                long frameDurationNs = map.getOutputMinFrameDuration(SurfaceHolder.class,
+                        new android.util.Size(size.width, size.height));
+                fps[i] = frameDurationNs > 0 ? (int) (1000000000L / frameDurationNs) : 0;
+            } catch (IllegalArgumentException e) {
+                // not a Camera2 output size
+            }
+        }
+        return fps;
+    }
+
+    static List<Size> toSizes(List<Camera.Size> cameraSizes) {
+        List<Size> sizes = new ArrayList<>(cameraSizes.size());
+        for (Camera.Size size : cameraSizes) {
+            sizes.add(new Size(size.width, size.height));
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,1862 @@
+package com.isafemobile.cameratest;
+
+import android.content.Context;
+import android.hardware.camera2.CameraCharacteristics;
+import android.media.CamcorderProfile;
+import android.media.MediaRecorder;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Owns the camera and the media recorder and serializes every operation on them
+ * (open, preview, record, stop, release) on a single background thread.
+ * Callers only post commands; state changes are reported back on the main thread
+ * through {@link Listener}.
+ * <p>
+ * Camera characteristics and the sizes chosen by the {@link SizeSelector} come from a
+ * {@link CameraCapabilityCache} that is loaded as soon as the controller exists; the live
+ * values are only queried after the first preview frame, to validate the cache.
+ * <p>
+ * Latencies and write rates go to a {@link MetricsRecorder} that is off by default; the
+ * commands are also marked as {@link Trace} sections for systrace/Perfetto.
+ * <p>
+ * The video bitrate comes from a {@link RecordingProfilePolicy} fed with the write throughput
+ * of the storage tree, measured once per tree by {@link StorageThroughputProbe}, and the
+ * thermal status. A segmented recording that has to step down mid-session switches to a new
+ * recorder at the next segment boundary, as the bitrate of a running one is fixed.
+ * <p>
+ * In armed mode a {@link MediaRecorder} is kept prepared on a pre-opened output file
+ * while the camera is idle, so starting a recording only has to call
+ * {@link MediaRecorder#start()}.
+ * <p>
+ * In pre-event mode the {@link MediaRecorder} is not used; preview frames are fed to a
+ * {@link PreEventRecorder} and start/stop cut clips out of its continuous encode.
+ * <p>
+ * With fragmented output recordings are written as fragmented MP4 by a
+ * {@link FragmentedMp4Writer}, which leaves everything up to the last fragment playable
+ * if the app dies mid-recording. {@link MediaRecorder} can't write that, so such a recording
+ * is encoded from preview frames by a {@link PreEventRecorder} started without pre-event
+ * footage and released again once the clip is finished.
+ * <p>
+ * In segmented mode the recording rolls over to VID_&lt;timestamp&gt;_&lt;n&gt;.mp4 files using
+ * {@link MediaRecorder#setNextOutputFile}; the next segment is always created and opened
+ * ahead of time so the switch is gapless. The recorder only rolls over at its file size
+ * limit, at a duration limit it stops, so a segment duration is turned into the size it
+ * reaches at the recording's bitrate.
+ * <p>
+ * Preview frames go through a single {@link PreviewFrameDispatcher} that pre-event encoding
+ * and burst capture share; its callback buffers are allocated once per preview size.
+ * <p>
+ * With the motion trigger on, a {@link MotionDetector} looks at the preview frames and
+ * starts and stops recordings by itself. The {@link MediaRecorder} takes the camera away
+ * from the preview callbacks, so such a recording ends after {@link #MOTION_CLIP_MS} and
+ * detection resumes; with pre-event encoding the frames keep coming and the detector
+ * decides when the clip ends.
+ * <p>
+ * The camera itself sits behind a {@link CameraEngine}: {@link Camera2Engine} on FULL and
+ * LEVEL_3 devices, where recordings and stills run on the preview's capture session, and
+ * {@link Camera1Engine} everywhere else. Preview frame callbacks only exist on Camera1, so
+ * features that consume frames open or switch to it.
+ * <p>
+ * Every saved image and finished recording is added to a {@link MediaCatalog}, so recent
+ * captures can be listed without enumerating the SAF tree. Once per tree and launch the
+ * catalog is reconciled with a listing of the folders in the background, picking up files
+ * that were deleted or copied in behind the app's back.
+ * <p>
+ * The controller outlives the activity's surface: {@link #detachPreview()} only stops the
+ * preview and a running recording carries on, so a rotation costs a preview re-bind on the
+ * next {@link #startPreview}. The camera itself is released once it was left without a
+ * surface for the idle timeout.
+ */
+public class CameraSessionController {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final int PRE_EVENT_SECONDS = 5;
+    private static final int PREVIEW_CALLBACK_BUFFERS = 3;
+    private static final int IMAGE_WRITE_BUFFERS = 4;
+    // two more buffers than encoders so the camera always has one to fill
+    private static final int BURST_ENCODERS = 2;
+    private static final int BURST_CALLBACK_BUFFERS = BURST_ENCODERS + 2;
+    private static final long MOTION_CLIP_MS = 30 * 1000;
+    public static final long DEFAULT_IDLE_RELEASE_MS = 10 * 1000;
+
+    public interface Listener {
+        void onCameraOpened();
+
+        /**
+         * @param openToFirstFrameMs time from {@link #open} to the first preview frame
+         */
+        void onFirstPreviewFrame(long openToFirstFrameMs);
+
+        /**
+         * @param startLatencyMs time from the button press to {@link MediaRecorder#start()} returning
+         */
+        void onRecordingStarted(Uri videoUri, long startLatencyMs);
+
+        void onRecordingStopped();
+
+        void onRecordingFinalized(Uri videoUri, long durationMs, long bytes, boolean success);
+
+        void onImageUriCreated(Uri imageUri);
+
+        void onImageSaved(Uri imageUri, long bytes, long shotToSavedMs);
+
+        /**
+         * The camera is not available for an in-app still, the caller may fall back to another app.
+         */
+        void onStillCaptureUnavailable();
+
+        /**
+         * @param dropped preview frames skipped because the encoders or the writer were busy
+         */
+        void onBurstFinished(int saved, long dropped);
+
+        void onMetricsExported(File file);
+
+        void onError(String message);
+    }
+
+    private final Context mContext;
+    private final DocumentStorage mStorage;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final RecordingFinalizer mFinalizer;
+    private final OutputFilePool mOutputPool;
+    private final ImageWriteQueue mImageWriter;
+    private final CameraCapabilityCache mCapabilityCache;
+    private final StorageThroughputProbe mStorageProbe;
+    private final StorageWatchdog mStorageWatchdog;
+    private final MediaCatalog mCatalog;
+    private final PowerManager mPowerManager;
+    // PowerManager.OnThermalStatusChangedListener from Q on, null before
+    private final Object mThermalListener;
+    private final MetricsRecorder mMetrics = new MetricsRecorder();
+    private final FrameConsumer mFrameCounter = frame -> mMetrics.countFrame();
+
+    // Only touched on mThread
+    private CameraEngine<SurfaceHolder, MediaRecorder> mEngine;
+    // mEngine while it is the Camera1 one, the only one with preview frame callbacks
+    private Camera1Engine mCamera1;
+    private MediaRecorder mMediaRecorder;
+    private ParcelFileDescriptor mOutputPfd;
+    private Uri mOutputUri;
+    private long mRecordingStartedAt;
+    private boolean isRecording = false;
+    private CameraCapabilities mCapabilities;
+    private boolean mCapabilitiesValidated = false;
+    // remembers its choices per surface size and rotation, built for one engine type
+    private SizeSelector mSizeSelector;
+    private boolean mSizeSelectorForCamera1;
+    private Size mPreviewSize;
+    // recording size chosen together with the preview size
+    private Size mVideoSize;
+    // built on mThread, before anything can record
+    private RecordingProfilePolicy mProfilePolicy;
+    // the tree the policy has the throughput of
+    private Uri mProbedTree;
+    // the tree the catalog was reconciled with
+    private Uri mReconciledTree;
+    // display orientation of the prepared or running recorder; handed to the finalizer with
+    // each file, the next recorder may be prepared before a file is finalized
+    private int mRecordingRotation;
+    // bitrate level of the prepared or running recorder
+    private int mProfileLevel;
+    // setMaxFileSize() of the prepared or running recorder, 0 for none
+    private long mRecorderMaxBytes;
+    // the segment size mRecorderMaxBytes was derived from, 0 if not segmented
+    private long mRecorderSegmentBytes;
+    // the running recording ends with its current file, the volume can't hold another one
+    private boolean mOutOfSpace = false;
+    // at the bitrate a new recording would get, read by the debug overlay
+    private volatile long mRemainingRecordingMs = Long.MAX_VALUE;
+    // level the recording steps down to at the end of the current segment, -1 to keep going
+    private int mStepDownLevel = -1;
+    // segment a stepped down recording continues with once the camera is back, -1 if none
+    private int mContinuedSegment = -1;
+    private int mContinuedLevel;
+    // last startPreview() arguments, to re-bind after switching engines
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+    private int mDisplayRotationDegrees;
+    // SystemClock.elapsedRealtime() of open() until the first preview frame arrived
+    private long mOpenRequestedAt = 0;
+    // The camera is still held by a recorder that is being finalized
+    private boolean mCameraBusy = false;
+    // Recording that has to wait until the finalizer hands the camera back
+    private Uri mPendingUri;
+    private ParcelFileDescriptor mPendingPfd;
+    private long mPendingPressedAtMs;
+    private boolean mReleasePending = false;
+    private SurfaceHolder mPreviewHolder;
+    private boolean mArmedMode = false;
+    // mMediaRecorder is prepared but not started yet
+    private boolean mPrepared = false;
+    // mOutputUri came from mOutputPool and has a provisional name
+    private boolean mOutputPooled = false;
+    private boolean mPreEventMode = false;
+    private PreEventRecorder mPreEventRecorder;
+    private boolean mFragmentedOutput = false;
+    private int mDisplayOrientation = 0;
+    private long mSegmentDurationMs = 0;
+    private long mSegmentMaxBytes = 0;
+    private long mLoopBudgetBytes = 0;
+    private String mSegmentTimeStamp;
+    private int mSegmentIndex;
+    // already handed to the recorder through setNextOutputFile()
+    private OutputFilePool.Output mNextSegment;
+    private boolean mShutterBusy = false;
+    // press times of shots held back until the shutter or a write buffer is free
+    private final ArrayDeque<Long> mPendingShots = new ArrayDeque<>();
+    // a still that arrived after a burst took the last write buffer, saved before the next shot
+    private byte[] mHeldStill;
+    private String mHeldStillName;
+    private long mHeldStillPressedAtMs;
+    private int mHeldStillRotation;
+    private PreviewFrameDispatcher mFrameDispatcher;
+    private FrameConsumer mPreEventConsumer;
+    private BurstCapture mBurst;
+    private boolean mMotionTrigger = false;
+    private FrameAnalysisStage mMotionStage;
+    // the running recording or clip was started by the motion detector
+    private boolean mMotionRecording = false;
+    // motion asked for a recording that has not started yet
+    private boolean mMotionStartPending = false;
+    private final Runnable mMotionClipTimeout = this::stop;
+    private boolean mFrameCounting = false;
+    private long mIdleReleaseMs = DEFAULT_IDLE_RELEASE_MS;
+    private final Runnable mIdleRelease = this::releaseIfIdle;
+    // preview configuration that arrived while the recorder held the camera
+    private Runnable mDeferredPreview;
+
+    public CameraSessionController(Context context, DocumentStorage storage, Listener listener) {
+        mContext = context.getApplicationContext();
+        mStorage = storage;
+        mListener = listener;
+        mThread = new HandlerThread("CameraSession");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mFinalizer = new RecordingFinalizer(mMetrics);
+        mCatalog = new MediaCatalog(new File(mContext.getFilesDir(), "media.catalog"));
+        // ahead of any finalization; the first image can't be saved before the camera opened
+        mFinalizer.execute(this::openCatalog);
+        mOutputPool = new OutputFilePool(storage, mContext.getContentResolver(), 2);
+        mImageWriter = new ImageWriteQueue(storage, mContext.getContentResolver(), IMAGE_WRITE_BUFFERS, mMetrics, mCatalog,
+                new ImageWriteQueue.Callback() {
+                    @Override
+                    public void onImageSaved(Uri imageUri, long bytes, long shotToSavedMs) {
+                        ExportJobService.enqueue(mContext, imageUri);
+                        mMainHandler.post(() -> mListener.onImageSaved(imageUri, bytes, shotToSavedMs));
+                    }
+
+                    @Override
+                    public void onImageFailed(String message) {
+                        postError(message);
+                    }
+
+                    @Override
+                    public void onBufferAvailable() {
+                        mHandler.post(CameraSessionController.this::takePendingShot);
+                    }
+                });
+        mCapabilityCache = new CameraCapabilityCache(mContext);
+        // ahead of the open command in the queue
+        mHandler.post(() -> mCapabilities = mCapabilityCache.load());
+        mHandler.post(() -> {
+            CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+            mProfilePolicy = new RecordingProfilePolicy(profile.videoBitRate, profile.audioBitRate);
+        });
+        mStorageProbe = new StorageThroughputProbe(mContext, storage);
+        mStorageWatchdog = new StorageWatchdog(mContext, storage,
+                freeBytes -> mHandler.post(this::updateRemainingRecordingTime));
+        mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // reports the current status right away, on the session thread
+            PowerManager.OnThermalStatusChangedListener listener = this::onThermalStatus;
+            mPowerManager.addThermalStatusListener(mHandler::post, listener);
+            mThermalListener = listener;
+        } else {
+            mThermalListener = null;
+        }
+    }
+
+    /**
+     * Opens the camera; the preview is bound by {@link #startPreview}.
+     */
+    public void open() {
+        long requestedAt = SystemClock.elapsedRealtime();
+        postTraced("openCamera", () -> openCamera(requestedAt));
+    }
+
+    public void startPreview(SurfaceHolder holder, int width, int height, int displayRotationDegrees) {
+        postTraced("configurePreview", () -> configurePreview(holder, width, height, displayRotationDegrees));
+    }
+
+    /**
+     * @param pressedAtMs {@link SystemClock#elapsedRealtime()} of the user action, for the start latency
+     */
+    public void startRecording(long pressedAtMs) {
+        postTraced("startRecording", () -> record(pressedAtMs));
+    }
+
+    /**
+     * Keeps a prepared recorder and pre-created output files around while idle. Disarming
+     * deletes the output files that were not used.
+     */
+    public void setArmed(boolean armed) {
+        mHandler.post(() -> {
+            mArmedMode = armed;
+            if (armed) {
+                arm();
+            } else {
+                disarm();
+                mOutputPool.clear();
+            }
+        });
+    }
+
+    public void stopRecording() {
+        postTraced("stopRecording", this::stop);
+    }
+
+    /**
+     * Switches between {@link MediaRecorder} recording and continuous pre-event encoding.
+     */
+    public void setPreEventMode(boolean preEvent) {
+        mHandler.post(() -> {
+            mPreEventMode = preEvent;
+            if (preEvent) {
+                disarm();
+                startPreEvent();
+            } else {
+                stopPreEvent();
+                arm();
+            }
+        });
+    }
+
+    /**
+     * Writes recordings as fragmented MP4. Restarts a running pre-event encoder, ending
+     * an open clip.
+     */
+    public void setFragmentedOutput(boolean fragmented) {
+        mHandler.post(() -> {
+            if (mFragmentedOutput == fragmented) {
+                return;
+            }
+            mFragmentedOutput = fragmented;
+            stopPreEvent();
+            if (fragmented) {
+                // the encoder records instead of a prepared recorder
+                disarm();
+                startPreEvent();
+            } else {
+                startPreEvent();
+                arm();
+            }
+        });
+    }
+
+    /**
+     * Starts a recording when the motion detector sees motion in the preview and stops it
+     * again once the picture is quiet.
+     */
+    public void setMotionTrigger(boolean enabled) {
+        mHandler.post(() -> {
+            mMotionTrigger = enabled;
+            if (enabled) {
+                // a prepared recorder would keep the camera from the preview callbacks
+                disarm();
+                startMotionAnalysis();
+            } else {
+                // a recording it started is left to the user
+                mHandler.removeCallbacks(mMotionClipTimeout);
+                mMotionRecording = false;
+                mMotionStartPending = false;
+                stopMotionAnalysis();
+                arm();
+            }
+        });
+    }
+
+    /**
+     * Splits recordings into segments at the given duration or size, 0 disables a limit and
+     * both 0 disables segmenting. A duration is approximate, it is cut at the size it reaches
+     * at the recording's bitrate. With a loop budget the oldest segments in the "Videos"
+     * folder are deleted once the folder grows beyond it.
+     */
+    public void setSegmentation(long segmentDurationMs, long segmentMaxBytes, long loopBudgetBytes) {
+        mHandler.post(() -> {
+            mSegmentDurationMs = segmentDurationMs;
+            mSegmentMaxBytes = segmentMaxBytes;
+            mLoopBudgetBytes = loopBudgetBytes;
+            // a prepared recorder has the old limits
+            disarm();
+            arm();
+        });
+    }
+
+    /**
+     * Takes a still with the camera of this session and saves it in the background.
+     *
+     * @param pressedAtMs {@link SystemClock#elapsedRealtime()} of the user action
+     */
+    public void takePicture(long pressedAtMs) {
+        postTraced("captureImage", () -> {
+            mPendingShots.add(pressedAtMs);
+            takePendingShot();
+        });
+    }
+
+    /**
+     * Safe to read from any thread, e.g. for a debug overlay.
+     */
+    public MetricsRecorder metrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Turns latency recording and preview frame counting on or off. Enabling starts from
+     * empty histograms. Counting frames needs preview callbacks, so armed mode yields while on.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        mHandler.post(() -> {
+            if (enabled) {
+                mMetrics.reset();
+            }
+            mMetrics.setEnabled(enabled);
+            if (enabled) {
+                disarm();
+                startFrameCounter();
+            } else {
+                stopFrameCounter();
+                arm();
+            }
+        });
+    }
+
+    /**
+     * Writes a JSON snapshot of the metrics to the app's external files and reports it
+     * through {@link Listener#onMetricsExported}.
+     */
+    public void exportMetrics() {
+        // storage work, queued behind the finalizations
+        mFinalizer.execute(() -> {
+            long now = System.currentTimeMillis();
+            File directory = mContext.getExternalFilesDir("metrics");
+            if (directory == null) {
+                postError("Failed to export metrics");
+                return;
+            }
+            String timeStamp = FileNames.timeStamp(now);
+            File file = new File(directory, "metrics_" + timeStamp + ".json");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(mMetrics.toJson(now).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + file, e);
+                postError("Failed to export metrics");
+                return;
+            }
+            mMainHandler.post(() -> mListener.onMetricsExported(file));
+        });
+    }
+
+    /**
+     * Saves preview frames as JPEGs as fast as the encoders and storage keep up, until
+     * {@link #stopBurst()}. Not available while a recording holds the camera.
+     */
+    public void startBurst() {
+        mHandler.post(this::burst);
+    }
+
+    public void stopBurst() {
+        mHandler.post(this::endBurst);
+    }
+
+    /**
+     * Creates a file for an external camera app to write a still to, see {@link Listener#onImageUriCreated}.
+     */
+    public void createImageUri() {
+        mHandler.post(() -> {
+            Uri imageUri = mStorage.createFile(DocumentStorage.IMAGES, "image/jpeg", FileNames.image(FileNames.timeStamp()));
+            if (imageUri == null) {
+                postError("Failed to create image file");
+                return;
+            }
+            mMainHandler.post(() -> mListener.onImageUriCreated(imageUri));
+        });
+    }
+
+    /**
+     * Detaches the preview from a surface that is going away, e.g. for a rotation. A running
+     * recording continues; the camera is kept open for the idle timeout so the next surface
+     * only has to re-bind the preview.
+     */
+    public void detachPreview() {
+        postTraced("detachPreview", this::detachPreviewSurface);
+    }
+
+    /**
+     * @param timeoutMs how long the camera stays open without a surface, 0 to release it right away
+     */
+    public void setIdleReleaseTimeout(long timeoutMs) {
+        mHandler.post(() -> mIdleReleaseMs = timeoutMs);
+    }
+
+    public void release() {
+        mHandler.post(() -> {
+            mHandler.removeCallbacks(mIdleRelease);
+            mDeferredPreview = null;
+            cancelPendingStart();
+            endBurst();
+            disarm();
+            mOutputPool.clear();
+            stopMotionAnalysis();
+            stopFrameCounter();
+            stopPreEvent();
+            releaseFrameDispatcher();
+            releaseMediaRecorder();
+            mPreviewHolder = null;
+            mPendingShots.clear();
+            mShutterBusy = false;
+            mStorageWatchdog.stop();
+            if (mCameraBusy) {
+                // released once the finalizer hands the camera back
+                mReleasePending = true;
+            } else {
+                releaseCamera();
+            }
+        });
+    }
+
+    /**
+     * Releases the camera and stops the worker threads once queued finalizations are done.
+     * The controller can not be used afterwards.
+     */
+    public void quit() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mPowerManager.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) mThermalListener);
+        }
+        release();
+        mImageWriter.quit();
+        mFinalizer.execute(mCatalog::close);
+        mFinalizer.quit();
+        mStorageWatchdog.quit();
+        mThread.quitSafely();
+    }
+
+    private void openCamera(long requestedAt) {
+        mReleasePending = false;
+        mHandler.removeCallbacks(mIdleRelease);
+        if (mEngine != null) {
+            // kept open while the activity was recreated, startPreview() re-binds it
+            Log.d(TAG, "reusing open camera");
+            return;
+        }
+        if (!openEngine(needsPreviewFrames())) {
+            return;
+        }
+        mOpenRequestedAt = requestedAt;
+        mMetrics.record(Metric.CAMERA_OPEN_MS, SystemClock.elapsedRealtime() - requestedAt);
+        if (mCapabilities == null) {
+            // first launch on this build, nothing to wait for later; always on Camera1
+            Log.d(TAG, "no cached camera capabilities");
+            mCapabilities = mCapabilityCache.query(mEngine);
+            mCapabilitiesValidated = true;
+            if (mCapabilities != null) {
+                mCapabilityCache.save(mCapabilities);
+            }
+        }
+        probeStorage();
+        mStorageWatchdog.start();
+        reconcileCatalog();
+        mMainHandler.post(mListener::onCameraOpened);
+    }
+
+    /**
+     * @return the catalog of the captures; reads wait while it is loaded in the background
+     */
+    public MediaCatalog mediaCatalog() {
+        return mCatalog;
+    }
+
+    /**
+     * Safe to read from any thread, e.g. for a debug overlay.
+     *
+     * @return how long a recording started now could run before the storage is full,
+     * {@link Long#MAX_VALUE} if the free space is not known
+     */
+    public long remainingRecordingMs() {
+        return mRemainingRecordingMs;
+    }
+
+    private void updateRemainingRecordingTime() {
+        long bytesPerSec = mProfilePolicy.bytesPerSec(mProfilePolicy.select());
+        mRemainingRecordingMs = StorageBudget.remainingMs(mStorageWatchdog.freeBytes(), bytesPerSec);
+    }
+
+    /**
+     * @return false if the last measured free space can't hold a recording at the bitrate
+     * a new one would get
+     */
+    private boolean hasRoomToRecord() {
+        return StorageBudget.canRecord(mStorageWatchdog.freeBytes(), mProfilePolicy.bytesPerSec(mProfilePolicy.select()));
+    }
+
+    private boolean openCatalog() {
+        try {
+            mCatalog.open();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open the media catalog", e);
+            return false;
+        }
+    }
+
+    /**
+     * Lists the folders of the tree and reconciles the catalog with them, once per tree and
+     * launch. Runs on its own thread, listing a large tree takes seconds and must not hold
+     * up finalizations.
+     */
+    private void reconcileCatalog() {
+        Uri treeUri = mStorage.getTreeUri();
+        if (treeUri == null || treeUri.equals(mReconciledTree)) {
+            return;
+        }
+        mReconciledTree = treeUri;
+        new Thread(() -> {
+            // an unreadable tree lists as empty, that must not empty the catalog
+            if (!openCatalog() || mStorage.getDirectory(DocumentStorage.IMAGES) == null
+                    || mStorage.getDirectory(DocumentStorage.VIDEOS) == null) {
+                return;
+            }
+            long mark = mCatalog.mark();
+            long startedAt = SystemClock.elapsedRealtime();
+            List<MediaCatalog.Entry> onDisk = new ArrayList<>();
+            listCatalogEntries(DocumentStorage.IMAGES, MediaCatalog.TYPE_IMAGE, onDisk);
+            listCatalogEntries(DocumentStorage.VIDEOS, MediaCatalog.TYPE_VIDEO, onDisk);
+            try {
+                int changes = mCatalog.reconcile(onDisk, mark);
+                Log.d(TAG, "catalog reconciled with " + onDisk.size() + " files in "
+                        + (SystemClock.elapsedRealtime() - startedAt) + " ms, " + changes + " changes");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to reconcile the media catalog", e);
+            }
+        }, "CatalogReconciler").start();
+    }
+
+    private void listCatalogEntries(String directory, int type, List<MediaCatalog.Entry> entries) {
+        for (SegmentQuota.Entry file : mStorage.listFiles(directory)) {
+            Uri uri = mStorage.documentUri(file.documentId);
+            // empty files are pooled outputs or not written yet
+            if (uri != null && file.size > 0) {
+                entries.add(new MediaCatalog.Entry(uri.toString(), type, file.lastModified,
+                        type == MediaCatalog.TYPE_IMAGE ? 0 : MediaCatalog.UNKNOWN, file.size, MediaCatalog.UNKNOWN));
+            }
+        }
+    }
+
+    /**
+     * Adds a finished recording to the catalog and the export queue, on the thread that
+     * finalized it.
+     */
+    private void catalogVideo(Uri videoUri, long durationMs, long bytes, int rotation) {
+        try {
+            mCatalog.add(new MediaCatalog.Entry(videoUri.toString(), MediaCatalog.TYPE_VIDEO,
+                    System.currentTimeMillis() - durationMs, durationMs, bytes, rotation));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to catalog " + videoUri, e);
+        }
+        ExportJobService.enqueue(mContext, videoUri);
+    }
+
+    /**
+     * Measures the storage tree on the finalizer thread unless the policy already has its
+     * throughput; the probe itself is cached across launches.
+     */
+    private void probeStorage() {
+        Uri treeUri = mStorage.getTreeUri();
+        if (treeUri == null || treeUri.equals(mProbedTree)) {
+            return;
+        }
+        mProbedTree = treeUri;
+        mFinalizer.execute(() -> {
+            long bytesPerSec = mStorageProbe.throughput();
+            Log.d(TAG, "storage sustains " + bytesPerSec + " bytes/s");
+            mHandler.post(() -> {
+                mProfilePolicy.onStorageThroughput(bytesPerSec);
+                onProfilePolicyChanged();
+            });
+        });
+    }
+
+    private void onThermalStatus(int status) {
+        Log.d(TAG, "thermal status " + status);
+        mProfilePolicy.onThermalStatus(status);
+        onProfilePolicyChanged();
+    }
+
+    /**
+     * Re-arms if the prepared recorder has a bitrate the policy would not pick anymore; a
+     * running recording picks the change up at its next segment.
+     */
+    private void onProfilePolicyChanged() {
+        updateRemainingRecordingTime();
+        if (mPrepared && mProfilePolicy.select() != mProfileLevel) {
+            disarm();
+            arm();
+        }
+    }
+
+    /**
+     * Opens the Camera2 engine if the cached hardware level allows it, Camera1 otherwise.
+     */
+    private boolean openEngine(boolean needsPreviewFrames) {
+        CameraEngine<SurfaceHolder, MediaRecorder> engine = null;
+        if (mCapabilities != null && CameraEngines.useCamera2(mCapabilities.hardwareLevel, needsPreviewFrames)) {
+            try {
+                engine = new Camera2Engine(mContext);
+            } catch (IOException e) {
+                Log.e(TAG, "Camera2 engine not available", e);
+            }
+        }
+        Camera1Engine camera1 = engine == null ? new Camera1Engine() : null;
+        if (camera1 != null) {
+            engine = camera1;
+        }
+        try {
+            engine.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open camera", e);
+            postError("Failed to open camera");
+            return false;
+        }
+        Log.d(TAG, "camera opened with " + engine.getClass().getSimpleName());
+        mEngine = engine;
+        mCamera1 = camera1;
+        return true;
+    }
+
+    private boolean needsPreviewFrames() {
+        return mPreEventMode || mFragmentedOutput || mMotionTrigger || mMetrics.isEnabled();
+    }
+
+    /**
+     * Reopens the camera with the Camera1 engine when a feature needs preview frames while
+     * Camera2 is running.
+     *
+     * @return false if there is no camera or a recording keeps it from switching
+     */
+    private boolean ensurePreviewFrames() {
+        if (mCamera1 != null) {
+            return true;
+        }
+        if (mEngine == null || mPreviewHolder == null || isRecording || mCameraBusy || mPendingPfd != null) {
+            return false;
+        }
+        Log.d(TAG, "switching to Camera1 for preview frames");
+        disarm();
+        closeEngine();
+        return openEngine(true)
+                && bindPreview(mPreviewHolder, mSurfaceWidth, mSurfaceHeight, mDisplayRotationDegrees);
+    }
+
+    private void configurePreview(SurfaceHolder holder, int width, int height, int displayRotationDegrees) {
+        if (mEngine == null) {
+            return;
+        }
+        if (mCamera1 == null && holder == mPreviewHolder && mEngine.state() == CameraEngine.State.PREVIEW
+                && mPreviewSize != null && width == mPreviewSize.width && height == mPreviewSize.height) {
+            // surfaceChanged() for the buffer size Camera2Engine set with setFixedSize()
+            return;
+        }
+        boolean newSurface = holder != mPreviewHolder;
+        mPreviewHolder = holder;
+        if (isRecording || mCameraBusy) {
+            if (newSurface && isRecording && mEngine.state() == CameraEngine.State.RECORDING) {
+                rebindPreview(holder);
+            }
+            // sizes and orientation can't change under the recorder, apply once it gives the camera back
+            mDeferredPreview = () -> configurePreview(holder, width, height, displayRotationDegrees);
+            return;
+        }
+        mDeferredPreview = null;
+        // the encoder and the callback buffers are sized for the old preview size
+        endBurst();
+        // a prepared recorder holds the camera, give it back before changing parameters
+        disarm();
+        stopMotionAnalysis();
+        stopFrameCounter();
+        stopPreEvent();
+        releaseFrameDispatcher();
+        if (!bindPreview(holder, width, height, displayRotationDegrees)) {
+            return;
+        }
+        startPreEvent();
+        startMotionAnalysis();
+        startFrameCounter();
+        if (mOpenRequestedAt != 0 && mFrameDispatcher == null) {
+            if (mCamera1 != null) {
+                // a dispatcher started later replaces this callback and reports the frame instead
+                mCamera1.camera().setOneShotPreviewCallback((data, camera) -> onFirstPreviewFrame(SystemClock.elapsedRealtime()));
+            } else {
+                // no frame callbacks on Camera2, the repeating request is in by now
+                onFirstPreviewFrame(SystemClock.elapsedRealtime());
+            }
+        }
+        arm();
+    }
+
+    /**
+     * Picks the sizes for the surface and (re)starts the engine's preview on it.
+     */
+    private boolean bindPreview(SurfaceHolder holder, int width, int height, int displayRotationDegrees) {
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        mDisplayRotationDegrees = displayRotationDegrees;
+        if (mCapabilities != null) {
+            mDisplayOrientation = computeRelativeRotation(displayRotationDegrees);
+        }
+
+        // the cached sizes are Camera1's
+        boolean cached = mCapabilities != null && mCamera1 != null;
+        SizeSelection selection = cached ? mCapabilities.chosenSizes(width, height, mDisplayOrientation) : null;
+        if (selection == null) {
+            selection = sizeSelector().select(width, height, mDisplayOrientation);
+            if (cached) {
+                mCapabilities.putChosenSizes(width, height, mDisplayOrientation, selection);
+                mCapabilityCache.save(mCapabilities);
+            }
+        }
+        mVideoSize = selection.video;
+        try {
+            mEngine.startPreview(holder, selection, mDisplayOrientation);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start preview", e);
+            mPreviewSize = null;
+            postError("Failed to start preview");
+            return false;
+        }
+        mPreviewSize = selection.preview;
+        return true;
+    }
+
+    /**
+     * Shows a running recording on a surface that came back or was replaced, with the sizes
+     * it was started with.
+     */
+    private void rebindPreview(SurfaceHolder holder) {
+        try {
+            mEngine.rebindPreview(holder);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to rebind preview", e);
+            postError("Failed to start preview");
+            if (mCamera1 == null) {
+                // the failed session took the recorder's frames with it
+                stop();
+            }
+        }
+    }
+
+    private SizeSelector sizeSelector() {
+        boolean camera1 = mCamera1 != null;
+        if (mSizeSelector == null || mSizeSelectorForCamera1 != camera1) {
+            CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+            Size profileSize = new Size(profile.videoFrameWidth, profile.videoFrameHeight);
+            if (camera1 && mCapabilities != null) {
+                mSizeSelector = new SizeSelector(mCapabilities.previewSizes, mCapabilities.previewMaxFps(),
+                        mCapabilities.videoSizes, profileSize, profile.videoFrameRate);
+            } else {
+                mSizeSelector = new SizeSelector(mEngine.previewSizes(), null, mEngine.videoSizes(),
+                        profileSize, profile.videoFrameRate);
+            }
+            mSizeSelectorForCamera1 = camera1;
+        }
+        return mSizeSelector;
+    }
+
+    private final FrameConsumer mFirstFrameProbe = frame -> {
+        long at = SystemClock.elapsedRealtime();
+        mHandler.post(() -> onFirstPreviewFrame(at));
+    };
+
+    private void onFirstPreviewFrame(long at) {
+        if (mOpenRequestedAt == 0) {
+            return;
+        }
+        long openToFirstFrameMs = at - mOpenRequestedAt;
+        mOpenRequestedAt = 0;
+        if (mFrameDispatcher != null) {
+            mFrameDispatcher.removeConsumer(mFirstFrameProbe);
+        }
+        Log.d(TAG, "first preview frame " + openToFirstFrameMs + " ms after open");
+        mMetrics.record(Metric.FIRST_PREVIEW_FRAME_MS, openToFirstFrameMs);
+        mMainHandler.post(() -> mListener.onFirstPreviewFrame(openToFirstFrameMs));
+        // off the critical path now
+        mHandler.post(this::validateCapabilities);
+    }
+
+    /**
+     * Compares the cached capabilities with the live ones once per controller and replaces
+     * the cache if the camera changed without a new build fingerprint.
+     */
+    private void validateCapabilities() {
+        if (mCapabilitiesValidated || mCamera1 == null) {
+            return;
+        }
+        CameraCapabilities live = mCapabilityCache.query(mCamera1);
+        if (live == null) {
+            return;
+        }
+        mCapabilitiesValidated = true;
+        if (live.sameCapabilities(mCapabilities)) {
+            return;
+        }
+        Log.d(TAG, "cached camera capabilities are stale, replacing them");
+        if (mCapabilities != null) {
+            live.keepChosenSizes(mCapabilities);
+        }
+        mCapabilities = live;
+        mSizeSelector = null;
+        mCapabilityCache.save(live);
+    }
+
+    public int computeRelativeRotation(int surfaceRotationDegrees) {
+        return CameraRotation.computeRelativeRotation(mCapabilities.sensorOrientation,
+                mCapabilities.lensFacing == CameraCharacteristics.LENS_FACING_BACK, surfaceRotationDegrees);
+    }
+
+    private void record(long pressedAtMs) {
+        Log.d(TAG, "startRecording");
+        if (!isRecording && !hasRoomToRecord()) {
+            // fails before a file is created, a recorder that runs out of space leaves it corrupt
+            postError("Not enough free space to record");
+            return;
+        }
+        if (mPreEventRecorder == null && mFragmentedOutput && !isRecording) {
+            startEncoder(0);
+            if (mPreEventRecorder == null) {
+                // no preview frames while the camera is busy, or the encoder failed
+                postError("Failed to start recording");
+                return;
+            }
+        }
+        if (mPreEventRecorder != null) {
+            mPreEventRecorder.trigger(pressedAtMs);
+            return;
+        }
+        if (mEngine == null || isRecording || mPendingPfd != null) {
+            return;
+        }
+        // the recorder takes the camera away from the preview callbacks
+        endBurst();
+        stopMotionAnalysis();
+        stopFrameCounter();
+        if (mPrepared) {
+            if (!StorageBudget.exceedsFreeSpace(mRecorderMaxBytes, mStorageWatchdog.refresh(mOutputPfd))) {
+                startPreparedRecorder(pressedAtMs);
+                return;
+            }
+            // armed while there was more space, a new recorder gets the current limit
+            disarm();
+        }
+
+        String timeStamp = FileNames.timeStamp();
+        mSegmentTimeStamp = timeStamp;
+        String fileName = isSegmented() ? SegmentQuota.segmentName(timeStamp, 0) : FileNames.video(timeStamp);
+        Uri videoUri = mStorage.createFile(DocumentStorage.VIDEOS, "video/mp4", fileName);
+        if (videoUri == null) {
+            postError("Failed to create video file");
+            return;
+        }
+
+        // Get the file descriptor for the video file
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = mContext.getContentResolver().openFileDescriptor(videoUri, "rw");
+        } catch (FileNotFoundException | SecurityException e) {
+            e.printStackTrace();
+            // the folder may have been removed behind our back
+            mStorage.invalidate();
+            postError("Failed to open video file");
+            return;
+        }
+
+        if (mCameraBusy) {
+            // The previous recording is still finalizing, start as soon as it releases the camera
+            mPendingUri = videoUri;
+            mPendingPfd = pfd;
+            mPendingPressedAtMs = pressedAtMs;
+        } else if (prepareRecorder(videoUri, pfd)) {
+            startPreparedRecorder(pressedAtMs);
+        }
+    }
+
+    /**
+     * Takes over the output, if the recorder can't be prepared it is closed and deleted.
+     */
+    private boolean prepareRecorder(Uri videoUri, ParcelFileDescriptor pfd) {
+        // exact, the cached value may be half a minute old
+        long freeBytes = mStorageWatchdog.refresh(pfd);
+        int level = mContinuedSegment >= 0 ? mContinuedLevel : mProfilePolicy.select();
+        if (!StorageBudget.canRecord(freeBytes, mProfilePolicy.bytesPerSec(level))) {
+            Log.w(TAG, "refusing to record with " + freeBytes + " bytes free");
+            mOutputPool.discard(new OutputFilePool.Output(videoUri, pfd));
+            postError("Not enough free space to record");
+            return false;
+        }
+        mOutputUri = videoUri;
+        mOutputPfd = pfd;
+        mRecordingRotation = mDisplayOrientation;
+        mMediaRecorder = new MediaRecorder();
+        try {
+            // sets the video source
+            mEngine.attachRecorder(mMediaRecorder);
+            mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
+
+            CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+            mMediaRecorder.setProfile(profile);
+            if (mVideoSize != null
+                    && (mVideoSize.width != profile.videoFrameWidth || mVideoSize.height != profile.videoFrameHeight)) {
+                // the camera does not support the profile's size
+                mMediaRecorder.setVideoSize(mVideoSize.width, mVideoSize.height);
+            }
+            mProfileLevel = level;
+            if (mProfileLevel > 0) {
+                mMediaRecorder.setVideoEncodingBitRate(mProfilePolicy.videoBitRate(mProfileLevel));
+            }
+            mMediaRecorder.setOutputFile(mOutputPfd.getFileDescriptor());
+            // segments roll over at the size limit, which also stops the recording cleanly
+            // before the volume is full
+            long bytesPerSec = mProfilePolicy.bytesPerSec(level);
+            mRecorderSegmentBytes = StorageBudget.segmentBytes(bytesPerSec, mSegmentDurationMs, mSegmentMaxBytes);
+            mRecorderMaxBytes = StorageBudget.recorderMaxFileSize(freeBytes, bytesPerSec, mSegmentDurationMs, mSegmentMaxBytes);
+            if (mRecorderMaxBytes > 0) {
+                mMediaRecorder.setMaxFileSize(mRecorderMaxBytes);
+            }
+            mOutOfSpace = false;
+            mMediaRecorder.setOnInfoListener(this::onRecorderInfo);
+            // the preview display on Camera1, the session's input surface on Camera2
+            mEngine.bindRecorderSurface(mMediaRecorder);
+            mMediaRecorder.prepare();
+            mPrepared = true;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            // deleted below, not only closed with the recorder
+            mOutputUri = null;
+            mOutputPfd = null;
+            releaseMediaRecorder();
+            mOutputPool.discard(new OutputFilePool.Output(videoUri, pfd));
+            postError("Failed to prepare recording");
+            return false;
+        }
+    }
+
+    private void startPreparedRecorder(long pressedAtMs) {
+        try {
+            mMediaRecorder.start();
+            mEngine.startRecorderStream();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            OutputFilePool.Output output = new OutputFilePool.Output(mOutputUri, mOutputPfd);
+            // deleted below, not only closed with the recorder
+            mOutputUri = null;
+            mOutputPfd = null;
+            releaseMediaRecorder();
+            mOutputPool.discard(output);
+            postError("Failed to start recording");
+            return;
+        }
+        mRecordingStartedAt = SystemClock.elapsedRealtime();
+        mPrepared = false;
+        isRecording = true;
+        int continuedSegment = mContinuedSegment;
+        mContinuedSegment = -1;
+        if (continuedSegment >= 0) {
+            // same recording for the listener, only the recorder changed
+            Log.d(TAG, "segment " + continuedSegment + " recording at " + mProfilePolicy.videoBitRate(mProfileLevel) + " bps");
+            mSegmentIndex = continuedSegment;
+            prepareNextSegment();
+            return;
+        }
+        motionRecordingStarted();
+        long startLatencyMs = SystemClock.elapsedRealtime() - pressedAtMs;
+        Log.d(TAG, "recording started " + startLatencyMs + " ms after the button press");
+        mMetrics.record(Metric.RECORD_START_MS, startLatencyMs);
+
+        if (mOutputPooled) {
+            // Give the pre-created file the name it would have had without arming
+            mSegmentTimeStamp = FileNames.timeStamp();
+            String fileName = isSegmented() ? SegmentQuota.segmentName(mSegmentTimeStamp, 0) : FileNames.video(mSegmentTimeStamp);
+            mOutputUri = mOutputPool.rename(mOutputUri, fileName);
+            mOutputPooled = false;
+        }
+        Uri videoUri = mOutputUri;
+        mMainHandler.post(() -> mListener.onRecordingStarted(videoUri, startLatencyMs));
+
+        if (isSegmented()) {
+            mSegmentIndex = 0;
+            prepareNextSegment();
+        }
+    }
+
+    private boolean isSegmented() {
+        return mSegmentDurationMs > 0 || mSegmentMaxBytes > 0;
+    }
+
+    /**
+     * Creates and opens the file for the segment after the current one and hands it to the recorder.
+     */
+    private void prepareNextSegment() {
+        int level = mProfilePolicy.atSegmentBoundary(mProfileLevel);
+        if (level != mProfileLevel) {
+            // without a next file the recorder stops at the limit and a new one takes over
+            Log.d(TAG, "stepping down to " + mProfilePolicy.videoBitRate(level) + " bps after segment " + mSegmentIndex);
+            mStepDownLevel = level;
+            return;
+        }
+        // every segment is limited like the first one
+        if (!StorageBudget.fitsNextSegment(mStorageWatchdog.refresh(mOutputPfd), mRecorderMaxBytes)) {
+            // without a next file the recorder stops at the limit of this one
+            Log.w(TAG, "no room for segment " + (mSegmentIndex + 1) + ", the recording ends with this one");
+            mOutOfSpace = true;
+            return;
+        }
+        String fileName = SegmentQuota.segmentName(mSegmentTimeStamp, mSegmentIndex + 1);
+        Uri uri = mStorage.createFile(DocumentStorage.VIDEOS, "video/mp4", fileName);
+        if (uri == null) {
+            // the recording stops at the segment limit instead
+            postError("Failed to create next segment");
+            return;
+        }
+        try {
+            ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(uri, "rw");
+            mNextSegment = new OutputFilePool.Output(uri, pfd);
+            mMediaRecorder.setNextOutputFile(pfd.getFileDescriptor());
+        } catch (IOException | SecurityException | IllegalStateException e) {
+            Log.e(TAG, "Failed to set next segment " + uri, e);
+            if (mNextSegment != null) {
+                mOutputPool.discard(mNextSegment);
+                mNextSegment = null;
+            }
+            postError("Failed to create next segment");
+        }
+    }
+
+    private void onRecorderInfo(MediaRecorder mr, int what, int extra) {
+        if (mr != mMediaRecorder || !isRecording) {
+            return;
+        }
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                onSegmentRolledOver();
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                // no next file was ready, the recorder stopped by itself
+                if (mStepDownLevel >= 0) {
+                    continueAtLevel(mStepDownLevel);
+                } else {
+                    if (mOutOfSpace || (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED
+                            && mRecorderMaxBytes != mRecorderSegmentBytes)) {
+                        postError("Recording stopped, the storage is almost full");
+                    }
+                    stop();
+                }
+                break;
+        }
+    }
+
+    private void onSegmentRolledOver() {
+        if (mNextSegment == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mFinalizer.finalizeSegment(mOutputPfd, mOutputUri, mRecordingStartedAt, now, finalizeCallback(mRecordingRotation));
+        mOutputUri = mNextSegment.uri;
+        mOutputPfd = mNextSegment.pfd;
+        mNextSegment = null;
+        mRecordingStartedAt = now;
+        mSegmentIndex++;
+        Log.d(TAG, "rolled over to segment " + mSegmentIndex + " " + mOutputUri);
+        prepareNextSegment();
+        enforceLoopQuota();
+    }
+
+    /**
+     * Replaces the recorder that stopped at the segment limit by one at a lower bitrate, which
+     * writes the next segment of the same recording once the finalizer hands the camera back.
+     */
+    private void continueAtLevel(int level) {
+        int index = mSegmentIndex + 1;
+        finishRecording();
+        Uri uri = mStorage.createFile(DocumentStorage.VIDEOS, "video/mp4", SegmentQuota.segmentName(mSegmentTimeStamp, index));
+        ParcelFileDescriptor pfd = null;
+        if (uri != null) {
+            try {
+                pfd = mContext.getContentResolver().openFileDescriptor(uri, "rw");
+            } catch (FileNotFoundException | SecurityException e) {
+                Log.e(TAG, "Failed to open segment " + uri, e);
+            }
+        }
+        if (pfd == null) {
+            postError("Failed to create next segment");
+            mMainHandler.post(mListener::onRecordingStopped);
+            return;
+        }
+        mContinuedSegment = index;
+        mContinuedLevel = level;
+        mPendingUri = uri;
+        mPendingPfd = pfd;
+        mPendingPressedAtMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Deletes the oldest segments on the finalizer thread if the folder is over the loop budget.
+     */
+    private void enforceLoopQuota() {
+        if (mLoopBudgetBytes <= 0) {
+            return;
+        }
+        long budget = mLoopBudgetBytes;
+        Set<String> keep = new HashSet<>();
+        keep.add(SegmentQuota.segmentName(mSegmentTimeStamp, mSegmentIndex));
+        keep.add(SegmentQuota.segmentName(mSegmentTimeStamp, mSegmentIndex + 1));
+        mFinalizer.execute(() -> {
+            List<SegmentQuota.Entry> delete = SegmentQuota.selectForDeletion(
+                    mStorage.listFiles(DocumentStorage.VIDEOS), budget, keep);
+            for (SegmentQuota.Entry entry : delete) {
+                Log.d(TAG, "loop quota, deleting " + entry.name);
+                mStorage.delete(entry.documentId);
+            }
+        });
+    }
+
+    /**
+     * Prepares a recorder on a pooled output file if armed mode is on and the camera is idle.
+     */
+    private void arm() {
+        if (!mArmedMode || mPreEventMode || mFragmentedOutput || mFrameDispatcher != null || mPrepared || isRecording || mCameraBusy || mPendingPfd != null
+                || mEngine == null || mPreviewHolder == null) {
+            return;
+        }
+        if (!hasRoomToRecord()) {
+            // record() reports it once it is asked to
+            return;
+        }
+        OutputFilePool.Output output = mOutputPool.take();
+        if (output == null) {
+            postError("Failed to create video file");
+            return;
+        }
+        if (prepareRecorder(output.uri, output.pfd)) {
+            mOutputPooled = true;
+        }
+        // top the pool up again for the next recording
+        mOutputPool.fill();
+    }
+
+    private void disarm() {
+        if (!mPrepared) {
+            return;
+        }
+        mMediaRecorder.reset();
+        mMediaRecorder.release();
+        mMediaRecorder = null;
+        detachRecorder();
+        mPrepared = false;
+        if (mOutputPooled) {
+            mOutputPool.discard(new OutputFilePool.Output(mOutputUri, mOutputPfd));
+            mOutputPooled = false;
+        } else {
+            closeOutput();
+        }
+        mOutputUri = null;
+        mOutputPfd = null;
+    }
+
+    private void stop() {
+        mHandler.removeCallbacks(mMotionClipTimeout);
+        mMotionRecording = false;
+        mMotionStartPending = false;
+        if (mPreEventRecorder != null) {
+            if (mPreEventMode) {
+                mPreEventRecorder.stopClip();
+            } else {
+                // started for this recording only, releasing it finishes the clip
+                stopPreEvent();
+            }
+            return;
+        }
+        if (mPendingPfd != null) {
+            // stop pressed before the queued recording got the camera
+            mContinuedSegment = -1;
+            cancelPendingStart();
+            mMainHandler.post(mListener::onRecordingStopped);
+            return;
+        }
+        if (isRecording && mMediaRecorder != null) {
+            finishRecording();
+            mMainHandler.post(mListener::onRecordingStopped);
+        }
+    }
+
+    /**
+     * Hands the running recorder to the finalizer, the camera is busy until it returns.
+     */
+    private void finishRecording() {
+        mStepDownLevel = -1;
+        mCameraBusy = true;
+        // Camera2 keeps streaming to the recorder surface otherwise
+        mEngine.stopRecorderStream();
+        OutputFilePool.Output unusedSegment = mNextSegment;
+        mNextSegment = null;
+        RecordingFinalizer.Callback finalized = finalizeCallback(mRecordingRotation);
+        mFinalizer.finalizeRecording(mMediaRecorder, mOutputPfd, mOutputUri, mRecordingStartedAt,
+                new RecordingFinalizer.Callback() {
+                    @Override
+                    public void onCameraReleased() {
+                        mHandler.post(CameraSessionController.this::onCameraReturned);
+                        if (unusedSegment != null) {
+                            mOutputPool.discard(unusedSegment);
+                        }
+                    }
+
+                    @Override
+                    public void onFinalized(Uri videoUri, long durationMs, long bytes, boolean success) {
+                        finalized.onFinalized(videoUri, durationMs, bytes, success);
+                    }
+                });
+        enforceLoopQuota();
+        mMediaRecorder = null;
+        mOutputPfd = null;
+        mOutputUri = null;
+        isRecording = false;
+    }
+
+    /**
+     * @param rotation display orientation the file was recorded with; taken when the file is
+     *                 handed over, the callback runs on the finalizer thread
+     */
+    private RecordingFinalizer.Callback finalizeCallback(int rotation) {
+        return new RecordingFinalizer.Callback() {
+            @Override
+            public void onCameraReleased() {
+                // segments don't release the camera
+            }
+
+            @Override
+            public void onFinalized(Uri videoUri, long durationMs, long bytes, boolean success) {
+                if (success) {
+                    catalogVideo(videoUri, durationMs, bytes, rotation);
+                }
+                mStorageWatchdog.refreshSoon();
+                mMainHandler.post(() -> mListener.onRecordingFinalized(videoUri, durationMs, bytes, success));
+            }
+        };
+    }
+
+    /**
+     * Fires the shutter for the oldest held back shot, unless the shutter is still busy, a
+     * burst is running or every write buffer is waiting for storage.
+     */
+    private void takePendingShot() {
+        if (!saveHeldStill()) {
+            return;
+        }
+        if (mPendingShots.isEmpty() || mShutterBusy || mBurst != null || !mImageWriter.hasFreeBuffer()) {
+            // the burst's encoders share the write buffers, its end takes the shot
+            return;
+        }
+        if (mEngine == null || mCameraBusy || (isRecording && !mEngine.supportsVideoSnapshot())) {
+            mPendingShots.clear();
+            mMainHandler.post(mListener::onStillCaptureUnavailable);
+            return;
+        }
+        long pressedAtMs = mPendingShots.poll();
+        if (!mEngine.canTakePicture()) {
+            // a prepared Camera1 recorder holds the camera
+            disarm();
+        }
+        mShutterBusy = true;
+        try {
+            mEngine.takePicture(jpeg -> mHandler.post(() -> onPictureTaken(jpeg, pressedAtMs)));
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "takePicture failed", e);
+            mShutterBusy = false;
+            postError("Failed to take picture");
+            arm();
+        }
+    }
+
+    private void onPictureTaken(byte[] data, long pressedAtMs) {
+        // the engine restarted the preview if it had to stop it, saving happens on the writer thread
+        long shotAt = SystemClock.elapsedRealtime();
+        mShutterBusy = false;
+        if (data != null) {
+            // Camera2 asks for JPEG_ORIENTATION, which the HAL applies either to the pixels or
+            // as EXIF; only the file can tell. Camera1 stills are never rotated.
+            int rotation = mCamera1 != null ? mDisplayOrientation : MediaCatalog.UNKNOWN;
+            String fileName = FileNames.image(FileNames.timeStamp());
+            if (!mImageWriter.offer(data, data.length, fileName, pressedAtMs, rotation)) {
+                // the encoders of a stopped burst took the buffer, keep the still until one is back
+                mHeldStill = data;
+                mHeldStillName = fileName;
+                mHeldStillPressedAtMs = pressedAtMs;
+                mHeldStillRotation = rotation;
+            }
+        }
+        Log.d(TAG, "shutter took " + (shotAt - pressedAtMs) + " ms");
+        arm();
+        takePendingShot();
+    }
+
+    /**
+     * @return false while a held back still is waiting for a write buffer
+     */
+    private boolean saveHeldStill() {
+        if (mHeldStill == null) {
+            return true;
+        }
+        if (!mImageWriter.offer(mHeldStill, mHeldStill.length, mHeldStillName, mHeldStillPressedAtMs, mHeldStillRotation)) {
+            return false;
+        }
+        mHeldStill = null;
+        mHeldStillName = null;
+        return true;
+    }
+
+    private void startPreEvent() {
+        if (mPreEventMode) {
+            startEncoder(PRE_EVENT_SECONDS);
+        }
+    }
+
+    /**
+     * Starts encoding preview frames into a {@link PreEventRecorder}.
+     *
+     * @param preEventSeconds footage kept for the next clip, 0 to only encode for a clip
+     */
+    private void startEncoder(int preEventSeconds) {
+        if (mPreEventRecorder != null || mEngine == null || mPreviewHolder == null
+                || isRecording || mCameraBusy || !ensurePreviewFrames()) {
+            return;
+        }
+        Size previewSize = mPreviewSize;
+        int rotation = mDisplayOrientation;
+        PreEventRecorder recorder = new PreEventRecorder(mContext, mStorage, mStorageWatchdog, previewSize.width, previewSize.height,
+                rotation, preEventSeconds, mFragmentedOutput, new PreEventRecorder.Callback() {
+                    @Override
+                    public void onClipStarted(Uri videoUri, long startLatencyMs) {
+                        mHandler.post(CameraSessionController.this::motionRecordingStarted);
+                        mMetrics.record(Metric.RECORD_START_MS, startLatencyMs);
+                        mMainHandler.post(() -> mListener.onRecordingStarted(videoUri, startLatencyMs));
+                    }
+
+                    @Override
+                    public void onClipFinalized(Uri videoUri, long durationMs, long bytes, boolean success) {
+                        if (success) {
+                            catalogVideo(videoUri, durationMs, bytes, rotation);
+                        }
+                        mMainHandler.post(() -> {
+                            mListener.onRecordingStopped();
+                            mListener.onRecordingFinalized(videoUri, durationMs, bytes, success);
+                        });
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        postError(message);
+                    }
+                });
+        try {
+            recorder.start();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to start pre-event encoding", e);
+            recorder.release();
+            postError("Failed to start pre-event recording");
+            return;
+        }
+        mPreEventRecorder = recorder;
+        // offerFrame() copies the frame into the encoder input, no need to retain it
+        mPreEventConsumer = frame -> {
+            if (!recorder.offerFrame(frame.data, frame.timestampNs() / 1000)) {
+                mMetrics.countDroppedFrame();
+            }
+        };
+        frameDispatcher().addConsumer(mPreEventConsumer);
+    }
+
+    private void stopPreEvent() {
+        if (mPreEventRecorder == null) {
+            return;
+        }
+        if (mFrameDispatcher != null) {
+            mFrameDispatcher.removeConsumer(mPreEventConsumer);
+        }
+        mPreEventConsumer = null;
+        stopFrameDispatcherIfIdle();
+        // finishes an open clip
+        mPreEventRecorder.release();
+        mPreEventRecorder = null;
+    }
+
+    private void burst() {
+        if (mBurst != null) {
+            return;
+        }
+        if (mEngine == null || mPreviewHolder == null || isRecording || mCameraBusy || mPendingPfd != null) {
+            postError("Burst is not available while recording");
+            return;
+        }
+        if (!ensurePreviewFrames()) {
+            return;
+        }
+        // preview callbacks need the camera locked, a prepared recorder holds it
+        disarm();
+        BurstCapture burst = new BurstCapture(mImageWriter, BURST_ENCODERS, mDisplayOrientation, mMetrics,
+                (saved, dropped) -> {
+                    // shots pressed during the burst waited for it
+                    mHandler.post(this::takePendingShot);
+                    mMainHandler.post(() -> mListener.onBurstFinished(saved, dropped));
+                });
+        burst.start();
+        mBurst = burst;
+        frameDispatcher().addConsumer(burst);
+    }
+
+    private void startMotionAnalysis() {
+        if (!mMotionTrigger || mMotionStage != null || mEngine == null || mPreviewHolder == null
+                || isRecording || mCameraBusy || mPendingPfd != null || !ensurePreviewFrames()) {
+            return;
+        }
+        MotionDetector detector = new MotionDetector(new MotionDetector.Listener() {
+            @Override
+            public void onMotionStarted() {
+                mHandler.post(() -> onMotion(true));
+            }
+
+            @Override
+            public void onMotionStopped() {
+                mHandler.post(() -> onMotion(false));
+            }
+        });
+        mMotionStage = new FrameAnalysisStage(detector, "MotionAnalysis");
+        mMotionStage.start();
+        frameDispatcher().addConsumer(mMotionStage);
+    }
+
+    private void stopMotionAnalysis() {
+        if (mMotionStage == null) {
+            return;
+        }
+        if (mFrameDispatcher != null) {
+            mFrameDispatcher.removeConsumer(mMotionStage);
+        }
+        mMotionStage.stop();
+        Log.d(TAG, "motion analysis stopped, " + mMotionStage.analyzed() + " frames analyzed, "
+                + mMotionStage.dropped() + " skipped");
+        mMotionStage = null;
+        stopFrameDispatcherIfIdle();
+    }
+
+    private void onMotion(boolean motion) {
+        if (!mMotionTrigger) {
+            return;
+        }
+        Log.d(TAG, motion ? "motion started" : "motion stopped");
+        if (motion) {
+            if (isRecording || mPendingPfd != null) {
+                return;
+            }
+            mMotionStartPending = true;
+            record(SystemClock.elapsedRealtime());
+            if (!isRecording && mPendingPfd == null && mPreEventRecorder == null) {
+                // back to watching, the recording could not be started
+                mMotionStartPending = false;
+                startMotionAnalysis();
+            }
+        } else if (mMotionRecording || mMotionStartPending) {
+            stop();
+        }
+    }
+
+    /**
+     * Hands a recording motion asked for to the motion trigger, once the recorder runs.
+     */
+    private void motionRecordingStarted() {
+        if (!mMotionStartPending) {
+            return;
+        }
+        mMotionStartPending = false;
+        mMotionRecording = true;
+        if (mPreEventRecorder == null) {
+            // no frames reach the detector while the recorder has the camera
+            mHandler.postDelayed(mMotionClipTimeout, MOTION_CLIP_MS);
+        }
+    }
+
+    private void startFrameCounter() {
+        if (!mMetrics.isEnabled() || mFrameCounting || mEngine == null || mPreviewHolder == null
+                || isRecording || mCameraBusy || mPendingPfd != null || !ensurePreviewFrames()) {
+            return;
+        }
+        frameDispatcher().addConsumer(mFrameCounter);
+        mFrameCounting = true;
+    }
+
+    private void stopFrameCounter() {
+        if (!mFrameCounting) {
+            return;
+        }
+        if (mFrameDispatcher != null) {
+            mFrameDispatcher.removeConsumer(mFrameCounter);
+        }
+        mFrameCounting = false;
+        stopFrameDispatcherIfIdle();
+    }
+
+    private void endBurst() {
+        if (mBurst == null) {
+            return;
+        }
+        if (mFrameDispatcher != null) {
+            mFrameDispatcher.removeConsumer(mBurst);
+        }
+        // the workers finish the frames they already have and report
+        mBurst.stop();
+        mBurst = null;
+        stopFrameDispatcherIfIdle();
+        arm();
+    }
+
+    /**
+     * Returns the running preview frame dispatcher, starting one if needed. Its callback
+     * buffers are allocated once and reused until the last consumer is removed.
+     */
+    private PreviewFrameDispatcher frameDispatcher() {
+        if (mFrameDispatcher == null) {
+            // sized for both consumers, a burst may join a running pre-event encode
+            mFrameDispatcher = new PreviewFrameDispatcher(mCamera1.camera(), mPreviewSize.width, mPreviewSize.height,
+                    Math.max(PREVIEW_CALLBACK_BUFFERS, BURST_CALLBACK_BUFFERS));
+            if (mOpenRequestedAt != 0) {
+                // replaces the one-shot callback
+                mFrameDispatcher.addConsumer(mFirstFrameProbe);
+            }
+            mFrameDispatcher.start();
+        }
+        return mFrameDispatcher;
+    }
+
+    private void stopFrameDispatcherIfIdle() {
+        if (mFrameDispatcher != null && !mFrameDispatcher.hasConsumers()) {
+            releaseFrameDispatcher();
+        }
+    }
+
+    private void releaseFrameDispatcher() {
+        if (mFrameDispatcher != null) {
+            mFrameDispatcher.stop();
+            mFrameDispatcher = null;
+        }
+    }
+
+    private void onCameraReturned() {
+        mCameraBusy = false;
+        if (mEngine == null) {
+            return;
+        }
+        if (mReleasePending) {
+            mReleasePending = false;
+            releaseCamera();
+            return;
+        }
+        detachRecorder();
+        if (mPreviewHolder == null) {
+            // the surface went away during the recording
+            cancelPendingStart();
+            stopPreviewDisplay();
+            scheduleIdleRelease();
+            return;
+        }
+        if (mDeferredPreview != null) {
+            Runnable configure = mDeferredPreview;
+            mDeferredPreview = null;
+            cancelPendingStart();
+            // restarts the frame consumers and arms
+            configure.run();
+            return;
+        }
+        if (mPendingPfd != null) {
+            Uri videoUri = mPendingUri;
+            ParcelFileDescriptor pfd = mPendingPfd;
+            mPendingUri = null;
+            mPendingPfd = null;
+            if (prepareRecorder(videoUri, pfd)) {
+                startPreparedRecorder(mPendingPressedAtMs);
+            }
+            // a motion start that failed here goes back to watching
+            mMotionStartPending = false;
+            if (mContinuedSegment >= 0) {
+                // the stepped down recorder failed, the recording ends with the previous segment
+                mContinuedSegment = -1;
+                mMainHandler.post(mListener::onRecordingStopped);
+            }
+        }
+        startMotionAnalysis();
+        startFrameCounter();
+        arm();
+    }
+
+    private void detachPreviewSurface() {
+        mPreviewHolder = null;
+        mDeferredPreview = null;
+        mPendingShots.clear();
+        endBurst();
+        disarm();
+        stopMotionAnalysis();
+        stopFrameCounter();
+        stopPreEvent();
+        releaseFrameDispatcher();
+        if (isRecording || mCameraBusy) {
+            // the recorder holds the camera, a new surface is rebound or onCameraReturned() stops the preview
+            Log.d(TAG, "surface detached while recording, recording continues");
+            return;
+        }
+        stopPreviewDisplay();
+        scheduleIdleRelease();
+    }
+
+    private void stopPreviewDisplay() {
+        if (mEngine != null && mEngine.state() == CameraEngine.State.PREVIEW) {
+            mEngine.stopPreview();
+        }
+        mPreviewSize = null;
+    }
+
+    /**
+     * Gives the camera back to the preview once the recorder let go of it.
+     */
+    private void detachRecorder() {
+        if (mEngine != null && (mEngine.state() == CameraEngine.State.RECORDER_ATTACHED
+                || mEngine.state() == CameraEngine.State.RECORDING)) {
+            mEngine.detachRecorder();
+        }
+    }
+
+    private void scheduleIdleRelease() {
+        mHandler.removeCallbacks(mIdleRelease);
+        mHandler.postDelayed(mIdleRelease, mIdleReleaseMs);
+    }
+
+    private void releaseIfIdle() {
+        if (mPreviewHolder != null || isRecording || mCameraBusy) {
+            // re-attached, or onCameraReturned() schedules it again
+            return;
+        }
+        Log.d(TAG, "camera idle for " + mIdleReleaseMs + " ms, releasing it");
+        mOutputPool.clear();
+        releaseCamera();
+    }
+
+    private void cancelPendingStart() {
+        if (mPendingPfd != null) {
+            try {
+                mPendingPfd.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mPendingUri = null;
+        mPendingPfd = null;
+        mMotionStartPending = false;
+        if (mContinuedSegment >= 0) {
+            // the recording ends with the previous segment
+            mContinuedSegment = -1;
+            mMainHandler.post(mListener::onRecordingStopped);
+        }
+    }
+
+    private void releaseMediaRecorder() {
+        if (mMediaRecorder != null) {
+            mMediaRecorder.reset();
+            mMediaRecorder.release();
+            mMediaRecorder = null;
+            detachRecorder();
+        }
+        isRecording = false;
+        mPrepared = false;
+        mOutputPooled = false;
+        if (mNextSegment != null) {
+            mOutputPool.discard(mNextSegment);
+            mNextSegment = null;
+        }
+        closeOutput();
+        mOutputUri = null;
+    }
+
+    private void closeOutput() {
+        if (mOutputPfd != null) {
+            try {
+                mOutputPfd.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mOutputPfd = null;
+        }
+    }
+
+    private void releaseCamera() {
+        mHandler.removeCallbacks(mIdleRelease);
+        closeEngine();
+        mOpenRequestedAt = 0;
+    }
+
+    private void closeEngine() {
+        if (mEngine != null) {
+            mEngine.close();
+            mEngine = null;
+            mCamera1 = null;
+        }
+        mPreviewSize = null;
+    }
+
+    private void postTraced(String section, Runnable command) {
+        mHandler.post(() -> {
+            Trace.beginSection(section);
+            try {
+                command.run();
+            } finally {
+                Trace.endSection();
+            }
+        });
+    }
+
+    private void postError(String message) {
+        mMainHandler.post(() -> mListener.onError(message));
+    }
+}
@@ -0,0 +1,165 @@
+package com.isafemobile.cameratest;
+
+import android.app.Application;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.AndroidViewModel;
+
+import java.io.File;
+
+/**
+ * Keeps the {@link CameraSessionController} alive across configuration changes, so a
+ * rotation does not reopen the camera or stop a recording. Controller callbacks are
+ * forwarded to the attached activity; the ones arriving while no activity is attached are
+ * dropped, the recording state is kept for the next one.
+ * <p>
+ * Also owns the {@link ThumbnailLoader}, which creates the thumbnail of every new capture
+ * as soon as it is saved.
+ */
+public class CameraSessionViewModel extends AndroidViewModel implements CameraSessionController.Listener {
+
+    private final DocumentStorage mDocumentStorage;
+    private final CameraSessionController mSessionController;
+    private final ThumbnailLoader mThumbnails;
+    // only touched on the main thread
+    private CameraSessionController.Listener mListener;
+    private boolean isRecording = false;
+
+    public CameraSessionViewModel(@NonNull Application application) {
+        super(application);
+        mDocumentStorage = new DocumentStorage(application);
+        mSessionController = new CameraSessionController(application, mDocumentStorage, this);
+        mThumbnails = new ThumbnailLoader(application);
+    }
+
+    public CameraSessionController controller() {
+        return mSessionController;
+    }
+
+    public DocumentStorage storage() {
+        return mDocumentStorage;
+    }
+
+    public ThumbnailLoader thumbnails() {
+        return mThumbnails;
+    }
+
+    /**
+     * @return the catalog entry of a capture, or null if it was not cataloged
+     */
+    public MediaCatalog.Entry catalogEntry(Uri uri) {
+        return mSessionController.mediaCatalog().get(uri.toString());
+    }
+
+    private void prefetchThumbnail(Uri uri) {
+        MediaCatalog.Entry entry = catalogEntry(uri);
+        if (entry != null) {
+            mThumbnails.prefetch(entry);
+        }
+    }
+
+    public boolean isRecording() {
+        return isRecording;
+    }
+
+    public void attach(CameraSessionController.Listener listener) {
+        mListener = listener;
+    }
+
+    public void detach(CameraSessionController.Listener listener) {
+        if (mListener == listener) {
+            mListener = null;
+        }
+    }
+
+    @Override
+    protected void onCleared() {
+        mListener = null;
+        mSessionController.quit();
+        mThumbnails.quit();
+    }
+
+    @Override
+    public void onCameraOpened() {
+        if (mListener != null) {
+            mListener.onCameraOpened();
+        }
+    }
+
+    @Override
+    public void onFirstPreviewFrame(long openToFirstFrameMs) {
+        if (mListener != null) {
+            mListener.onFirstPreviewFrame(openToFirstFrameMs);
+        }
+    }
+
+    @Override
+    public void onRecordingStarted(Uri videoUri, long startLatencyMs) {
+        isRecording = true;
+        if (mListener != null) {
+            mListener.onRecordingStarted(videoUri, startLatencyMs);
+        }
+    }
+
+    @Override
+    public void onRecordingStopped() {
+        isRecording = false;
+        if (mListener != null) {
+            mListener.onRecordingStopped();
+        }
+    }
+
+    @Override
+    public void onRecordingFinalized(Uri videoUri, long durationMs, long bytes, boolean success) {
+        if (success) {
+            prefetchThumbnail(videoUri);
+        }
+        if (mListener != null) {
+            mListener.onRecordingFinalized(videoUri, durationMs, bytes, success);
+        }
+    }
+
+    @Override
+    public void onImageUriCreated(Uri imageUri) {
+        if (mListener != null) {
+            mListener.onImageUriCreated(imageUri);
+        }
+    }
+
+    @Override
+    public void onImageSaved(Uri imageUri, long bytes, long shotToSavedMs) {
+        prefetchThumbnail(imageUri);
+        if (mListener != null) {
+            mListener.onImageSaved(imageUri, bytes, shotToSavedMs);
+        }
+    }
+
+    @Override
+    public void onStillCaptureUnavailable() {
+        if (mListener != null) {
+            mListener.onStillCaptureUnavailable();
+        }
+    }
+
+    @Override
+    public void onBurstFinished(int saved, long dropped) {
+        if (mListener != null) {
+            mListener.onBurstFinished(saved, dropped);
+        }
+    }
+
+    @Override
+    public void onMetricsExported(File file) {
+        if (mListener != null) {
+            mListener.onMetricsExported(file);
+        }
+    }
+
+    @Override
+    public void onError(String message) {
+        if (mListener != null) {
+            mListener.onError(message);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.isafemobile.cameratest;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates capture files below the SAF tree the user picked. The document ids of the tree
+ * and of its "Images"/"Videos" subfolders are resolved once and cached, so creating a
+ * file is a single {@link DocumentsContract#createDocument} call instead of re-creating
+ * the folder (which makes many providers add "Videos (1)", "Videos (2)", ...) every time.
+ * <p>
+ * The cache is dropped when {@link #PREF_FILE_STORAGE_URI} changes or when a cached
+ * folder turns out to be gone.
+ */
+public class DocumentStorage implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String TAG = "IsafeCameratest";
+
+    public static final String PREFERENCES = "com.isafemobile.cameratest";
+    public static final String PREF_FILE_STORAGE_URI = "filestorageuri";
+
+    public static final String IMAGES = "Images";
+    public static final String VIDEOS = "Videos";
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPreferences;
+
+    // Guarded by this
+    private Uri mTreeUri;
+    private final Map<String, Uri> mDirectories = new HashMap<>();
+
+    public DocumentStorage(Context context) {
+        mResolver = context.getApplicationContext().getContentResolver();
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        // SharedPreferences only keeps a weak reference, the owner of this object keeps it alive
+        mPreferences.registerOnSharedPreferenceChangeListener(this);
+        setTreeUri(mPreferences.getString(PREF_FILE_STORAGE_URI, null));
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (PREF_FILE_STORAGE_URI.equals(key)) {
+            setTreeUri(sharedPreferences.getString(PREF_FILE_STORAGE_URI, null));
+        }
+    }
+
+    private synchronized void setTreeUri(String treeUri) {
+        Uri uri = treeUri != null ? Uri.parse(treeUri) : null;
+        if (uri == null ? mTreeUri != null : !uri.equals(mTreeUri)) {
+            Log.d(TAG, "DocumentStorage, tree changed to " + uri);
+            mTreeUri = uri;
+            mDirectories.clear();
+        }
+    }
+
+    public synchronized Uri getTreeUri() {
+        return mTreeUri;
+    }
+
+    public synchronized void invalidate() {
+        mDirectories.clear();
+    }
+
+    /**
+     * Creates a new document in the given subfolder of the tree, creating the folder on first use.
+     *
+     * @return the document uri, or null if the tree is not set or the provider refused
+     */
+    public Uri createFile(String directory, String mimeType, String displayName) {
+        // One retry with a freshly resolved folder in case the cached one is stale
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Uri dirUri = getDirectory(directory);
+            if (dirUri == null) {
+                return null;
+            }
+            try {
+                Uri documentUri = DocumentsContract.createDocument(mResolver, dirUri, mimeType, displayName);
+                if (documentUri != null) {
+                    return documentUri;
+                }
+            } catch (FileNotFoundException | IllegalArgumentException | IllegalStateException | SecurityException e) {
+                Log.w(TAG, "createDocument failed in " + dirUri, e);
+            }
+            invalidateDirectory(directory, dirUri);
+        }
+        return null;
+    }
+
+    /**
+     * @return the cached document uri of the subfolder, resolving or creating it if needed
+     */
+    public synchronized Uri getDirectory(String directory) {
+        Uri dirUri = mDirectories.get(directory);
+        if (dirUri != null || mTreeUri == null) {
+            return dirUri;
+        }
+        String treeDocumentId = DocumentsContract.getTreeDocumentId(mTreeUri);
+        dirUri = findChildDirectory(treeDocumentId, directory);
+        if (dirUri == null) {
+            Uri treeDocumentUri = DocumentsContract.buildDocumentUriUsingTree(mTreeUri, treeDocumentId);
+            try {
+                dirUri = DocumentsContract.createDocument(mResolver, treeDocumentUri,
+                        DocumentsContract.Document.MIME_TYPE_DIR, directory);
+            } catch (FileNotFoundException | IllegalArgumentException | IllegalStateException | SecurityException e) {
+                Log.e(TAG, "Failed to create directory " + directory, e);
+            }
+        }
+        if (dirUri != null) {
+            mDirectories.put(directory, dirUri);
+        }
+        return dirUri;
+    }
+
+    private synchronized void invalidateDirectory(String directory, Uri dirUri) {
+        if (dirUri.equals(mDirectories.get(directory))) {
+            mDirectories.remove(directory);
+        }
+    }
+
+    /**
+     * Lists the files of a subfolder with a single provider query.
+     */
+    public List<SegmentQuota.Entry> listFiles(String directory) {
+        List<SegmentQuota.Entry> files = new ArrayList<>();
+        Uri dirUri = getDirectory(directory);
+        Uri treeUri = getTreeUri();
+        if (dirUri == null || treeUri == null) {
+            return files;
+        }
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, DocumentsContract.getDocumentId(dirUri));
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_SIZE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+                DocumentsContract.Document.COLUMN_MIME_TYPE
+        };
+        try (Cursor cursor = mResolver.query(childrenUri, projection, null, null, null)) {
+            if (cursor == null) {
+                return files;
+            }
+            while (cursor.moveToNext()) {
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(4))) {
+                    continue;
+                }
+                files.add(new SegmentQuota.Entry(cursor.getString(0), cursor.getString(1),
+                        cursor.isNull(2) ? 0 : cursor.getLong(2), cursor.isNull(3) ? 0 : cursor.getLong(3)));
+            }
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Failed to list " + childrenUri, e);
+        }
+        return files;
+    }
+
+    /**
+     * @return the uri of a document returned by {@link #listFiles}, or null without a tree
+     */
+    public Uri documentUri(String documentId) {
+        Uri treeUri = getTreeUri();
+        return treeUri != null ? DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId) : null;
+    }
+
+    public boolean delete(String documentId) {
+        Uri treeUri = getTreeUri();
+        if (treeUri == null) {
+            return false;
+        }
+        try {
+            return DocumentsContract.deleteDocument(mResolver, DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId));
+        } catch (FileNotFoundException | IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Failed to delete " + documentId, e);
+            return false;
+        }
+    }
+
+    private Uri findChildDirectory(String parentDocumentId, String displayName) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(mTreeUri, parentDocumentId);
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_MIME_TYPE
+        };
+        try (Cursor cursor = mResolver.query(childrenUri, projection, null, null, null)) {
+            if (cursor == null) {
+                return null;
+            }
+            while (cursor.moveToNext()) {
+                if (displayName.equals(cursor.getString(1))
+                        && DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                    return DocumentsContract.buildDocumentUriUsingTree(mTreeUri, cursor.getString(0));
+                }
+            }
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Failed to list " + childrenUri, e);
+        }
+        return null;
+    }
+}
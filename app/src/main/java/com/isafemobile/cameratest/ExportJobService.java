@@ -0,0 +1,180 @@
+package com.isafemobile.cameratest;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Exports finished captures to an HTTP endpoint in the background. Captures are queued as
+ * they are saved and uploaded by a job that only runs on an unmetered network while the
+ * device is charging; an upload cut off by the job being stopped resumes from the server's
+ * offset the next time. The endpoint is fixed at build time, see {@link BuildConfig#EXPORT_ENDPOINT};
+ * nothing is queued without one.
+ */
+public class ExportJobService extends JobService {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final int JOB_ID = 1;
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final int CONCURRENCY = 2;
+
+    private static ExportQueue sQueue;
+    // an export runs in this process; guarded by the class lock
+    private static boolean sRunning;
+
+    private Thread mThread;
+
+    /**
+     * Shared by the capture side and the job, both may run in the same process.
+     */
+    static synchronized ExportQueue queue(Context context) {
+        if (sQueue == null) {
+            sQueue = new ExportQueue(new File(context.getApplicationContext().getFilesDir(), "export.queue"));
+        }
+        return sQueue;
+    }
+
+    /**
+     * @return base url of the uploads, null if exporting is off
+     */
+    private static String endpoint() {
+        return BuildConfig.EXPORT_ENDPOINT.isEmpty() ? null : BuildConfig.EXPORT_ENDPOINT;
+    }
+
+    /**
+     * Queues a saved capture for export. Touches the disk, call it on a background thread.
+     */
+    public static void enqueue(Context context, Uri uri) {
+        if (endpoint() == null) {
+            return;
+        }
+        try {
+            queue(context).add(uri.toString(), displayName(uri));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to queue " + uri + " for export", e);
+            return;
+        }
+        schedule(context);
+    }
+
+    private static synchronized void schedule(Context context) {
+        // scheduling again would stop a running export, which checks the queue before it finishes;
+        // a job that is only pending is replaced by the same one
+        if (sRunning) {
+            return;
+        }
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, ExportJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    /**
+     * @return the file name of a document, its id ends in the path within the tree
+     */
+    private static String displayName(Uri uri) {
+        String documentId = DocumentsContract.getDocumentId(uri);
+        return documentId.substring(documentId.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        String endpoint = endpoint();
+        if (endpoint == null) {
+            return false;
+        }
+        Exporter exporter = new Exporter(queue(this), this::open, endpoint, CHUNK_BYTES, CONCURRENCY,
+                (item, bytesSent, error) -> {
+                    if (error != null) {
+                        Log.w(TAG, "Failed to export " + item.uri, error);
+                    } else {
+                        Log.d(TAG, "exported " + item.name + ", " + bytesSent + " bytes sent");
+                    }
+                });
+        synchronized (ExportJobService.class) {
+            sRunning = true;
+        }
+        mThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean drained;
+            try {
+                drained = exporter.run();
+            } catch (InterruptedException e) {
+                // stopped, onStopJob asked for a reschedule
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read the export queue", e);
+                drained = false;
+            }
+            finish(params, drained);
+        }, "Exporter");
+        mThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // charger or unmetered network gone; uploads stop after their current chunk
+        mThread.interrupt();
+        synchronized (ExportJobService.class) {
+            sRunning = false;
+        }
+        return true;
+    }
+
+    /**
+     * Items queued while the export ran past them are picked up by a rescheduled job; the
+     * check and the end of the export are atomic with {@link #schedule}.
+     */
+    private void finish(JobParameters params, boolean drained) {
+        // failed uploads are retried with the scheduler's backoff
+        boolean reschedule = !drained;
+        synchronized (ExportJobService.class) {
+            if (drained) {
+                try {
+                    reschedule = queue(this).size() > 0;
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read the export queue", e);
+                    reschedule = true;
+                }
+            }
+            sRunning = false;
+        }
+        jobFinished(params, reschedule);
+    }
+
+    /**
+     * Streams from the document's descriptor, the file is never read into memory.
+     */
+    private FileChannel open(ExportQueue.Item item) throws IOException {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = getContentResolver().openFileDescriptor(Uri.parse(item.uri), "r");
+        } catch (SecurityException e) {
+            // the tree was revoked, the file can't be exported any more
+            throw new FileNotFoundException(item.uri + ": " + e.getMessage());
+        }
+        if (pfd == null) {
+            throw new FileNotFoundException(item.uri);
+        }
+        // closing the channel closes the stream and with it the descriptor
+        return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+    }
+}
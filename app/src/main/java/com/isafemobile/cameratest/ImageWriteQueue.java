@@ -0,0 +1,132 @@
+package com.isafemobile.cameratest;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Writes JPEGs to the "Images" folder on a background thread so the camera can take the
+ * next shot right away. The queue holds a fixed number of reusable buffers; when all of
+ * them are waiting for storage {@link #offer} refuses the image and the caller has to hold
+ * back further shots until {@link Callback#onBufferAvailable()}. Saved images are added to
+ * the {@link MediaCatalog}.
+ */
+public class ImageWriteQueue {
+
+    private static final String TAG = "IsafeCameratest";
+
+    public interface Callback {
+        /**
+         * @param shotToSavedMs time from the shot request to the file being complete
+         */
+        void onImageSaved(Uri imageUri, long bytes, long shotToSavedMs);
+
+        void onImageFailed(String message);
+
+        void onBufferAvailable();
+    }
+
+    private final DocumentStorage mStorage;
+    private final ContentResolver mResolver;
+    private final Callback mCallback;
+    private final ArrayBlockingQueue<byte[]> mFreeBuffers;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final MetricsRecorder mMetrics;
+    private final MediaCatalog mCatalog;
+
+    public ImageWriteQueue(DocumentStorage storage, ContentResolver resolver, int buffers, MetricsRecorder metrics,
+                           MediaCatalog catalog, Callback callback) {
+        mStorage = storage;
+        mMetrics = metrics;
+        mCatalog = catalog;
+        mResolver = resolver;
+        mCallback = callback;
+        mFreeBuffers = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            // grown to the JPEG size on first use and kept afterwards
+            mFreeBuffers.add(new byte[0]);
+        }
+        mThread = new HandlerThread("ImageWriter");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public boolean hasFreeBuffer() {
+        return !mFreeBuffers.isEmpty();
+    }
+
+    /**
+     * Copies the JPEG into a pooled buffer and queues it for writing.
+     *
+     * @param shotAtMs {@link SystemClock#elapsedRealtime()} when the shot was requested
+     * @param rotation clockwise degrees to show the image upright, {@link MediaCatalog#UNKNOWN}
+     *                 if the JPEG carries its orientation
+     * @return false if all buffers are in use, the image is not queued then
+     */
+    public boolean offer(byte[] jpeg, int length, String fileName, long shotAtMs, int rotation) {
+        byte[] buffer = mFreeBuffers.poll();
+        if (buffer == null) {
+            return false;
+        }
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        System.arraycopy(jpeg, 0, buffer, 0, length);
+        byte[] queued = buffer;
+        mHandler.post(() -> write(queued, length, fileName, shotAtMs, rotation));
+        return true;
+    }
+
+    public void quit() {
+        mThread.quitSafely();
+    }
+
+    private void write(byte[] buffer, int length, String fileName, long shotAtMs, int rotation) {
+        Trace.beginSection("saveImage");
+        Uri imageUri = mStorage.createFile(DocumentStorage.IMAGES, "image/jpeg", fileName);
+        boolean saved = false;
+        if (imageUri != null) {
+            long openedAt = SystemClock.elapsedRealtime();
+            try (ParcelFileDescriptor pfd = mResolver.openFileDescriptor(imageUri, "w")) {
+                if (pfd != null) {
+                    try (FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+                        out.write(buffer, 0, length);
+                        saved = true;
+                    }
+                }
+            } catch (IOException | SecurityException e) {
+                Log.e(TAG, "Failed to write " + imageUri, e);
+                mStorage.invalidate();
+            }
+            if (saved) {
+                mMetrics.recordRate(Metric.IMAGE_WRITE_BYTES_PER_SEC, length, SystemClock.elapsedRealtime() - openedAt);
+            }
+        }
+        Trace.endSection();
+        mFreeBuffers.offer(buffer);
+        mCallback.onBufferAvailable();
+        if (saved) {
+            long shotToSavedMs = SystemClock.elapsedRealtime() - shotAtMs;
+            mMetrics.record(Metric.SHOT_TO_SAVED_MS, shotToSavedMs);
+            try {
+                mCatalog.add(new MediaCatalog.Entry(imageUri.toString(), MediaCatalog.TYPE_IMAGE,
+                        System.currentTimeMillis() - shotToSavedMs, 0, length, rotation));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to catalog " + imageUri, e);
+            }
+            mCallback.onImageSaved(imageUri, length, shotToSavedMs);
+        } else {
+            mCallback.onImageFailed("Failed to save image");
+        }
+    }
+}
@@ -8,17 +8,12 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
-import android.hardware.Camera;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraManager;
-import android.media.CamcorderProfile;
-import android.media.MediaRecorder;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.Display;
@@ -28,6 +23,9 @@ import android.view.SurfaceView;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.ImageView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResult;
@@ -38,10 +36,9 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import androidx.documentfile.provider.DocumentFile;
+import androidx.lifecycle.ViewModelProvider;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -52,20 +49,41 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 
-public class MainActivity extends AppCompatActivity implements SurfaceHolder.Callback {
+public class MainActivity extends AppCompatActivity implements SurfaceHolder.Callback, CameraSessionController.Listener {
 
-    private Camera mCamera;
+    private CameraSessionViewModel mSessionViewModel;
+    private CameraSessionController mSessionController;
+    private DocumentStorage mDocumentStorage;
     private SurfaceView mSurfaceView;
     private SurfaceHolder mSurfaceHolder;
-    private MediaRecorder mMediaRecorder;
+    private CheckBox mArmedCheckBox;
+    private CheckBox mPreEventCheckBox;
+    private CheckBox mSegmentedCheckBox;
+    private CheckBox mLoopCheckBox;
     private boolean isRecording = false;
+    private boolean isBursting = false;
+    private TextView mMetricsOverlay;
+    private ImageView mThumbnailView;
+    // catalog entry of the thumbnail being loaded into mThumbnailView
+    private MediaCatalog.Entry mThumbnailEntry;
+    private final ThumbnailLoader.Callback mShowThumbnail = (uri, thumbnail) -> {
+        if (mThumbnailEntry != null && mThumbnailEntry.uri.equals(uri)) {
+            mThumbnailEntry = null;
+            mThumbnailView.setImageBitmap(thumbnail);
+        }
+    };
+    private long mOverlayFrames;
+    private long mOverlayUpdatedAt;
 
     private ActivityResultLauncher<Intent> launcher; // Initialise this object in Activity.onCreate()
     private Uri baseDocumentTreeUri;
     String filePath;
 
     private static final String TAG = "IsafeCameratest";
-    private String timeStamp;
+
+    private static final long SEGMENT_DURATION_MS = 5 * 60 * 1000;
+    private static final long LOOP_BUDGET_BYTES = 8L * 1024 * 1024 * 1024;
+    private static final long METRICS_OVERLAY_INTERVAL_MS = 1000;
 
     private static final int REQUEST_CAMERA_PERMISSION = 200;
     private static final int REQUEST_RECORD_AUDIO_PERMISSION = 201;
@@ -76,20 +94,26 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         CAMERA_CANDIDATES.add("net.sourceforge.opencamera");
     }
 
-    private CameraCharacteristics mCameraCharacteristics;
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // survives rotation, the camera and a running recording stay open
+        mSessionViewModel = new ViewModelProvider(this).get(CameraSessionViewModel.class);
+        mSessionViewModel.attach(this);
+        mDocumentStorage = mSessionViewModel.storage();
+        mSessionController = mSessionViewModel.controller();
+        isRecording = mSessionViewModel.isRecording();
+
         mSurfaceView = findViewById(R.id.surfaceView);
         mSurfaceHolder = mSurfaceView.getHolder();
         mSurfaceHolder.addCallback(this);
+        mThumbnailView = findViewById(R.id.thumbnailView);
 
         Button captureButton = findViewById(R.id.captureButton);
-        SharedPreferences preferences = getSharedPreferences("com.isafemobile.cameratest", Context.MODE_PRIVATE);
-        String filestorageuri = preferences.getString("filestorageuri", null);
+        SharedPreferences preferences = getSharedPreferences(DocumentStorage.PREFERENCES, Context.MODE_PRIVATE);
+        String filestorageuri = preferences.getString(DocumentStorage.PREF_FILE_STORAGE_URI, null);
         baseDocumentTreeUri = filestorageuri != null ? Uri.parse(filestorageuri) : null;
         Log.d(TAG, "onCreate, baseDocumentTreeUri is " + baseDocumentTreeUri);
         captureButton.setOnClickListener(new View.OnClickListener() {
@@ -106,6 +130,7 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
                 }
             }
         });
+        updateButtonState();
 
         Button captureImageButton = findViewById(R.id.captureImageButton);
         captureImageButton.setOnClickListener(new View.OnClickListener() {
@@ -118,6 +143,79 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
                 }
             }
         });
+        // Long press still offers the external camera apps
+        captureImageButton.setOnLongClickListener(v -> {
+            if (baseDocumentTreeUri == null) {
+                launchBaseDirectoryPicker();
+            } else {
+                mSessionController.createImageUri();
+            }
+            return true;
+        });
+
+        Button burstButton = findViewById(R.id.burstButton);
+        burstButton.setOnClickListener(v -> {
+            if (baseDocumentTreeUri == null) {
+                launchBaseDirectoryPicker();
+            } else if (isBursting) {
+                isBursting = false;
+                burstButton.setText("Burst");
+                mSessionController.stopBurst();
+            } else {
+                isBursting = true;
+                burstButton.setText("Stop burst");
+                mSessionController.startBurst();
+            }
+        });
+
+        mArmedCheckBox = findViewById(R.id.armedCheckBox);
+        mArmedCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> mSessionController.setArmed(isChecked));
+        mPreEventCheckBox = findViewById(R.id.preEventCheckBox);
+        mPreEventCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> mSessionController.setPreEventMode(isChecked));
+        CheckBox motionCheckBox = findViewById(R.id.motionCheckBox);
+        motionCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isChecked && baseDocumentTreeUri == null) {
+                buttonView.setChecked(false);
+                launchBaseDirectoryPicker();
+            } else {
+                mSessionController.setMotionTrigger(isChecked);
+            }
+        });
+        mSegmentedCheckBox = findViewById(R.id.segmentedCheckBox);
+        mLoopCheckBox = findViewById(R.id.loopCheckBox);
+        mSegmentedCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (!isChecked) {
+                // looping needs segments
+                mLoopCheckBox.setChecked(false);
+            }
+            updateSegmentation();
+        });
+        mLoopCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isChecked) {
+                mSegmentedCheckBox.setChecked(true);
+            }
+            updateSegmentation();
+        });
+
+        mMetricsOverlay = findViewById(R.id.metricsOverlay);
+        // tap the overlay to save a snapshot
+        mMetricsOverlay.setOnClickListener(v -> mSessionController.exportMetrics());
+        CheckBox metricsCheckBox = findViewById(R.id.metricsCheckBox);
+        metricsCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            mSessionController.setMetricsEnabled(isChecked);
+            mMetricsOverlay.removeCallbacks(mUpdateMetricsOverlay);
+            if (isChecked) {
+                mOverlayFrames = 0;
+                mOverlayUpdatedAt = SystemClock.elapsedRealtime();
+                mMetricsOverlay.setText("");
+                mMetricsOverlay.setVisibility(View.VISIBLE);
+                mMetricsOverlay.postDelayed(mUpdateMetricsOverlay, METRICS_OVERLAY_INTERVAL_MS);
+            } else {
+                mMetricsOverlay.setVisibility(View.GONE);
+            }
+        });
+        CheckBox fragmentedCheckBox = findViewById(R.id.fragmentedCheckBox);
+        fragmentedCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> mSessionController.setFragmentedOutput(isChecked));
 
         requestPermissions();
 
@@ -129,7 +227,7 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
                     final int takeFlags = (Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
                     // take persistable Uri Permission for future use
                     getContentResolver().takePersistableUriPermission(result.getData().getData(), takeFlags);
-                    preferences.edit().putString("filestorageuri", result.getData().getData().toString()).apply();
+                    preferences.edit().putString(DocumentStorage.PREF_FILE_STORAGE_URI, result.getData().getData().toString()).apply();
                     Log.d(TAG, "ActivityResult, baseDocumentTreeUri is " + baseDocumentTreeUri.getPath());
                     startRecording();
                 } else {
@@ -156,21 +254,6 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         }
     }
 
-    Uri getImageUri() {
-        // Retrieve the DocumentFile instance for the baseDocumentTreeUri
-        DocumentFile baseDocumentTree = DocumentFile.fromTreeUri(this, baseDocumentTreeUri);
-
-        // Create a directory named "Images" if it doesn't exist
-        DocumentFile imagesDir = baseDocumentTree.createDirectory("Images");
-
-        // Create the image file
-        String fileName = "IMG_" + timeStamp + ".jpg";
-        DocumentFile imageDocumentFile = imagesDir.createFile("image/jpeg", fileName);
-
-        // Get the content URI for the created image file
-        return imageDocumentFile.getUri();
-    }
-
     private Intent enhanceCameraIntent(Context context, Intent baseIntent) {
         PackageManager pm = context.getPackageManager();
         List<Intent> cameraIntents = new ArrayList<>();
@@ -198,17 +281,7 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
     }
 
     private void captureImage() {
-        timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-        Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-        intent.putExtra(MediaStore.EXTRA_OUTPUT, getImageUri());
-        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
-        Intent cameraIntent = enhanceCameraIntent(this, intent);
-        this.startActivityForResult(cameraIntent, 666);
-
-/*
-        if (mCamera != null) {
-            mCamera.takePicture(null, null, pictureCallback);
-        }*/
+        mSessionController.takePicture(SystemClock.elapsedRealtime());
     }
 
     @Override
@@ -217,93 +290,42 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         super.onActivityResult(requestCode, resultCode, intent);
     }
 
-    Camera.PictureCallback pictureCallback = new Camera.PictureCallback() {
-        @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            if (data != null) {
-                saveImage(data);
-            }
-            // Restart the preview after capturing the image
-            mCamera.startPreview();
-        }
-    };
-
-    private void saveImage(byte[] data) {
-        // Get the content URI for the created image file
-        Uri imageUri = getImageUri();
-
-        try {
-            // Write the image data to the output stream
-            OutputStream outputStream = getContentResolver().openOutputStream(imageUri);
-            outputStream.write(data);
-            outputStream.close();
-            Toast.makeText(MainActivity.this, "Image saved successfully", Toast.LENGTH_SHORT).show();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Toast.makeText(MainActivity.this, "Failed to save image", Toast.LENGTH_SHORT).show();
-        }
-    }
-
     private void startRecording() {
-        Log.d(TAG, "startRecording");
-        if (mCamera == null) {
-            return;
-        }
-
-        mMediaRecorder = new MediaRecorder();
-        mCamera.unlock();
-        mMediaRecorder.setCamera(mCamera);
-
-        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
-        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-
-        mMediaRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH));
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-
-        // Retrieve the DocumentFile instance for the baseDocumentTreeUri
-        DocumentFile baseDocumentTree = DocumentFile.fromTreeUri(this, baseDocumentTreeUri);
-
-        // Create a directory named "Videos" if it doesn't exist
-        DocumentFile videosDir = baseDocumentTree.createDirectory("Videos");
-        // Create the video file
-        String fileName = "VID_" + timeStamp + ".mp4";
-        DocumentFile videoDocumentFile = videosDir.createFile("video/mp4", fileName);
-        // Get the content URI for the created video file
-        Uri videoUri = videoDocumentFile.getUri();
-
-        // Get the file descriptor for the video file
-        ParcelFileDescriptor pfd;
-        try {
-            pfd = getContentResolver().openFileDescriptor(videoUri, "rw");
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return;
-        }
+        mSessionController.startRecording(SystemClock.elapsedRealtime());
+    }
 
-        mMediaRecorder.setOutputFile(pfd.getFileDescriptor());
-        mMediaRecorder.setPreviewDisplay(mSurfaceHolder.getSurface());
+    private void stopRecording() {
+        mSessionController.stopRecording();
+    }
 
-        try {
-            mMediaRecorder.prepare();
-            mMediaRecorder.start();
-            isRecording = true;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        updateButtonState();
+    private void updateSegmentation() {
+        boolean segmented = mSegmentedCheckBox.isChecked();
+        mSessionController.setSegmentation(segmented ? SEGMENT_DURATION_MS : 0, 0,
+                segmented && mLoopCheckBox.isChecked() ? LOOP_BUDGET_BYTES : 0);
     }
 
-    private void stopRecording() {
-        if (isRecording && mMediaRecorder != null) {
-            mMediaRecorder.stop();
-            mMediaRecorder.reset();
-            mMediaRecorder.release();
-            mMediaRecorder = null;
-            mCamera.lock();
-            isRecording = false;
-            updateButtonState();
+    private final Runnable mUpdateMetricsOverlay = new Runnable() {
+        @Override
+        public void run() {
+            MetricsRecorder metrics = mSessionController.metrics();
+            long now = SystemClock.elapsedRealtime();
+            long frames = metrics.frames();
+            float fps = (frames - mOverlayFrames) * 1000f / Math.max(1, now - mOverlayUpdatedAt);
+            mOverlayFrames = frames;
+            mOverlayUpdatedAt = now;
+            LatencyHistogram.Snapshot open = metrics.snapshot(Metric.CAMERA_OPEN_MS);
+            LatencyHistogram.Snapshot firstFrame = metrics.snapshot(Metric.FIRST_PREVIEW_FRAME_MS);
+            LatencyHistogram.Snapshot recordStart = metrics.snapshot(Metric.RECORD_START_MS);
+            LatencyHistogram.Snapshot shotToSaved = metrics.snapshot(Metric.SHOT_TO_SAVED_MS);
+            long remainingMs = mSessionController.remainingRecordingMs();
+            String remaining = remainingMs == Long.MAX_VALUE ? "?" : (remainingMs / 60000) + " min";
+            mMetricsOverlay.setText(String.format(Locale.US,
+                    "fps %.1f  dropped %d\nopen p50 %d ms  first frame p50 %d ms\nrecord start p50 %d ms\nshot to saved p50 %d p99 %d ms\nstorage for %s",
+                    fps, metrics.droppedFrames(), open.p50, firstFrame.p50, recordStart.p50,
+                    shotToSaved.p50, shotToSaved.p99, remaining));
+            mMetricsOverlay.postDelayed(this, METRICS_OVERLAY_INTERVAL_MS);
         }
-    }
+    };
 
     private void updateButtonState() {
         Button captureButton = findViewById(R.id.captureButton);
@@ -314,89 +336,103 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         }
     }
 
-    private void releaseMediaRecorder() {
-        if (mMediaRecorder != null) {
-            mMediaRecorder.reset();
-            mMediaRecorder.release();
-            mMediaRecorder = null;
-            mCamera.lock();
-        }
+    @Override
+    public void onCameraOpened() {
+        Log.d(TAG, "onCameraOpened");
     }
 
-    private void releaseCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
-        }
+    @Override
+    public void onFirstPreviewFrame(long openToFirstFrameMs) {
+        Log.d(TAG, "onFirstPreviewFrame, " + openToFirstFrameMs + " ms after opening the camera");
     }
 
     @Override
-    public void surfaceCreated(@NonNull SurfaceHolder holder) {
-        try {
-            mCamera = Camera.open();
-            mCamera.setPreviewDisplay(mSurfaceHolder);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        CameraManager cameraManager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
-        try {
-            for (String cameraId : cameraManager.getCameraIdList()) {
-                CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
-                if (cameraCharacteristics.get(CameraCharacteristics.LENS_FACING) == CameraCharacteristics.LENS_FACING_FRONT) {
-                    // don't care about front facing camera
-                    continue;
-                }
-                mCameraCharacteristics = cameraCharacteristics;
-            }
-        } catch (CameraAccessException e) {
-            //
-        }
+    public void onRecordingStarted(Uri videoUri, long startLatencyMs) {
+        Log.d(TAG, "onRecordingStarted, videoUri is " + videoUri + ", start latency " + startLatencyMs + " ms");
+        isRecording = true;
+        updateButtonState();
     }
 
-        public static Camera.Size getOptimalPreviewSize(List<Camera.Size> sizes, int w, int h) {
-        final double ASPECT_TOLERANCE = 0.1;
-        double targetRatio=(double)h / w;
-        if (sizes == null) return null;
+    @Override
+    public void onRecordingStopped() {
+        isRecording = false;
+        updateButtonState();
+    }
 
-        Camera.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
+    @Override
+    public void onRecordingFinalized(Uri videoUri, long durationMs, long bytes, boolean success) {
+        Log.d(TAG, "onRecordingFinalized, videoUri is " + videoUri + " duration " + durationMs + " ms, " + bytes + " bytes");
+        if (!success) {
+            Toast.makeText(this, "Failed to save video", Toast.LENGTH_SHORT).show();
+        } else {
+            showThumbnail(videoUri);
+        }
+    }
 
-        int targetHeight = h;
+    @Override
+    public void onImageUriCreated(Uri imageUri) {
+        Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
+        intent.putExtra(MediaStore.EXTRA_OUTPUT, imageUri);
+        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        Intent cameraIntent = enhanceCameraIntent(this, intent);
+        this.startActivityForResult(cameraIntent, 666);
+    }
 
-        for (Camera.Size size : sizes) {
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
-            }
+    @Override
+    public void onImageSaved(Uri imageUri, long bytes, long shotToSavedMs) {
+        Log.d(TAG, "onImageSaved, imageUri is " + imageUri + ", " + bytes + " bytes, " + shotToSavedMs + " ms after the shutter");
+        if (!isBursting) {
+            Toast.makeText(MainActivity.this, "Image saved successfully", Toast.LENGTH_SHORT).show();
         }
+        showThumbnail(imageUri);
+    }
 
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Camera.Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
-            }
+    /**
+     * Shows the thumbnail of the latest capture; the decode runs in the background.
+     */
+    private void showThumbnail(Uri uri) {
+        MediaCatalog.Entry entry = mSessionViewModel.catalogEntry(uri);
+        if (entry == null) {
+            return;
+        }
+        ThumbnailLoader thumbnails = mSessionViewModel.thumbnails();
+        if (mThumbnailEntry != null) {
+            thumbnails.cancel(mThumbnailEntry, mShowThumbnail);
         }
-        return optimalSize;
+        mThumbnailEntry = entry;
+        Bitmap cached = thumbnails.load(entry, mShowThumbnail);
+        if (cached != null) {
+            mThumbnailEntry = null;
+            mThumbnailView.setImageBitmap(cached);
+        }
+    }
+
+    @Override
+    public void onBurstFinished(int saved, long dropped) {
+        Log.d(TAG, "onBurstFinished, " + saved + " saved, " + dropped + " dropped");
+        Toast.makeText(this, saved + " images saved, " + dropped + " frames dropped", Toast.LENGTH_SHORT).show();
     }
 
-    public int computeRelativeRotation(
-            int surfaceRotationDegrees
-    ){
-        Integer sensorOrientationDegrees =
-                mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    @Override
+    public void onStillCaptureUnavailable() {
+        // fall back to an external camera app, the file is created on the session thread
+        mSessionController.createImageUri();
+    }
+
+    @Override
+    public void onMetricsExported(File file) {
+        Log.d(TAG, "onMetricsExported, " + file);
+        Toast.makeText(this, "Metrics saved to " + file.getName(), Toast.LENGTH_SHORT).show();
+    }
 
-        // Reverse device orientation for back-facing cameras.
-        int sign = mCameraCharacteristics.get(CameraCharacteristics.LENS_FACING) ==
-                CameraCharacteristics.LENS_FACING_BACK ? 1 : -1;
+    @Override
+    public void onError(String message) {
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+    }
 
-        // Calculate desired orientation relative to camera orientation to make
-        // the image upright relative to the device orientation.
-        return (sensorOrientationDegrees - surfaceRotationDegrees * sign + 360) % 360;
+    @Override
+    public void surfaceCreated(@NonNull SurfaceHolder holder) {
+        mSessionController.open();
     }
 
     @Override
@@ -404,47 +440,53 @@ public class MainActivity extends AppCompatActivity implements SurfaceHolder.Cal
         if (mSurfaceHolder.getSurface() == null) {
             return;
         }
-        try {
-            mCamera.stopPreview();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
 
-        // set preview size and make any resize, rotate or
-        // reformatting changes here
-        Camera.Parameters parameters= mCamera.getParameters();
         Display display = ((WindowManager)getSystemService(WINDOW_SERVICE)).getDefaultDisplay();
-
-        if(display.getRotation() == Surface.ROTATION_0) {
-            mCamera.setDisplayOrientation(computeRelativeRotation(0));
+        int rotationDegrees = 0;
+        switch (display.getRotation()) {
+            case Surface.ROTATION_90:
+                rotationDegrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                rotationDegrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                rotationDegrees = 270;
+                break;
         }
+        mSessionController.startPreview(mSurfaceHolder, width, height, rotationDegrees);
+    }
 
-        if(display.getRotation() == Surface.ROTATION_90) {
-            mCamera.setDisplayOrientation(computeRelativeRotation(90));
-        }
+    @Override
+    public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
+        // the camera is released by the controller once it stayed idle
+        mSessionController.detachPreview();
+    }
 
-        if(display.getRotation() == Surface.ROTATION_180) {
-            mCamera.setDisplayOrientation(computeRelativeRotation(180));
-        }
-        if(display.getRotation() == Surface.ROTATION_270) {
-            mCamera.setDisplayOrientation(computeRelativeRotation(270));
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (mArmedCheckBox.isChecked()) {
+            mSessionController.setArmed(true);
         }
+    }
 
-        Camera.Size size=getOptimalPreviewSize(parameters.getSupportedPreviewSizes(), width, height);
-        parameters.setPreviewSize(size.width, size.height);
-        mCamera.setParameters(parameters);
-        try {
-            mCamera.setPreviewDisplay(mSurfaceHolder);
-            mCamera.startPreview();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    @Override
+    protected void onPause() {
+        // don't leave pre-created files behind while in the background
+        mSessionController.setArmed(false);
+        super.onPause();
     }
 
     @Override
-    public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
-        releaseMediaRecorder();
-        releaseCamera();
+    protected void onDestroy() {
+        mMetricsOverlay.removeCallbacks(mUpdateMetricsOverlay);
+        if (mThumbnailEntry != null) {
+            mSessionViewModel.thumbnails().cancel(mThumbnailEntry, mShowThumbnail);
+        }
+        // the view model quits the controller once the activity is finishing
+        mSessionViewModel.detach(this);
+        super.onDestroy();
     }
 
     @Override
@@ -0,0 +1,122 @@
+package com.isafemobile.cameratest;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of video documents that are created and opened ahead of time, so starting a
+ * recording does not have to wait for the document provider. Documents that were never
+ * used are deleted again by {@link #clear()}.
+ * <p>
+ * Not thread safe, only used on the camera session thread.
+ */
+public class OutputFilePool {
+
+    private static final String TAG = "IsafeCameratest";
+
+    public static class Output {
+        public final Uri uri;
+        public final ParcelFileDescriptor pfd;
+
+        Output(Uri uri, ParcelFileDescriptor pfd) {
+            this.uri = uri;
+            this.pfd = pfd;
+        }
+    }
+
+    private final DocumentStorage mStorage;
+    private final ContentResolver mResolver;
+    private final int mCapacity;
+    private final ArrayDeque<Output> mOutputs = new ArrayDeque<>();
+    private int mSequence = 0;
+
+    public OutputFilePool(DocumentStorage storage, ContentResolver resolver, int capacity) {
+        mStorage = storage;
+        mResolver = resolver;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Creates and opens documents until the pool is full.
+     */
+    public void fill() {
+        while (mOutputs.size() < mCapacity) {
+            Output output = create();
+            if (output == null) {
+                return;
+            }
+            mOutputs.add(output);
+        }
+    }
+
+    /**
+     * @return a pre-created output, or a freshly created one if the pool is empty, or null on failure
+     */
+    public Output take() {
+        Output output = mOutputs.poll();
+        return output != null ? output : create();
+    }
+
+    /**
+     * Closes and deletes all documents that were not taken.
+     */
+    public void clear() {
+        Output output;
+        while ((output = mOutputs.poll()) != null) {
+            discard(output);
+        }
+    }
+
+    public void discard(Output output) {
+        try {
+            output.pfd.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            DocumentsContract.deleteDocument(mResolver, output.uri);
+        } catch (FileNotFoundException | IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Failed to delete unused " + output.uri, e);
+        }
+    }
+
+    /**
+     * Renames a taken output to reflect the time the recording actually started.
+     *
+     * @return the uri of the renamed document, or the old uri if the provider can't rename
+     */
+    public Uri rename(Uri uri, String displayName) {
+        try {
+            Uri renamed = DocumentsContract.renameDocument(mResolver, uri, displayName);
+            return renamed != null ? renamed : uri;
+        } catch (FileNotFoundException | IllegalArgumentException | IllegalStateException
+                 | SecurityException | UnsupportedOperationException e) {
+            Log.w(TAG, "Failed to rename " + uri, e);
+            return uri;
+        }
+    }
+
+    private Output create() {
+        // sequence suffix keeps names unique when several files are created within a second;
+        // a VID_ name with a suffix would look like a loop segment to the loop quota
+        String fileName = FileNames.pendingVideo(FileNames.timeStamp(), mSequence++);
+        Uri uri = mStorage.createFile(DocumentStorage.VIDEOS, "video/mp4", fileName);
+        if (uri == null) {
+            return null;
+        }
+        try {
+            return new Output(uri, mResolver.openFileDescriptor(uri, "rw"));
+        } catch (FileNotFoundException | SecurityException e) {
+            e.printStackTrace();
+            mStorage.invalidate();
+            return null;
+        }
+    }
+}
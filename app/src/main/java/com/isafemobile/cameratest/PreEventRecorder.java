@@ -0,0 +1,592 @@
+package com.isafemobile.cameratest;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.CamcorderProfile;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dashcam style recorder: preview frames and microphone audio are encoded continuously
+ * and the last few seconds of access units are kept in an {@link EncodedPacketRing}.
+ * {@link #trigger(long)} writes the ring to a new file in the "Videos" folder and keeps
+ * appending live packets until {@link #stopClip()}, after which buffering starts over.
+ * <p>
+ * Without pre-event footage there is no ring and the recorder only encodes for the clip
+ * it is triggered for; a trigger that arrives before the encoders reported their formats
+ * opens the clip as soon as they did.
+ * <p>
+ * Clips are written with {@link MediaMuxer}, or as fragmented MP4 by a
+ * {@link FragmentedMp4Writer}, which leaves a playable file behind if the process dies
+ * and finishes without rewriting an index.
+ * <p>
+ * Encoder callbacks, the ring and the clip output all live on one encoder thread; audio is
+ * read on its own thread.
+ */
+public class PreEventRecorder {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_BIT_RATE = 96000;
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+
+    public interface Callback {
+        void onClipStarted(Uri videoUri, long startLatencyMs);
+
+        void onClipFinalized(Uri videoUri, long durationMs, long bytes, boolean success);
+
+        void onError(String message);
+    }
+
+    private final Context mContext;
+    private final DocumentStorage mStorage;
+    private final StorageWatchdog mStorageWatchdog;
+    private final Callback mCallback;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mOrientationHint;
+    private final int mVideoBitRate;
+    private final int mFrameRate;
+    private final boolean mFragmented;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    // null without pre-event footage
+    private final EncodedPacketRing mRing;
+    private final byte[] mChromaScratch;
+    private final ArrayBlockingQueue<Integer> mVideoInputs = new ArrayBlockingQueue<>(32);
+    private final ArrayBlockingQueue<Integer> mAudioInputs = new ArrayBlockingQueue<>(32);
+
+    private MediaCodec mVideoEncoder;
+    private MediaCodec mAudioEncoder;
+    private AudioRecord mAudioRecord;
+    private Thread mAudioThread;
+    private volatile boolean mRunning = false;
+
+    // Only touched on mThread
+    private final MediaFormat[] mOutputFormats = new MediaFormat[2];
+    private ClipOutput mClip;
+    private ParcelFileDescriptor mClipPfd;
+    private Uri mClipUri;
+    private long mClipStartedAt;
+    // no recorder caps the clip, it ends itself before the volume is full
+    private long mClipMaxBytes;
+    private long mClipBytes;
+    private boolean mWaitForKeyFrame;
+    private boolean mTriggerPending = false;
+    private long mPendingTriggerAtMs;
+
+    /**
+     * @param preEventSeconds amount of footage kept from before {@link #trigger(long)}, 0 for none
+     * @param fragmented      write the clips as fragmented MP4
+     */
+    public PreEventRecorder(Context context, DocumentStorage storage, StorageWatchdog storageWatchdog, int width, int height,
+                            int orientationHint, int preEventSeconds, boolean fragmented, Callback callback) {
+        mContext = context.getApplicationContext();
+        mStorage = storage;
+        mStorageWatchdog = storageWatchdog;
+        mCallback = callback;
+        mWidth = width;
+        mHeight = height;
+        mOrientationHint = orientationHint;
+        mFragmented = fragmented;
+        mChromaScratch = new byte[width * height / 2];
+
+        CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+        mVideoBitRate = profile.videoBitRate;
+        mFrameRate = profile.videoFrameRate;
+        if (preEventSeconds > 0) {
+            // 50% headroom over the nominal bitrate for keyframes and rate control overshoot
+            int capacityBytes = (int) Math.min(Integer.MAX_VALUE - 8,
+                    (long) (mVideoBitRate + AUDIO_BIT_RATE) / 8 * preEventSeconds * 3 / 2);
+            int packetsPerSecond = mFrameRate + AUDIO_SAMPLE_RATE / 1024 + 1;
+            mRing = new EncodedPacketRing(capacityBytes, packetsPerSecond * (preEventSeconds + I_FRAME_INTERVAL_SECONDS) * 2,
+                    VIDEO_TRACK, preEventSeconds * 1000000L);
+        } else {
+            mRing = null;
+        }
+
+        mThread = new HandlerThread("PreEventEncoder");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @SuppressLint("MissingPermission")
+    public void start() throws IOException {
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, mWidth, mHeight);
+        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, mVideoBitRate);
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+        mVideoEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        // FragmentedMp4Writer takes the pts as decode time, reordered frames would break that
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            videoFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+        } else {
+            // Baseline has no B-frames; the writer fails the clip if an encoder ignores this
+            int level = baselineLevel(mVideoEncoder);
+            if (level != 0) {
+                videoFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline);
+                videoFormat.setInteger(MediaFormat.KEY_LEVEL, level);
+            }
+        }
+        mVideoEncoder.setCallback(new EncoderCallback(VIDEO_TRACK, mVideoInputs), mHandler);
+        mVideoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+        MediaFormat audioFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, AUDIO_SAMPLE_RATE, 1);
+        audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+        mAudioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        mAudioEncoder.setCallback(new EncoderCallback(AUDIO_TRACK, mAudioInputs), mHandler);
+        mAudioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+        int minBufferSize = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, AUDIO_SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 4);
+
+        mRunning = true;
+        mVideoEncoder.start();
+        mAudioEncoder.start();
+        mAudioRecord.startRecording();
+        mAudioThread = new Thread(this::readAudio, "PreEventAudio");
+        mAudioThread.start();
+    }
+
+    /**
+     * Queues one NV21 preview frame for encoding. Returns immediately; the frame is
+     * dropped if the encoder has no free input buffer.
+     *
+     * @return false if the frame was dropped
+     */
+    public boolean offerFrame(byte[] nv21, long ptsUs) {
+        Integer index = mVideoInputs.poll();
+        if (index == null || !mRunning) {
+            return false;
+        }
+        try {
+            ByteBuffer input = mVideoEncoder.getInputBuffer(index);
+            int lumaSize = mWidth * mHeight;
+            input.clear();
+            input.put(nv21, 0, lumaSize);
+            // NV21 has V before U, the encoder wants NV12
+            int chromaSize = Math.min(mChromaScratch.length, nv21.length - lumaSize);
+            for (int i = 0; i + 1 < chromaSize; i += 2) {
+                mChromaScratch[i] = nv21[lumaSize + i + 1];
+                mChromaScratch[i + 1] = nv21[lumaSize + i];
+            }
+            input.put(mChromaScratch, 0, chromaSize);
+            mVideoEncoder.queueInputBuffer(index, 0, lumaSize + chromaSize, ptsUs, 0);
+            return true;
+        } catch (IllegalStateException e) {
+            // encoder is being released
+            return false;
+        }
+    }
+
+    /**
+     * Starts a clip containing the buffered footage, if any, and continues recording live.
+     *
+     * @param pressedAtMs {@link SystemClock#elapsedRealtime()} of the user action
+     */
+    public void trigger(long pressedAtMs) {
+        mHandler.post(() -> openClip(pressedAtMs));
+    }
+
+    public void stopClip() {
+        mHandler.post(this::closeClip);
+    }
+
+    /**
+     * Finishes an open clip, stops the encoders and the encoder thread.
+     */
+    public void release() {
+        mRunning = false;
+        if (mAudioThread != null) {
+            mAudioThread.interrupt();
+            try {
+                mAudioThread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mHandler.post(() -> {
+            closeClip();
+            if (mAudioRecord != null) {
+                mAudioRecord.stop();
+                mAudioRecord.release();
+            }
+            releaseEncoder(mVideoEncoder);
+            releaseEncoder(mAudioEncoder);
+            if (mRing != null) {
+                mRing.clear();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    private static void releaseEncoder(MediaCodec encoder) {
+        if (encoder == null) {
+            return;
+        }
+        try {
+            encoder.stop();
+        } catch (IllegalStateException e) {
+            // already stopped
+        }
+        encoder.release();
+    }
+
+    private void readAudio() {
+        while (mRunning) {
+            Integer index;
+            try {
+                index = mAudioInputs.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (index == null) {
+                continue;
+            }
+            try {
+                ByteBuffer input = mAudioEncoder.getInputBuffer(index);
+                input.clear();
+                int read = mAudioRecord.read(input, input.capacity());
+                long ptsUs = System.nanoTime() / 1000;
+                mAudioEncoder.queueInputBuffer(index, 0, Math.max(read, 0), ptsUs, 0);
+            } catch (IllegalStateException e) {
+                return;
+            }
+        }
+    }
+
+    private void openClip(long pressedAtMs) {
+        if (mClip != null) {
+            return;
+        }
+        if (!formatsKnown()) {
+            // the encoders just started
+            mTriggerPending = true;
+            mPendingTriggerAtMs = pressedAtMs;
+            return;
+        }
+        Uri videoUri = mStorage.createFile(DocumentStorage.VIDEOS, "video/mp4", FileNames.video(FileNames.timeStamp()));
+        if (videoUri == null) {
+            mCallback.onError("Failed to create video file");
+            return;
+        }
+        try {
+            mClipPfd = mContext.getContentResolver().openFileDescriptor(videoUri, "rw");
+            mClip = mFragmented ? new FragmentedOutput(mClipPfd.getFileDescriptor())
+                    : new MuxerOutput(mClipPfd.getFileDescriptor());
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Failed to open clip " + videoUri, e);
+            mStorage.invalidate();
+            closeQuietly(mClipPfd);
+            mClipPfd = null;
+            mCallback.onError("Failed to open video file");
+            return;
+        }
+        // exact, the cached value may be half a minute old
+        long freeBytes = mStorageWatchdog.refresh(mClipPfd);
+        if (!StorageBudget.canRecord(freeBytes, (mVideoBitRate + AUDIO_BIT_RATE) / 8)) {
+            Log.w(TAG, "refusing to record with " + freeBytes + " bytes free");
+            discardClip(videoUri);
+            mCallback.onError("Not enough free space to record");
+            return;
+        }
+        mClipMaxBytes = StorageBudget.maxFileSize(freeBytes, 0);
+        mClipBytes = 0;
+        mClipUri = videoUri;
+        mClipStartedAt = SystemClock.elapsedRealtime();
+
+        long bufferedUs = mRing != null ? mRing.bufferedDurationUs() : 0;
+        mWaitForKeyFrame = mRing == null || mRing.size() == 0;
+        if (mWaitForKeyFrame) {
+            requestKeyFrame();
+        }
+        if (mRing != null) {
+            mRing.drainTo((track, data, offset, size, ptsUs, flags) ->
+                    writeSample(track, ByteBuffer.wrap(data, offset, size), ptsUs, flags));
+        }
+        Log.d(TAG, "pre-event clip " + videoUri + " starts " + bufferedUs / 1000 + " ms before the trigger");
+        mCallback.onClipStarted(videoUri, SystemClock.elapsedRealtime() - pressedAtMs);
+    }
+
+    /**
+     * @return true once the clip can be opened; with a ring the clip may be video only, as the
+     * buffered footage can't wait for the audio encoder
+     */
+    private boolean formatsKnown() {
+        return mOutputFormats[VIDEO_TRACK] != null && (mRing != null || mOutputFormats[AUDIO_TRACK] != null);
+    }
+
+    private void closeClip() {
+        // a stop before the clip was opened cancels it
+        mTriggerPending = false;
+        if (mClip == null) {
+            return;
+        }
+        boolean success = mClip.finish();
+        mClip = null;
+        long bytes = -1;
+        try {
+            bytes = mClipPfd.getStatSize();
+        } catch (RuntimeException e) {
+            // size unknown
+        }
+        closeQuietly(mClipPfd);
+        mCallback.onClipFinalized(mClipUri, SystemClock.elapsedRealtime() - mClipStartedAt, bytes, success);
+        mClipPfd = null;
+        mClipUri = null;
+    }
+
+    private void requestKeyFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mVideoEncoder.setParameters(params);
+    }
+
+    private void writeSample(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (mClip == null) {
+            // closed by a failed write while the ring was drained
+            return;
+        }
+        if (mWaitForKeyFrame) {
+            if (track != VIDEO_TRACK || (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                return;
+            }
+            mWaitForKeyFrame = false;
+        }
+        int size = data.remaining();
+        try {
+            mClip.writeSample(track, data, ptsUs, flags);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mClipUri, e);
+            mCallback.onError("Failed to write video file");
+            closeClip();
+            return;
+        }
+        mClipBytes += size;
+        if (StorageBudget.clipMustEnd(mClipBytes, mClipMaxBytes, mStorageWatchdog.freeBytes())) {
+            Log.w(TAG, "ending " + mClipUri + " at " + mClipBytes + " bytes, the storage is almost full");
+            mCallback.onError("Recording stopped, the storage is almost full");
+            closeClip();
+        }
+    }
+
+    /**
+     * Closes and deletes a clip file that was never written to.
+     */
+    private void discardClip(Uri videoUri) {
+        // stops the muxer, the file is deleted anyway
+        mClip.finish();
+        mClip = null;
+        closeQuietly(mClipPfd);
+        mClipPfd = null;
+        try {
+            DocumentsContract.deleteDocument(mContext.getContentResolver(), videoUri);
+        } catch (FileNotFoundException | IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Failed to delete unused " + videoUri, e);
+        }
+    }
+
+    /**
+     * @return the highest level the encoder supports Baseline at, 0 if it lists none
+     */
+    private static int baselineLevel(MediaCodec encoder) {
+        int level = 0;
+        MediaCodecInfo.CodecCapabilities capabilities =
+                encoder.getCodecInfo().getCapabilitiesForType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+            if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+                level = Math.max(level, profileLevel.level);
+            }
+        }
+        return level;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate();
+        data.rewind();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        if (pfd == null) {
+            return;
+        }
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private class EncoderCallback extends MediaCodec.Callback {
+        private final int mTrack;
+        private final ArrayBlockingQueue<Integer> mInputs;
+
+        EncoderCallback(int track, ArrayBlockingQueue<Integer> inputs) {
+            mTrack = track;
+            mInputs = inputs;
+        }
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            mInputs.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                ByteBuffer output = codec.getOutputBuffer(index);
+                output.position(info.offset);
+                output.limit(info.offset + info.size);
+                if (mClip != null) {
+                    writeSample(mTrack, output, info.presentationTimeUs, info.flags);
+                } else if (mRing != null) {
+                    mRing.write(mTrack, output, info.presentationTimeUs, info.flags);
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error on track " + mTrack, e);
+            mCallback.onError("Encoder error");
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            mOutputFormats[mTrack] = format;
+            if (mTriggerPending && formatsKnown()) {
+                mTriggerPending = false;
+                openClip(mPendingTriggerAtMs);
+            }
+        }
+    }
+
+    /**
+     * Container of the open clip.
+     */
+    private interface ClipOutput {
+        void writeSample(int track, ByteBuffer data, long ptsUs, int flags) throws IOException;
+
+        /**
+         * @return false if the file is incomplete
+         */
+        boolean finish();
+    }
+
+    private class MuxerOutput implements ClipOutput {
+        private final MediaMuxer mMuxer;
+        private final int[] mTracks = {-1, -1};
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        MuxerOutput(FileDescriptor fd) throws IOException {
+            mMuxer = new MediaMuxer(fd, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(mOrientationHint);
+            mTracks[VIDEO_TRACK] = mMuxer.addTrack(mOutputFormats[VIDEO_TRACK]);
+            // without an audio format yet the clip is video only
+            mTracks[AUDIO_TRACK] = mOutputFormats[AUDIO_TRACK] != null ? mMuxer.addTrack(mOutputFormats[AUDIO_TRACK]) : -1;
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSample(int track, ByteBuffer data, long ptsUs, int flags) {
+            if (mTracks[track] < 0) {
+                return;
+            }
+            mInfo.set(data.position(), data.remaining(), ptsUs, flags);
+            mMuxer.writeSampleData(mTracks[track], data, mInfo);
+        }
+
+        @Override
+        public boolean finish() {
+            boolean success = true;
+            try {
+                mMuxer.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Failed to stop muxer for " + mClipUri, e);
+                success = false;
+            }
+            mMuxer.release();
+            return success;
+        }
+    }
+
+    private class FragmentedOutput implements ClipOutput {
+        private final FragmentedMp4Writer mWriter;
+        private final int[] mTracks = {-1, -1};
+
+        FragmentedOutput(FileDescriptor fd) {
+            MediaFormat video = mOutputFormats[VIDEO_TRACK];
+            MediaFormat audio = mOutputFormats[AUDIO_TRACK];
+            FragmentedMp4Writer.Track videoTrack = FragmentedMp4Writer.Track.avc(
+                    video.getInteger(MediaFormat.KEY_WIDTH), video.getInteger(MediaFormat.KEY_HEIGHT),
+                    bytes(video.getByteBuffer("csd-0")), bytes(video.getByteBuffer("csd-1")));
+            // not closed, the stream would close the descriptor mClipPfd owns
+            FileChannel channel = new FileOutputStream(fd).getChannel();
+            mTracks[VIDEO_TRACK] = 0;
+            if (audio != null) {
+                mTracks[AUDIO_TRACK] = 1;
+                mWriter = new FragmentedMp4Writer(channel, mOrientationHint, videoTrack,
+                        FragmentedMp4Writer.Track.aac(audio.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                                audio.getInteger(MediaFormat.KEY_CHANNEL_COUNT), AUDIO_BIT_RATE,
+                                bytes(audio.getByteBuffer("csd-0"))));
+            } else {
+                mWriter = new FragmentedMp4Writer(channel, mOrientationHint, videoTrack);
+            }
+        }
+
+        @Override
+        public void writeSample(int track, ByteBuffer data, long ptsUs, int flags) throws IOException {
+            if (mTracks[track] >= 0) {
+                mWriter.writeSample(mTracks[track], data, ptsUs, flags);
+            }
+        }
+
+        @Override
+        public boolean finish() {
+            try {
+                mWriter.close();
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write the last fragment of " + mClipUri, e);
+                return false;
+            }
+        }
+    }
+}
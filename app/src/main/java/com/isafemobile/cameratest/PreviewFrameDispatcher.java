@@ -0,0 +1,101 @@
+package com.isafemobile.cameratest;
+
+import android.hardware.Camera;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Feeds preview frames from {@link Camera#setPreviewCallbackWithBuffer} to any number of
+ * {@link FrameConsumer}s. The callback buffers come from a {@link FrameBufferPool} and go
+ * back to the camera once every consumer released them, so no frame is allocated while
+ * the preview runs.
+ * <p>
+ * Created, started and stopped on the camera session thread.
+ */
+public class PreviewFrameDispatcher implements Camera.PreviewCallback {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private final Camera mCamera;
+    private final FrameBufferPool mPool;
+    private volatile FrameConsumer[] mConsumers = new FrameConsumer[0];
+    private volatile boolean mRunning = false;
+
+    public PreviewFrameDispatcher(Camera camera, int width, int height, int buffers) {
+        mCamera = camera;
+        // NV21 is 12 bits per pixel
+        mPool = new FrameBufferPool(buffers, width, height, width * height * 3 / 2);
+    }
+
+    public void start() {
+        mRunning = true;
+        mPool.setRecycler(frame -> {
+            if (!mRunning) {
+                return;
+            }
+            try {
+                mCamera.addCallbackBuffer(frame.data);
+            } catch (RuntimeException e) {
+                // camera released while a worker still held the frame
+            }
+        });
+        for (int i = 0; i < mPool.size(); i++) {
+            mCamera.addCallbackBuffer(mPool.get(i).data);
+        }
+        mCamera.setPreviewCallbackWithBuffer(this);
+    }
+
+    public void stop() {
+        mRunning = false;
+        try {
+            mCamera.setPreviewCallbackWithBuffer(null);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to clear preview callback", e);
+        }
+    }
+
+    public void addConsumer(FrameConsumer consumer) {
+        FrameConsumer[] consumers = Arrays.copyOf(mConsumers, mConsumers.length + 1);
+        consumers[consumers.length - 1] = consumer;
+        mConsumers = consumers;
+    }
+
+    public void removeConsumer(FrameConsumer consumer) {
+        FrameConsumer[] consumers = mConsumers;
+        for (int i = 0; i < consumers.length; i++) {
+            if (consumers[i] == consumer) {
+                FrameConsumer[] remaining = new FrameConsumer[consumers.length - 1];
+                System.arraycopy(consumers, 0, remaining, 0, i);
+                System.arraycopy(consumers, i + 1, remaining, i, consumers.length - i - 1);
+                mConsumers = remaining;
+                return;
+            }
+        }
+    }
+
+    public boolean hasConsumers() {
+        return mConsumers.length > 0;
+    }
+
+    public int width() {
+        return mPool.get(0).width;
+    }
+
+    public int height() {
+        return mPool.get(0).height;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        Frame frame = mPool.onFrameFilled(data, System.nanoTime());
+        if (frame == null) {
+            return;
+        }
+        for (FrameConsumer consumer : mConsumers) {
+            consumer.onFrame(frame);
+        }
+        // the dispatcher's own reference, the buffer goes back to the camera once consumers are done
+        frame.release();
+    }
+}
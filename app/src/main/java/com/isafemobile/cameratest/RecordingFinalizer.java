@@ -0,0 +1,120 @@
+package com.isafemobile.cameratest;
+
+import android.media.MediaRecorder;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Background queue that finalizes stopped recordings. {@link MediaRecorder#stop()} writes
+ * the container index and can take hundreds of milliseconds for long clips, so it runs
+ * here instead of on the session thread, together with releasing the recorder and closing
+ * the output file descriptor.
+ */
+public class RecordingFinalizer {
+
+    private static final String TAG = "IsafeCameratest";
+
+    public interface Callback {
+        /**
+         * Called on the finalizer thread as soon as the recorder gave up the camera.
+         */
+        void onCameraReleased();
+
+        /**
+         * Called on the finalizer thread once the file is complete and closed.
+         *
+         * @param bytes size of the finalized file, or -1 if it could not be determined
+         */
+        void onFinalized(Uri videoUri, long durationMs, long bytes, boolean success);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final MetricsRecorder mMetrics;
+
+    public RecordingFinalizer(MetricsRecorder metrics) {
+        mMetrics = metrics;
+        mThread = new HandlerThread("RecordingFinalizer");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues the recorder for finalization and returns immediately.
+     *
+     * @param startedAt {@link SystemClock#elapsedRealtime()} when the recording was started
+     */
+    public void finalizeRecording(MediaRecorder recorder, ParcelFileDescriptor pfd, Uri videoUri,
+                                  long startedAt, Callback callback) {
+        long stoppedAt = SystemClock.elapsedRealtime();
+        mHandler.post(() -> {
+            boolean success = true;
+            Trace.beginSection("finalizeRecording");
+            try {
+                recorder.stop();
+            } catch (RuntimeException e) {
+                // stop() throws if no valid data was received, the file is unusable then
+                Log.e(TAG, "Failed to stop recording " + videoUri, e);
+                success = false;
+            } finally {
+                Trace.endSection();
+            }
+            recorder.reset();
+            recorder.release();
+            callback.onCameraReleased();
+
+            long bytes = -1;
+            try {
+                bytes = pfd.getStatSize();
+                pfd.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            long finalizeMs = SystemClock.elapsedRealtime() - stoppedAt;
+            Log.d(TAG, "finalized " + videoUri + " in " + finalizeMs + " ms");
+            mMetrics.record(Metric.STOP_TO_FINALIZED_MS, finalizeMs);
+            mMetrics.recordRate(Metric.VIDEO_WRITE_BYTES_PER_SEC, bytes, stoppedAt - startedAt);
+            callback.onFinalized(videoUri, stoppedAt - startedAt, bytes, success);
+        });
+    }
+
+    /**
+     * Queues a segment that MediaRecorder already completed when it switched to the next
+     * output file; only the file descriptor is left to close.
+     */
+    public void finalizeSegment(ParcelFileDescriptor pfd, Uri videoUri, long startedAt, long endedAt,
+                                Callback callback) {
+        mHandler.post(() -> {
+            long bytes = -1;
+            try {
+                bytes = pfd.getStatSize();
+                pfd.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mMetrics.recordRate(Metric.VIDEO_WRITE_BYTES_PER_SEC, bytes, endedAt - startedAt);
+            callback.onFinalized(videoUri, endedAt - startedAt, bytes, true);
+        });
+    }
+
+    /**
+     * Runs follow-up storage work, such as the loop quota, behind the queued finalizations.
+     */
+    public void execute(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
+    /**
+     * Finishes the queued work and stops the finalizer thread.
+     */
+    public void quit() {
+        mThread.quitSafely();
+    }
+}
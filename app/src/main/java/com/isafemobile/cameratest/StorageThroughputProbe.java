@@ -0,0 +1,94 @@
+package com.isafemobile.cameratest;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures how fast the SAF tree behind {@link DocumentStorage} sustains writes, by writing
+ * and syncing a few megabytes into its "Videos" folder. The result is cached per tree, an SD
+ * card does not get faster and the probe should not run on every launch. Blocks, call it on
+ * a background thread.
+ */
+public class StorageThroughputProbe {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final String PREFERENCES = "com.isafemobile.cameratest.storage";
+    private static final String PREF_THROUGHPUT = "throughput.";
+    private static final String PREF_PROBED_AT = "probedAt.";
+
+    private static final int PROBE_BYTES = 8 * 1024 * 1024;
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    // cards fill up and wear, probe again once in a while
+    private static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private final Context mContext;
+    private final DocumentStorage mStorage;
+    private final SharedPreferences mPreferences;
+
+    public StorageThroughputProbe(Context context, DocumentStorage storage) {
+        mContext = context.getApplicationContext();
+        mStorage = storage;
+        mPreferences = mContext.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return sustained write throughput of the current tree in bytes per second, 0 if there
+     * is no tree or it could not be measured
+     */
+    public long throughput() {
+        Uri treeUri = mStorage.getTreeUri();
+        if (treeUri == null) {
+            return 0;
+        }
+        String key = treeUri.toString();
+        long probedAt = mPreferences.getLong(PREF_PROBED_AT + key, 0);
+        if (probedAt != 0 && System.currentTimeMillis() - probedAt < MAX_AGE_MS) {
+            return mPreferences.getLong(PREF_THROUGHPUT + key, 0);
+        }
+        long bytesPerSec = probe();
+        if (bytesPerSec > 0) {
+            mPreferences.edit()
+                    .putLong(PREF_THROUGHPUT + key, bytesPerSec)
+                    .putLong(PREF_PROBED_AT + key, System.currentTimeMillis())
+                    .apply();
+        }
+        return bytesPerSec;
+    }
+
+    private long probe() {
+        Uri uri = mStorage.createFile(DocumentStorage.VIDEOS, "application/octet-stream", ".probe");
+        if (uri == null) {
+            return 0;
+        }
+        long bytesPerSec = 0;
+        byte[] chunk = new byte[CHUNK_BYTES];
+        try (ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(uri, "rw")) {
+            if (pfd != null) {
+                try (FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+                    long startedAt = SystemClock.elapsedRealtimeNanos();
+                    for (int written = 0; written < PROBE_BYTES; written += CHUNK_BYTES) {
+                        out.write(chunk);
+                    }
+                    // what the recorder sustains is what reaches the card, not the page cache
+                    out.getFD().sync();
+                    long elapsedNs = SystemClock.elapsedRealtimeNanos() - startedAt;
+                    bytesPerSec = PROBE_BYTES * 1000000000L / Math.max(elapsedNs, 1);
+                    Log.d(TAG, "storage probe wrote " + PROBE_BYTES + " bytes in " + elapsedNs / 1000000 + " ms");
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Storage probe failed on " + uri, e);
+        }
+        mStorage.delete(DocumentsContract.getDocumentId(uri));
+        return bytesPerSec;
+    }
+}
@@ -0,0 +1,176 @@
+package com.isafemobile.cameratest;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.StatFs;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStatVfs;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Keeps track of the free space on the volume behind the {@link DocumentStorage} tree. The
+ * value is cached and refreshed in the background while the watchdog runs, reading it costs
+ * nothing; {@link #refresh(ParcelFileDescriptor)} measures it exactly through a descriptor
+ * of a file on the volume, e.g. right before a recording starts.
+ * <p>
+ * SAF hides the volume, and apps can't query the roots of the external storage provider.
+ * Its document ids start with the volume though, "primary" or the volume's UUID, which maps
+ * a tree to a mounted path. Trees of other providers are only measured through descriptors.
+ */
+public class StorageWatchdog {
+
+    private static final String TAG = "IsafeCameratest";
+
+    private static final String EXTERNAL_STORAGE_AUTHORITY = "com.android.externalstorage.documents";
+    private static final long REFRESH_INTERVAL_MS = 30 * 1000;
+
+    public interface Listener {
+        /**
+         * Called on the watchdog thread when the free space changed.
+         *
+         * @param freeBytes free bytes, {@link StorageBudget#UNKNOWN} if it can't be measured
+         */
+        void onFreeSpace(long freeBytes);
+    }
+
+    private final Context mContext;
+    private final DocumentStorage mStorage;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Runnable mPeriodicRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshFromVolume();
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+    private volatile long mFreeBytes = StorageBudget.UNKNOWN;
+    // only touched on mThread
+    private Uri mVolumeTree;
+    private File mVolumeDirectory;
+
+    public StorageWatchdog(Context context, DocumentStorage storage, Listener listener) {
+        mContext = context.getApplicationContext();
+        mStorage = storage;
+        mListener = listener;
+        mThread = new HandlerThread("StorageWatchdog");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @return the last measured free bytes, {@link StorageBudget#UNKNOWN} if not measured yet
+     */
+    public long freeBytes() {
+        return mFreeBytes;
+    }
+
+    /**
+     * Refreshes right away and then periodically until {@link #stop()}.
+     */
+    public void start() {
+        mHandler.removeCallbacks(mPeriodicRefresh);
+        mHandler.post(mPeriodicRefresh);
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mPeriodicRefresh);
+    }
+
+    /**
+     * Schedules a refresh, e.g. once a recording was finalized.
+     */
+    public void refreshSoon() {
+        mHandler.post(this::refreshFromVolume);
+    }
+
+    public void quit() {
+        stop();
+        mThread.quitSafely();
+    }
+
+    /**
+     * Measures the volume of an open file, one system call. Any thread.
+     *
+     * @return free bytes, the cached value if the descriptor could not be measured
+     */
+    public long refresh(ParcelFileDescriptor pfd) {
+        try {
+            StructStatVfs stat = Os.fstatvfs(pfd.getFileDescriptor());
+            update(stat.f_bavail * stat.f_frsize);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to measure the free space of a descriptor", e);
+        }
+        return mFreeBytes;
+    }
+
+    private void refreshFromVolume() {
+        Uri treeUri = mStorage.getTreeUri();
+        if (treeUri == null) {
+            return;
+        }
+        if (!treeUri.equals(mVolumeTree)) {
+            mVolumeTree = treeUri;
+            mVolumeDirectory = volumeDirectory(treeUri);
+            Log.d(TAG, "storage tree " + treeUri + " is on " + mVolumeDirectory);
+        }
+        if (mVolumeDirectory == null) {
+            return;
+        }
+        try {
+            update(new StatFs(mVolumeDirectory.getPath()).getAvailableBytes());
+        } catch (IllegalArgumentException e) {
+            // the card was unmounted
+            Log.w(TAG, "Failed to measure the free space of " + mVolumeDirectory, e);
+            update(StorageBudget.UNKNOWN);
+        }
+    }
+
+    private void update(long freeBytes) {
+        long previous = mFreeBytes;
+        mFreeBytes = freeBytes;
+        if (freeBytes != previous) {
+            mListener.onFreeSpace(freeBytes);
+        }
+    }
+
+    /**
+     * @return the mount point of the volume a tree of the external storage provider is on,
+     * null for trees of other providers
+     */
+    private File volumeDirectory(Uri treeUri) {
+        if (!EXTERNAL_STORAGE_AUTHORITY.equals(treeUri.getAuthority())) {
+            return null;
+        }
+        String treeId = DocumentsContract.getTreeDocumentId(treeUri);
+        int colon = treeId.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        String volume = treeId.substring(0, colon);
+        boolean primary = "primary".equals(volume);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            StorageManager storageManager = mContext.getSystemService(StorageManager.class);
+            for (StorageVolume storageVolume : storageManager.getStorageVolumes()) {
+                if (primary ? storageVolume.isPrimary() : volume.equals(storageVolume.getUuid())) {
+                    return storageVolume.getDirectory();
+                }
+            }
+            return null;
+        }
+        // where Android mounts its volumes before R, which has no API for the path
+        return primary ? Environment.getExternalStorageDirectory() : new File("/storage/" + volume);
+    }
+}
@@ -0,0 +1,286 @@
+package com.isafemobile.cameratest;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thumbnails of the cataloged captures. Images are decoded with an {@code inSampleSize}
+ * that keeps the short edge at least {@link #SIZE_PX}, videos from their first keyframe at
+ * that scale, and both are rotated upright with the rotation the capture was cataloged with.
+ * <p>
+ * Thumbnails are kept in a memory cache bounded by bitmap bytes, backed by a size capped
+ * disk cache of JPEGs, so most requests never touch the capture again. Requests are made
+ * on the main thread: a memory hit is returned right away, everything else is decoded on
+ * background workers and requests for an item already being decoded wait for that decode.
+ */
+public class ThumbnailLoader {
+
+    private static final String TAG = "IsafeCameratest";
+
+    public static final int SIZE_PX = 256;
+    private static final long DISK_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final int JPEG_QUALITY = 85;
+    private static final int WORKERS = 2;
+
+    public interface Callback {
+        /**
+         * Called on the main thread.
+         *
+         * @param thumbnail null if the capture could not be decoded
+         */
+        void onThumbnail(String uri, Bitmap thumbnail);
+    }
+
+    private final Context mContext;
+    private final WeightedLruCache<String, Bitmap> mMemoryCache;
+    private final DiskLruCache mDiskCache;
+    private final ExecutorService mWorkers;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // key to the callbacks waiting for it, only touched on the main thread
+    private final Map<String, List<Callback>> mPending = new HashMap<>();
+
+    public ThumbnailLoader(Context context) {
+        mContext = context.getApplicationContext();
+        // a thumbnail of a 1080p capture is about 500 KB, this keeps a few dozen
+        mMemoryCache = new WeightedLruCache<>(Runtime.getRuntime().maxMemory() / 16, Bitmap::getAllocationByteCount);
+        mDiskCache = new DiskLruCache(new File(mContext.getCacheDir(), "thumbnails"), DISK_CACHE_BYTES);
+        mWorkers = Executors.newFixedThreadPool(WORKERS, runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "ThumbnailLoader"));
+    }
+
+    /**
+     * Requests the thumbnail of a capture. Call on the main thread.
+     *
+     * @param callback called once the thumbnail is decoded unless it was cached in memory,
+     *                 may be null to only warm the caches
+     * @return the thumbnail if it was cached in memory, null otherwise
+     */
+    public Bitmap load(MediaCatalog.Entry entry, Callback callback) {
+        String key = key(entry);
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        List<Callback> callbacks = mPending.get(key);
+        if (callbacks == null) {
+            callbacks = new ArrayList<>();
+            mPending.put(key, callbacks);
+            mWorkers.execute(() -> {
+                Bitmap thumbnail = thumbnail(key, entry);
+                mMainHandler.post(() -> deliver(key, entry.uri, thumbnail));
+            });
+        }
+        if (callback != null) {
+            callbacks.add(callback);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the thumbnail of a new capture ahead of it being shown.
+     */
+    public void prefetch(MediaCatalog.Entry entry) {
+        load(entry, null);
+    }
+
+    /**
+     * Drops a callback that is no longer interested, e.g. of a view that was recycled while
+     * scrolling; the decode itself still completes into the caches.
+     */
+    public void cancel(MediaCatalog.Entry entry, Callback callback) {
+        List<Callback> callbacks = mPending.get(key(entry));
+        if (callbacks != null) {
+            callbacks.remove(callback);
+        }
+    }
+
+    public void quit() {
+        mWorkers.shutdownNow();
+        mMemoryCache.clear();
+    }
+
+    private void deliver(String key, String uri, Bitmap thumbnail) {
+        List<Callback> callbacks = mPending.remove(key);
+        if (callbacks == null) {
+            return;
+        }
+        for (Callback callback : callbacks) {
+            callback.onThumbnail(uri, thumbnail);
+        }
+    }
+
+    /**
+     * The size is part of the key, a capture replaced under the same uri gets a new thumbnail.
+     */
+    private static String key(MediaCatalog.Entry entry) {
+        return entry.uri + "@" + entry.size;
+    }
+
+    private Bitmap thumbnail(String key, MediaCatalog.Entry entry) {
+        Bitmap thumbnail = fromDisk(key);
+        if (thumbnail == null) {
+            long startedAt = SystemClock.elapsedRealtime();
+            try {
+                thumbnail = entry.type == MediaCatalog.TYPE_VIDEO ? decodeVideo(entry) : decodeImage(entry);
+            } catch (IOException | RuntimeException e) {
+                // RuntimeException from the retriever on a file it can't read
+                Log.w(TAG, "Failed to decode a thumbnail of " + entry.uri, e);
+            }
+            if (thumbnail == null) {
+                return null;
+            }
+            Log.d(TAG, "thumbnail of " + entry.uri + " took " + (SystemClock.elapsedRealtime() - startedAt) + " ms");
+            toDisk(key, thumbnail);
+        }
+        mMemoryCache.put(key, thumbnail);
+        return thumbnail;
+    }
+
+    private Bitmap fromDisk(String key) {
+        try {
+            mDiskCache.open();
+            byte[] jpeg = mDiskCache.get(key);
+            return jpeg != null ? BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length) : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the thumbnail cache", e);
+            return null;
+        }
+    }
+
+    private void toDisk(String key, Bitmap thumbnail) {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(32 * 1024);
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+        try {
+            mDiskCache.put(key, jpeg.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the thumbnail cache", e);
+        }
+    }
+
+    private Bitmap decodeImage(MediaCatalog.Entry entry) throws IOException {
+        Uri uri = Uri.parse(entry.uri);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (pfd == null) {
+                return null;
+            }
+            BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap;
+        int rotation = entry.rotation;
+        // a fresh descriptor, decoding moved the offset of the first one
+        try (ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (pfd == null) {
+                return null;
+            }
+            bitmap = BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options);
+            if (rotation == MediaCatalog.UNKNOWN) {
+                // found by the reconciliation or a Camera2 still, only the file itself can tell
+                rotation = exifRotation(new ExifInterface(pfd.getFileDescriptor()));
+            }
+        }
+        return bitmap != null ? rotate(bitmap, rotation) : null;
+    }
+
+    private Bitmap decodeVideo(MediaCatalog.Entry entry) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(mContext, Uri.parse(entry.uri));
+            int width = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            int height = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+            int fileRotation = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+            float scale = Math.min(1f, (float) SIZE_PX / Math.min(width, height));
+            // fits the frame either way round, the retriever rotates by the file's rotation first
+            int bound = Math.round(Math.max(width, height) * scale);
+            Bitmap frame = retriever.getScaledFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, bound, bound);
+            if (frame == null) {
+                return null;
+            }
+            // pre-event clips carry their rotation, MediaRecorder recordings don't
+            return rotate(frame, fileRotation != 0 || entry.rotation == MediaCatalog.UNKNOWN ? 0 : entry.rotation);
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * @return the largest power of two that keeps the short edge at least {@link #SIZE_PX}
+     */
+    static int sampleSize(int width, int height) {
+        int shortEdge = Math.min(width, height);
+        int sampleSize = 1;
+        while (shortEdge / (sampleSize * 2) >= SIZE_PX) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int rotation) {
+        if (rotation % 360 == 0) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postRotate(rotation);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (rotated != bitmap) {
+            bitmap.recycle();
+        }
+        return rotated;
+    }
+
+    private static int exifRotation(ExifInterface exif) {
+        switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
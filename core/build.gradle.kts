@@ -0,0 +1,45 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
+
+// ./gradlew :core:jmh, the gc profiler reports gc.alloc.rate.norm (bytes per operation)
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+// the preview frame path must stay allocation free, fail the run if it allocates
+val jmhResults = jmh.resultsFile
+tasks.named("jmh") {
+    doLast {
+        @Suppress("UNCHECKED_CAST")
+        val results = groovy.json.JsonSlurper().parse(jmhResults.get().asFile) as List<Map<String, Any>>
+        for (result in results) {
+            val benchmark = result["benchmark"] as String
+            if (!benchmark.contains("FrameHandoffBenchmark")) {
+                continue
+            }
+            @Suppress("UNCHECKED_CAST")
+            val metrics = result["secondaryMetrics"] as Map<String, Map<String, Any>>
+            // older JMH versions prefix the gc profiler's metrics with a middle dot
+            val norm = metrics["gc.alloc.rate.norm"] ?: metrics["\u00b7gc.alloc.rate.norm"]
+                ?: throw GradleException("$benchmark ran without the gc profiler")
+            val bytesPerOp = (norm["score"] as Number).toDouble()
+            if (bytesPerOp > 1.0) {
+                throw GradleException("$benchmark allocates $bytesPerOp bytes per frame")
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.isafemobile.cameratest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline for the helpers on the surfaceChanged and capture paths: preview size
+ * selection over a 16 entry size list, the rotation math and file name generation.
+ * The size selector is measured cold, with a new selector per call, and on a memo hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraMathBenchmark {
+
+    private static final String SIZES = "2220x1080,1920x1080,1440x1080,1088x1088,1280x720,1056x704,"
+            + "1024x768,960x720,800x450,720x720,720x480,640x480,352x288,320x240,256x144,176x144";
+
+    private final List<Size> mSizes = new ArrayList<>();
+    private final Size mProfileSize = new Size(1920, 1080);
+    private SizeSelector mSelector;
+    private int mRotation;
+    private long mTime;
+
+    @Setup
+    public void setUp() {
+        for (String item : SIZES.split(",")) {
+            mSizes.add(Size.parse(item));
+        }
+        mTime = System.currentTimeMillis();
+        mSelector = new SizeSelector(mSizes, null, mSizes, mProfileSize, 30);
+        mSelector.select(1080, 2340, 90);
+    }
+
+    @Benchmark
+    public Size optimalPreviewSize() {
+        return PreviewSizes.getOptimalPreviewSize(mSizes, 1080, 2340);
+    }
+
+    @Benchmark
+    public Size optimalPreviewSizeFallback() {
+        // no ratio within tolerance, both scans run
+        return PreviewSizes.getOptimalPreviewSize(mSizes, 1000, 1000 * 3);
+    }
+
+    @Benchmark
+    public SizeSelection sizeSelectionCold() {
+        return new SizeSelector(mSizes, null, mSizes, mProfileSize, 30).select(1080, 2340, 90);
+    }
+
+    @Benchmark
+    public SizeSelection sizeSelectionMemoized() {
+        return mSelector.select(1080, 2340, 90);
+    }
+
+    @Benchmark
+    public int relativeRotation() {
+        mRotation = (mRotation + 90) % 360;
+        return CameraRotation.computeRelativeRotation(90, true, mRotation);
+    }
+
+    @Benchmark
+    public String videoFileName() {
+        return FileNames.video(FileNames.timeStamp(mTime++));
+    }
+}
@@ -0,0 +1,69 @@
+package com.isafemobile.cameratest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One preview frame through the burst path: camera callback looks up the frame, hands it
+ * to the worker queue, the worker takes it and releases it back to the camera.
+ * The jmh task fails if gc.alloc.rate.norm exceeds 1 B/op for any of these benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameHandoffBenchmark {
+
+    private FrameBufferPool mPool;
+    // without recycler, frames go back to the free list
+    private FrameBufferPool mFreeListPool;
+    private FrameHandoffQueue mQueue;
+    private final byte[][] mCameraBuffers = new byte[4][];
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mPool = new FrameBufferPool(4, 1920, 1080, 1920 * 1080 * 3 / 2);
+        mFreeListPool = new FrameBufferPool(4, 1920, 1080, 1920 * 1080 * 3 / 2);
+        mQueue = new FrameHandoffQueue(4);
+        for (int i = 0; i < mPool.size(); i++) {
+            mCameraBuffers[i] = mPool.get(i).data;
+        }
+        // stands in for Camera.addCallbackBuffer()
+        mPool.setRecycler(frame -> { });
+    }
+
+    @Benchmark
+    public long cameraToWorkerAndBack() {
+        byte[] filled = mCameraBuffers[mNext];
+        mNext = (mNext + 1) & 3;
+        Frame frame = mPool.onFrameFilled(filled, mNext);
+        mQueue.offer(frame);
+        Frame taken = mQueue.poll();
+        long sequence = taken.sequence();
+        taken.release();
+        return sequence;
+    }
+
+    @Benchmark
+    public long acquireRetainRelease() {
+        Frame frame = mFreeListPool.acquire(mNext++);
+        frame.retain();
+        frame.release();
+        long sequence = frame.sequence();
+        frame.release();
+        return sequence;
+    }
+}
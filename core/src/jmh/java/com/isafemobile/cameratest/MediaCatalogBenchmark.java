@@ -0,0 +1,71 @@
+package com.isafemobile.cameratest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing the newest captures of a catalog with 50000 entries, and loading that catalog
+ * at startup. Both must stay far below what enumerating the SAF folders costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaCatalogBenchmark {
+
+    private static final int ENTRIES = 50000;
+
+    private File mFile;
+    private MediaCatalog mCatalog;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("media", ".catalog");
+        mFile.delete();
+        mCatalog = new MediaCatalog(mFile);
+        mCatalog.open();
+        long timestampMs = 1700000000000L;
+        for (int i = 0; i < ENTRIES; i++) {
+            timestampMs += 1000 + i % 7 * 100;
+            String name = i % 5 == 0 ? "Videos/VID_" + i + ".mp4" : "Images/IMG_" + i + ".jpg";
+            mCatalog.add(new MediaCatalog.Entry("content://com.android.externalstorage.documents/tree/primary%3ADCIM/document/primary%3ADCIM%2F"
+                    + name, i % 5 == 0 ? MediaCatalog.TYPE_VIDEO : MediaCatalog.TYPE_IMAGE, timestampMs, 30000, 3000000, 90));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCatalog.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<MediaCatalog.Entry> recent100() {
+        return mCatalog.recent(100);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int openCatalog() throws IOException {
+        MediaCatalog catalog = new MediaCatalog(mFile);
+        catalog.open();
+        catalog.close();
+        return catalog.size();
+    }
+}
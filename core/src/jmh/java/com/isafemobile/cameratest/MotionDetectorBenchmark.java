@@ -0,0 +1,61 @@
+package com.isafemobile.cameratest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Motion detection on 1080p NV21 frames, alternating between two noisy synthetic frames
+ * so every call compares against a different previous frame. Should stay within a few
+ * milliseconds per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionDetectorBenchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    private final byte[][] mFrames = new byte[2][];
+    private MotionDetector mDetector;
+    private long mTimestampNs;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = new byte[WIDTH * HEIGHT * 3 / 2];
+            random.nextBytes(mFrames[i]);
+        }
+        mDetector = new MotionDetector(new MotionDetector.Listener() {
+            @Override
+            public void onMotionStarted() {
+            }
+
+            @Override
+            public void onMotionStopped() {
+            }
+        });
+    }
+
+    @Benchmark
+    public float analyze1080p() {
+        mTimestampNs += 33000000L;
+        mDetector.analyze(mFrames[(int) (mTimestampNs / 33000000L) & 1], WIDTH, HEIGHT, mTimestampNs);
+        return mDetector.changedFraction();
+    }
+}
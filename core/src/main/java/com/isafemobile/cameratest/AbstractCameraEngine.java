@@ -0,0 +1,202 @@
+package com.isafemobile.cameratest;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Enforces the {@link CameraEngine} state contract so the implementations only deal with
+ * their camera API. A hook that throws leaves the engine in the state before the call, except
+ * a failed preview start which leaves it {@link State#OPEN}; the hook has to undo its own
+ * partial work.
+ */
+public abstract class AbstractCameraEngine<S, R> implements CameraEngine<S, R> {
+
+    private State mState = State.CLOSED;
+    // set while a still is in flight; the engine's callback thread and close() race to take it
+    private final AtomicReference<StillCallback> mStillCallback = new AtomicReference<>();
+    private int mPreviewStreamStarts = 0;
+
+    @Override
+    public final State state() {
+        return mState;
+    }
+
+    @Override
+    public final void open() throws IOException {
+        checkState(State.CLOSED);
+        onOpen();
+        mState = State.OPEN;
+    }
+
+    @Override
+    public final void startPreview(S surface, SizeSelection sizes, int displayOrientation) throws IOException {
+        checkState(State.OPEN, State.PREVIEW);
+        if (mStillCallback.get() != null) {
+            throw new IllegalStateException("still capture in flight");
+        }
+        mState = State.OPEN;
+        onStartPreview(surface, sizes, displayOrientation);
+        mState = State.PREVIEW;
+    }
+
+    @Override
+    public final void stopPreview() {
+        if (mState == State.OPEN) {
+            return;
+        }
+        checkState(State.PREVIEW);
+        onStopPreview();
+        mState = State.OPEN;
+    }
+
+    @Override
+    public final void rebindPreview(S surface) throws IOException {
+        checkState(State.RECORDING);
+        if (mStillCallback.get() != null) {
+            throw new IllegalStateException("still capture in flight");
+        }
+        onRebindPreview(surface);
+    }
+
+    @Override
+    public final void attachRecorder(R recorder) throws IOException {
+        checkState(State.PREVIEW);
+        onAttachRecorder(recorder);
+        mState = State.RECORDER_ATTACHED;
+    }
+
+    @Override
+    public final void bindRecorderSurface(R recorder) throws IOException {
+        checkState(State.RECORDER_ATTACHED);
+        onBindRecorderSurface(recorder);
+    }
+
+    @Override
+    public final void startRecorderStream() throws IOException {
+        checkState(State.RECORDER_ATTACHED);
+        onStartRecorderStream();
+        mState = State.RECORDING;
+    }
+
+    @Override
+    public final void stopRecorderStream() {
+        if (mState == State.RECORDER_ATTACHED) {
+            return;
+        }
+        checkState(State.RECORDING);
+        onStopRecorderStream();
+        mState = State.RECORDER_ATTACHED;
+    }
+
+    @Override
+    public final void detachRecorder() {
+        stopRecorderStream();
+        checkState(State.RECORDER_ATTACHED);
+        onDetachRecorder();
+        mState = State.PREVIEW;
+    }
+
+    @Override
+    public final boolean canTakePicture() {
+        if (mStillCallback.get() != null) {
+            return false;
+        }
+        switch (mState) {
+            case PREVIEW:
+                return true;
+            case RECORDER_ATTACHED:
+                return keepsPreviewDuringCapture();
+            case RECORDING:
+                return supportsVideoSnapshot();
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public final void takePicture(StillCallback callback) throws IOException {
+        if (!canTakePicture()) {
+            throw new IllegalStateException("can't take a picture in " + mState
+                    + (mStillCallback.get() != null ? " while another is in flight" : ""));
+        }
+        mStillCallback.set(callback);
+        try {
+            onTakePicture();
+        } catch (IOException | RuntimeException e) {
+            mStillCallback.set(null);
+            throw e;
+        }
+    }
+
+    @Override
+    public final void close() {
+        if (mState == State.CLOSED) {
+            return;
+        }
+        if (mState == State.RECORDING || mState == State.RECORDER_ATTACHED) {
+            detachRecorder();
+        }
+        onClose();
+        mState = State.CLOSED;
+        stillCaptured(null);
+    }
+
+    /**
+     * @return how often the preview stream was started, including restarts after a still
+     */
+    public final int previewStreamStarts() {
+        return mPreviewStreamStarts;
+    }
+
+    /**
+     * To be called by the implementation each time it starts the preview stream.
+     */
+    protected final void previewStreamStarted() {
+        mPreviewStreamStarts++;
+    }
+
+    /**
+     * To be called by the implementation once a still is done, from any thread. Only the
+     * first call for a capture reaches the callback.
+     */
+    protected final void stillCaptured(byte[] jpeg) {
+        StillCallback callback = mStillCallback.getAndSet(null);
+        if (callback != null) {
+            callback.onStillCaptured(jpeg);
+        }
+    }
+
+    private void checkState(State... expected) {
+        for (State state : expected) {
+            if (mState == state) {
+                return;
+            }
+        }
+        throw new IllegalStateException("engine is " + mState);
+    }
+
+    protected abstract void onOpen() throws IOException;
+
+    protected abstract void onStartPreview(S surface, SizeSelection sizes, int displayOrientation) throws IOException;
+
+    protected abstract void onStopPreview();
+
+    protected abstract void onRebindPreview(S surface) throws IOException;
+
+    protected abstract void onAttachRecorder(R recorder) throws IOException;
+
+    protected abstract void onBindRecorderSurface(R recorder) throws IOException;
+
+    protected abstract void onStartRecorderStream() throws IOException;
+
+    protected abstract void onStopRecorderStream();
+
+    protected abstract void onDetachRecorder();
+
+    /**
+     * Starts the capture; the result goes to {@link #stillCaptured}.
+     */
+    protected abstract void onTakePicture() throws IOException;
+
+    protected abstract void onClose();
+}
@@ -0,0 +1,225 @@
+package com.isafemobile.cameratest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the camera reported about itself on a given build, plus the sizes that were chosen
+ * for each surface size and rotation. Persisted between launches so the first preview does not
+ * wait for the characteristics and size queries; the cache is only valid for the build
+ * fingerprint it was taken on.
+ * <p>
+ * Not thread safe, the chosen sizes are updated on the camera session thread.
+ */
+public class CameraCapabilities {
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_SENSOR_ORIENTATION = "sensorOrientation";
+    private static final String KEY_LENS_FACING = "lensFacing";
+    private static final String KEY_HARDWARE_LEVEL = "hardwareLevel";
+    private static final String KEY_PREVIEW_SIZES = "previewSizes";
+    private static final String KEY_PREVIEW_FPS = "previewFps";
+    private static final String KEY_VIDEO_SIZES = "videoSizes";
+    // entries of older versions used "chosen." and are dropped
+    private static final String KEY_SELECTION_PREFIX = "selection.";
+
+    public final String fingerprint;
+    public final int sensorOrientation;
+    public final int lensFacing;
+    // Camera2 INFO_SUPPORTED_HARDWARE_LEVEL, see CameraEngines
+    public final int hardwareLevel;
+    public final List<Size> previewSizes;
+    // highest frame rate per preview size, 0 if unknown
+    private final int[] mPreviewMaxFps;
+    public final List<Size> videoSizes;
+    // keyed by "<surface>@<rotation>"
+    private final Map<String, SizeSelection> mChosenSizes = new HashMap<>();
+
+    /**
+     * @param previewMaxFps highest frame rate per preview size in the same order, may be null
+     */
+    public CameraCapabilities(String fingerprint, int sensorOrientation, int lensFacing, int hardwareLevel,
+                              List<Size> previewSizes, int[] previewMaxFps, List<Size> videoSizes) {
+        this.fingerprint = fingerprint;
+        this.sensorOrientation = sensorOrientation;
+        this.lensFacing = lensFacing;
+        this.hardwareLevel = hardwareLevel;
+        this.previewSizes = Collections.unmodifiableList(new ArrayList<>(previewSizes));
+        mPreviewMaxFps = Arrays.copyOf(previewMaxFps != null ? previewMaxFps : new int[0], previewSizes.size());
+        this.videoSizes = Collections.unmodifiableList(new ArrayList<>(videoSizes));
+    }
+
+    /**
+     * @return a copy, 0 where the frame rate is unknown
+     */
+    public int[] previewMaxFps() {
+        return mPreviewMaxFps.clone();
+    }
+
+    /**
+     * @return the sizes chosen before for this surface, or null if there are none or they
+     * are not supported anymore
+     */
+    public SizeSelection chosenSizes(int surfaceWidth, int surfaceHeight, int rotationDegrees) {
+        SizeSelection chosen = mChosenSizes.get(selectionKey(surfaceWidth, surfaceHeight, rotationDegrees));
+        return chosen != null && isSupported(chosen) ? chosen : null;
+    }
+
+    public void putChosenSizes(int surfaceWidth, int surfaceHeight, int rotationDegrees, SizeSelection selection) {
+        mChosenSizes.put(selectionKey(surfaceWidth, surfaceHeight, rotationDegrees), selection);
+    }
+
+    /**
+     * Copies the chosen sizes that still apply from an older cache entry.
+     */
+    public void keepChosenSizes(CameraCapabilities previous) {
+        for (Map.Entry<String, SizeSelection> entry : previous.mChosenSizes.entrySet()) {
+            if (isSupported(entry.getValue())) {
+                mChosenSizes.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private boolean isSupported(SizeSelection selection) {
+        return previewSizes.contains(selection.preview)
+                && (videoSizes.isEmpty() ? previewSizes : videoSizes).contains(selection.video);
+    }
+
+    private static String selectionKey(int surfaceWidth, int surfaceHeight, int rotationDegrees) {
+        return surfaceWidth + "x" + surfaceHeight + "@" + rotationDegrees;
+    }
+
+    /**
+     * @return true if both describe the same camera, ignoring the chosen sizes
+     */
+    public boolean sameCapabilities(CameraCapabilities other) {
+        return other != null
+                && fingerprint.equals(other.fingerprint)
+                && sensorOrientation == other.sensorOrientation
+                && lensFacing == other.lensFacing
+                && hardwareLevel == other.hardwareLevel
+                && previewSizes.equals(other.previewSizes)
+                && Arrays.equals(mPreviewMaxFps, other.mPreviewMaxFps)
+                && videoSizes.equals(other.videoSizes);
+    }
+
+    /**
+     * @return one key=value per line
+     */
+    public String encode() {
+        StringBuilder out = new StringBuilder();
+        out.append(KEY_FINGERPRINT).append('=').append(fingerprint).append('\n');
+        out.append(KEY_SENSOR_ORIENTATION).append('=').append(sensorOrientation).append('\n');
+        out.append(KEY_LENS_FACING).append('=').append(lensFacing).append('\n');
+        out.append(KEY_HARDWARE_LEVEL).append('=').append(hardwareLevel).append('\n');
+        out.append(KEY_PREVIEW_SIZES).append('=');
+        appendSizes(out, previewSizes);
+        out.append(KEY_PREVIEW_FPS).append('=');
+        for (int i = 0; i < mPreviewMaxFps.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(mPreviewMaxFps[i]);
+        }
+        out.append('\n');
+        out.append(KEY_VIDEO_SIZES).append('=');
+        appendSizes(out, videoSizes);
+        for (Map.Entry<String, SizeSelection> entry : mChosenSizes.entrySet()) {
+            out.append(KEY_SELECTION_PREFIX).append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the decoded capabilities, or null if the text is incomplete, malformed or was
+     * taken on a different build
+     */
+    public static CameraCapabilities decode(String text, String expectedFingerprint) {
+        if (text == null) {
+            return null;
+        }
+        Map<String, String> values = new HashMap<>();
+        for (String line : text.split("\n")) {
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                values.put(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        if (!expectedFingerprint.equals(values.get(KEY_FINGERPRINT))) {
+            return null;
+        }
+        List<Size> previewSizes = parseSizes(values.get(KEY_PREVIEW_SIZES));
+        List<Size> videoSizes = parseSizes(values.get(KEY_VIDEO_SIZES));
+        if (previewSizes == null || previewSizes.isEmpty() || videoSizes == null) {
+            return null;
+        }
+        // missing in entries of older versions, LEGACY keeps those on Camera1
+        String hardwareLevel = values.get(KEY_HARDWARE_LEVEL);
+        CameraCapabilities capabilities;
+        try {
+            capabilities = new CameraCapabilities(expectedFingerprint,
+                    Integer.parseInt(values.get(KEY_SENSOR_ORIENTATION)),
+                    Integer.parseInt(values.get(KEY_LENS_FACING)),
+                    hardwareLevel != null ? Integer.parseInt(hardwareLevel) : CameraEngines.HARDWARE_LEVEL_LEGACY,
+                    previewSizes, parseInts(values.get(KEY_PREVIEW_FPS)), videoSizes);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getKey().startsWith(KEY_SELECTION_PREFIX)) {
+                SizeSelection selection = SizeSelection.parse(entry.getValue());
+                if (selection != null) {
+                    capabilities.mChosenSizes.put(entry.getKey().substring(KEY_SELECTION_PREFIX.length()), selection);
+                }
+            }
+        }
+        return capabilities;
+    }
+
+    private static void appendSizes(StringBuilder out, List<Size> sizes) {
+        for (int i = 0; i < sizes.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(sizes.get(i));
+        }
+        out.append('\n');
+    }
+
+    /**
+     * @return null if missing, e.g. in an entry from an older version
+     */
+    private static int[] parseInts(String text) {
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        String[] items = text.split(",");
+        int[] values = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = Integer.parseInt(items[i]);
+        }
+        return values;
+    }
+
+    private static List<Size> parseSizes(String text) {
+        if (text == null) {
+            return null;
+        }
+        List<Size> sizes = new ArrayList<>();
+        if (text.isEmpty()) {
+            return sizes;
+        }
+        for (String item : text.split(",")) {
+            Size size = Size.parse(item);
+            if (size == null) {
+                return null;
+            }
+            sizes.add(size);
+        }
+        return sizes;
+    }
+}
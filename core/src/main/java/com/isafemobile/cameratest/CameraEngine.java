@@ -0,0 +1,98 @@
+package com.isafemobile.cameratest;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The camera of one session, independent of the camera API behind it. {@code S} is the
+ * preview target and {@code R} the recorder; the caller owns and configures the recorder,
+ * the engine only connects it to the camera.
+ * <p>
+ * A recording goes through {@link #attachRecorder} before the recorder's output format is
+ * set, {@link #bindRecorderSurface} right before it is prepared, {@link #startRecorderStream}
+ * once it started, {@link #stopRecorderStream} before it is stopped and
+ * {@link #detachRecorder} once it released the camera.
+ * <p>
+ * Calls that do not fit the current {@link State} throw {@link IllegalStateException}.
+ * Every method is called on the session thread.
+ */
+public interface CameraEngine<S, R> {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        PREVIEW,
+        // a recorder is connected but not receiving frames yet, or anymore
+        RECORDER_ATTACHED,
+        RECORDING
+    }
+
+    interface StillCallback {
+        /**
+         * Called on the engine's callback thread.
+         *
+         * @param jpeg null if the capture failed or the engine was closed
+         */
+        void onStillCaptured(byte[] jpeg);
+    }
+
+    State state();
+
+    void open() throws IOException;
+
+    List<Size> previewSizes();
+
+    /**
+     * @return empty if recordings use the preview sizes
+     */
+    List<Size> videoSizes();
+
+    boolean supportsVideoSnapshot();
+
+    /**
+     * @return true if stills and recordings are served from the running capture session, false
+     * if the preview stream has to stop for them
+     */
+    boolean keepsPreviewDuringCapture();
+
+    /**
+     * Starts or re-binds the preview; a running preview is reconfigured.
+     */
+    void startPreview(S surface, SizeSelection sizes, int displayOrientation) throws IOException;
+
+    void stopPreview();
+
+    /**
+     * Moves the preview of a running recording to another surface, with the sizes and
+     * orientation it was started with; those only change once the recording is over. If it
+     * throws, frames may no longer reach the recorder.
+     */
+    void rebindPreview(S surface) throws IOException;
+
+    void attachRecorder(R recorder) throws IOException;
+
+    void bindRecorderSurface(R recorder) throws IOException;
+
+    void startRecorderStream() throws IOException;
+
+    void stopRecorderStream();
+
+    void detachRecorder();
+
+    /**
+     * @return whether {@link #takePicture} is allowed in the current state
+     */
+    boolean canTakePicture();
+
+    /**
+     * Captures a JPEG; only one capture can be in flight. The engine is back in its previous
+     * state when the callback runs.
+     */
+    void takePicture(StillCallback callback) throws IOException;
+
+    /**
+     * Closes the camera from any state; a connected recorder is detached and a capture in
+     * flight reports null.
+     */
+    void close();
+}
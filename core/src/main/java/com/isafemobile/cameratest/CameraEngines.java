@@ -0,0 +1,32 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Picks the camera API for a session from the Camera2 hardware level of the camera.
+ */
+public final class CameraEngines {
+
+    // values of CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_*, not in capability order
+    public static final int HARDWARE_LEVEL_LIMITED = 0;
+    public static final int HARDWARE_LEVEL_FULL = 1;
+    public static final int HARDWARE_LEVEL_LEGACY = 2;
+    public static final int HARDWARE_LEVEL_3 = 3;
+    public static final int HARDWARE_LEVEL_EXTERNAL = 4;
+
+    private CameraEngines() {
+    }
+
+    /**
+     * LEGACY devices run Camera2 on top of the Camera1 HAL and LIMITED or EXTERNAL ones don't
+     * guarantee the stream combinations a session with preview, recorder and JPEG outputs
+     * needs, so only FULL and LEVEL_3 get Camera2. Preview frame callbacks only exist on the
+     * Camera1 path.
+     *
+     * @param needsPreviewFrames a feature of the session consumes preview frames
+     */
+    public static boolean useCamera2(int hardwareLevel, boolean needsPreviewFrames) {
+        if (needsPreviewFrames) {
+            return false;
+        }
+        return hardwareLevel == HARDWARE_LEVEL_FULL || hardwareLevel == HARDWARE_LEVEL_3;
+    }
+}
@@ -0,0 +1,23 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Orientation math between the camera sensor and the display.
+ */
+public class CameraRotation {
+
+    /**
+     * @param sensorOrientationDegrees clockwise angle the sensor image has to be rotated to be upright
+     * @param backFacing               false for a front facing camera, whose image is mirrored
+     * @param surfaceRotationDegrees   rotation of the display, 0, 90, 180 or 270
+     * @return the orientation that makes the image upright relative to the device orientation
+     */
+    public static int computeRelativeRotation(int sensorOrientationDegrees, boolean backFacing,
+                                              int surfaceRotationDegrees) {
+        // Reverse device orientation for back-facing cameras.
+        int sign = backFacing ? 1 : -1;
+
+        // Calculate desired orientation relative to camera orientation to make
+        // the image upright relative to the device orientation.
+        return (sensorOrientationDegrees - surfaceRotationDegrees * sign + 360) % 360;
+    }
+}
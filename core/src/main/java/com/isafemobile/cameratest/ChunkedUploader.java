@@ -0,0 +1,152 @@
+package com.isafemobile.cameratest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Uploads a file in fixed size chunks that can be resumed where an earlier attempt stopped.
+ * The protocol, per upload id:
+ * <ul>
+ * <li>{@code HEAD <endpoint>/<id>} answers the bytes the server has in an
+ * {@code Upload-Offset} header, or 404 for an upload it hasn't seen;</li>
+ * <li>{@code PUT <endpoint>/<id>} appends a chunk, with the chunk's position in
+ * {@code Upload-Offset}, the file size in {@code Upload-Length} and the file name in
+ * {@code Upload-Name}; the server answers 2xx with its new {@code Upload-Offset}, or 409
+ * with its current one if the position does not match.</li>
+ * </ul>
+ * Chunks are streamed from the channel through one reused buffer, a file is never held in
+ * memory. Not thread safe, use one uploader per thread.
+ */
+public class ChunkedUploader {
+
+    public static final String HEADER_OFFSET = "Upload-Offset";
+    public static final String HEADER_LENGTH = "Upload-Length";
+    public static final String HEADER_NAME = "Upload-Name";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private final String mEndpoint;
+    private final int mChunkBytes;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+
+    public ChunkedUploader(String endpoint, int chunkBytes) {
+        mEndpoint = endpoint.endsWith("/") ? endpoint : endpoint + "/";
+        mChunkBytes = chunkBytes;
+    }
+
+    /**
+     * Uploads what the server is missing of the file. Checks for interruption between chunks.
+     *
+     * @return bytes sent, less than the file size if the server already had part of it
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public long upload(String uploadId, String name, FileChannel source) throws IOException {
+        URL url = new URL(mEndpoint + uploadId);
+        long length = source.size();
+        long offset = serverOffset(url);
+        long sent = 0;
+        while (offset < length) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Upload of " + name + " interrupted at " + offset);
+            }
+            int chunk = (int) Math.min(mChunkBytes, length - offset);
+            long next = putChunk(url, name, source, offset, chunk, length);
+            if (next == offset) {
+                throw new IOException("Server took none of the chunk of " + name + " at " + offset);
+            }
+            if (next == offset + chunk) {
+                sent += chunk;
+            }
+            offset = next;
+        }
+        return sent;
+    }
+
+    /**
+     * @return the bytes the server has of the upload
+     */
+    private long serverOffset(URL url) throws IOException {
+        HttpURLConnection connection = open(url, "HEAD");
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                return 0;
+            }
+            if (status / 100 != 2) {
+                throw new IOException("HEAD " + url + " failed with " + status);
+            }
+            return offsetHeader(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the offset the server continues at
+     */
+    private long putChunk(URL url, String name, FileChannel source, long offset, int chunk, long length)
+            throws IOException {
+        HttpURLConnection connection = open(url, "PUT");
+        try {
+            connection.setDoOutput(true);
+            // streamed as it is read, HttpURLConnection would buffer the body otherwise
+            connection.setFixedLengthStreamingMode(chunk);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty(HEADER_OFFSET, Long.toString(offset));
+            connection.setRequestProperty(HEADER_LENGTH, Long.toString(length));
+            connection.setRequestProperty(HEADER_NAME, name);
+            try (OutputStream out = connection.getOutputStream()) {
+                long position = offset;
+                long end = offset + chunk;
+                while (position < end) {
+                    mBuffer.clear();
+                    mBuffer.limit((int) Math.min(mBuffer.capacity(), end - position));
+                    int read = source.read(mBuffer, position);
+                    if (read < 0) {
+                        throw new IOException(name + " is shorter than " + length + " bytes");
+                    }
+                    out.write(mBuffer.array(), 0, read);
+                    position += read;
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2 && status != HttpURLConnection.HTTP_CONFLICT) {
+                throw new IOException("PUT " + url + " at " + offset + " failed with " + status);
+            }
+            long next = offsetHeader(connection);
+            if (next < 0 || next > length) {
+                throw new IOException("PUT " + url + " answered offset " + next + " of " + length);
+            }
+            return next;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(URL url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    private static long offsetHeader(HttpURLConnection connection) throws IOException {
+        String offset = connection.getHeaderField(HEADER_OFFSET);
+        if (offset == null) {
+            throw new IOException("No " + HEADER_OFFSET + " in the response from " + connection.getURL());
+        }
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad " + HEADER_OFFSET + " " + offset, e);
+        }
+    }
+}
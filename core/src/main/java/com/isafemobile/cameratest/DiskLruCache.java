@@ -0,0 +1,164 @@
+package com.isafemobile.cameratest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directory of small files capped in total size, the least recently used ones are deleted
+ * first. Files are named after a hash of their key; the use order survives restarts through
+ * the files' modification times, which a read bumps. Files are written to a temporary name
+ * and renamed, a crash leaves no partial entry behind. Thread safe; everything touches the
+ * disk, keep it off the main thread.
+ */
+public class DiskLruCache {
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    // file name to size, access order, eldest first
+    private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes = 0;
+    private boolean mOpen = false;
+
+    public DiskLruCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Creates the directory or indexes the files already in it.
+     */
+    public synchronized void open() throws IOException {
+        if (mOpen) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list " + mDirectory);
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                // left by a crash mid-write
+                file.delete();
+                continue;
+            }
+            mFiles.put(file.getName(), file.length());
+            mBytes += file.length();
+        }
+        mOpen = true;
+        trim();
+    }
+
+    /**
+     * @return the cached data, or null if there is none
+     */
+    public synchronized byte[] get(String key) throws IOException {
+        String name = fileName(key);
+        if (!mOpen || mFiles.get(name) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            // deleted behind our back, e.g. by the system clearing the cache
+            remove(name);
+            throw e;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    public synchronized void put(String key, byte[] data) throws IOException {
+        if (!mOpen) {
+            throw new IOException("Cache is not open");
+        }
+        if (data.length > mMaxBytes) {
+            return;
+        }
+        String name = fileName(key);
+        File tmp = new File(mDirectory, name + TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        }
+        remove(name);
+        if (!tmp.renameTo(new File(mDirectory, name))) {
+            tmp.delete();
+            throw new IOException("Failed to store " + name);
+        }
+        mFiles.put(name, (long) data.length);
+        mBytes += data.length;
+        trim();
+    }
+
+    public synchronized long bytes() {
+        return mBytes;
+    }
+
+    public synchronized int size() {
+        return mFiles.size();
+    }
+
+    private void remove(String name) {
+        Long size = mFiles.remove(name);
+        if (size != null) {
+            mBytes -= size;
+            new File(mDirectory, name).delete();
+        }
+    }
+
+    private void trim() {
+        if (mBytes <= mMaxBytes) {
+            return;
+        }
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> eldest = mFiles.entrySet().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            mBytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            eldest.remove();
+        }
+        for (String name : evicted) {
+            new File(mDirectory, name).delete();
+        }
+    }
+
+    static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.isafemobile.cameratest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring of encoded access units (video and audio) for pre-event recording.
+ * <p>
+ * All memory is allocated up front: one byte array for the payloads and fixed size
+ * arrays for the packet metadata, so the footprint does not depend on how long the
+ * ring has been running. The oldest retained packet is always a video keyframe;
+ * packets are evicted a whole GOP at a time, either when the ring runs out of space
+ * or when the GOP after it still covers the configured time window.
+ * <p>
+ * Not thread safe.
+ */
+public class EncodedPacketRing {
+
+    /** Same value as {@code MediaCodec.BUFFER_FLAG_KEY_FRAME}. */
+    public static final int FLAG_KEY_FRAME = 1;
+
+    public interface PacketSink {
+        void onPacket(int track, byte[] data, int offset, int size, long ptsUs, int flags);
+    }
+
+    private final int mVideoTrack;
+    private final long mWindowUs;
+
+    private final byte[] mData;
+    private final int[] mTrack;
+    private final int[] mOffset;
+    private final int[] mSize;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+
+    // index of the oldest packet in the metadata arrays
+    private int mHead = 0;
+    private int mCount = 0;
+    // next free byte in mData
+    private int mWritePos = 0;
+    private long mLastVideoPtsUs = Long.MIN_VALUE;
+
+    /**
+     * @param capacityBytes payload bytes the ring can hold
+     * @param maxPackets    number of packets the ring can hold
+     * @param videoTrack    track id of the video packets, which drive keyframe alignment
+     * @param windowUs      amount of footage to keep before the newest packet
+     */
+    public EncodedPacketRing(int capacityBytes, int maxPackets, int videoTrack, long windowUs) {
+        if (capacityBytes <= 0 || maxPackets <= 0 || windowUs <= 0) {
+            throw new IllegalArgumentException("capacity, packets and window must be positive");
+        }
+        mVideoTrack = videoTrack;
+        mWindowUs = windowUs;
+        mData = new byte[capacityBytes];
+        mTrack = new int[maxPackets];
+        mOffset = new int[maxPackets];
+        mSize = new int[maxPackets];
+        mPtsUs = new long[maxPackets];
+        mFlags = new int[maxPackets];
+    }
+
+    /**
+     * Copies the remaining bytes of {@code src} into the ring. The position of {@code src} is not changed.
+     *
+     * @return false if the packet was dropped because it does not start with a keyframe or does not fit at all
+     */
+    public boolean write(int track, ByteBuffer src, long ptsUs, int flags) {
+        int size = src.remaining();
+        int pos = reserve(track, size, flags);
+        if (pos < 0) {
+            return false;
+        }
+        src.duplicate().get(mData, pos, size);
+        commit(track, pos, size, ptsUs, flags);
+        return true;
+    }
+
+    public boolean write(int track, byte[] src, int offset, int size, long ptsUs, int flags) {
+        int pos = reserve(track, size, flags);
+        if (pos < 0) {
+            return false;
+        }
+        System.arraycopy(src, offset, mData, pos, size);
+        commit(track, pos, size, ptsUs, flags);
+        return true;
+    }
+
+    /**
+     * Hands all packets to {@code sink}, oldest first, and empties the ring.
+     */
+    public void drainTo(PacketSink sink) {
+        while (mCount > 0) {
+            int i = mHead;
+            sink.onPacket(mTrack[i], mData, mOffset[i], mSize[i], mPtsUs[i], mFlags[i]);
+            evictOne();
+        }
+        clear();
+    }
+
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+        mWritePos = 0;
+        mLastVideoPtsUs = Long.MIN_VALUE;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int capacityBytes() {
+        return mData.length;
+    }
+
+    /**
+     * @return payload bytes currently held, not counting space lost at the wrap point
+     */
+    public int usedBytes() {
+        int used = 0;
+        for (int n = 0, i = mHead; n < mCount; n++, i = next(i)) {
+            used += mSize[i];
+        }
+        return used;
+    }
+
+    /**
+     * @return presentation time of the oldest packet, or {@link Long#MIN_VALUE} if empty
+     */
+    public long oldestPtsUs() {
+        return mCount > 0 ? mPtsUs[mHead] : Long.MIN_VALUE;
+    }
+
+    /**
+     * @return span between the oldest packet and the newest video packet
+     */
+    public long bufferedDurationUs() {
+        return mCount > 0 && mLastVideoPtsUs != Long.MIN_VALUE ? mLastVideoPtsUs - mPtsUs[mHead] : 0;
+    }
+
+    /**
+     * Makes room for a packet and returns the byte position to copy it to, or -1 to drop it.
+     */
+    private int reserve(int track, int size, int flags) {
+        boolean keyFrame = track == mVideoTrack && (flags & FLAG_KEY_FRAME) != 0;
+        if (size > mData.length) {
+            // can never be stored, the GOP it belongs to is broken so start over
+            clear();
+            return -1;
+        }
+        while (true) {
+            if (mCount == 0) {
+                if (!keyFrame) {
+                    // the ring has to start on a keyframe
+                    return -1;
+                }
+                mWritePos = 0;
+                return 0;
+            }
+            if (mCount < mTrack.length) {
+                int pos = findSpace(size);
+                if (pos >= 0) {
+                    return pos;
+                }
+            }
+            evictGop();
+        }
+    }
+
+    private int findSpace(int size) {
+        int headPos = mOffset[mHead];
+        if (mWritePos > headPos) {
+            // free space is [mWritePos, end) and [0, headPos)
+            if (mData.length - mWritePos >= size) {
+                return mWritePos;
+            }
+            return headPos > size ? 0 : -1;
+        }
+        // wrapped, free space is [mWritePos, headPos)
+        return headPos - mWritePos > size ? mWritePos : -1;
+    }
+
+    private void commit(int track, int pos, int size, long ptsUs, int flags) {
+        int i = (mHead + mCount) % mTrack.length;
+        mTrack[i] = track;
+        mOffset[i] = pos;
+        mSize[i] = size;
+        mPtsUs[i] = ptsUs;
+        mFlags[i] = flags;
+        mCount++;
+        mWritePos = pos + size;
+        if (track == mVideoTrack) {
+            mLastVideoPtsUs = ptsUs;
+            trimToWindow();
+        }
+    }
+
+    /**
+     * Drops the oldest GOP as long as the next one alone still covers the window.
+     */
+    private void trimToWindow() {
+        int nextKey;
+        while ((nextKey = nextKeyFrame()) >= 0 && mLastVideoPtsUs - mPtsUs[nextKey] >= mWindowUs) {
+            evictGop();
+        }
+    }
+
+    /**
+     * Evicts packets up to, not including, the next video keyframe, or everything if there is none.
+     */
+    private void evictGop() {
+        evictOne();
+        while (mCount > 0 && !isKeyFrame(mHead)) {
+            evictOne();
+        }
+        if (mCount == 0) {
+            mWritePos = 0;
+        }
+    }
+
+    private int nextKeyFrame() {
+        for (int n = 1, i = next(mHead); n < mCount; n++, i = next(i)) {
+            if (isKeyFrame(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isKeyFrame(int i) {
+        return mTrack[i] == mVideoTrack && (mFlags[i] & FLAG_KEY_FRAME) != 0;
+    }
+
+    private void evictOne() {
+        mHead = next(mHead);
+        mCount--;
+    }
+
+    private int next(int i) {
+        return i + 1 == mTrack.length ? 0 : i + 1;
+    }
+}
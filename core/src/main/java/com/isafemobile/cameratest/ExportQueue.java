@@ -0,0 +1,127 @@
+package com.isafemobile.cameratest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Files waiting to be exported, oldest first, persisted so they survive restarts. Each item
+ * gets an upload id when it is queued, the server keys its partial uploads by it. The queue
+ * stays small, the file is rewritten and atomically replaced on every change. Thread safe.
+ */
+public class ExportQueue {
+
+    public static class Item {
+        public final String id;
+        public final String uri;
+        public final String name;
+
+        Item(String id, String uri, String name) {
+            this.id = id;
+            this.uri = uri;
+            this.name = name;
+        }
+    }
+
+    private final File mFile;
+    // uri to item, in queue order
+    private final LinkedHashMap<String, Item> mItems = new LinkedHashMap<>();
+    private boolean mLoaded = false;
+
+    public ExportQueue(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Queues a file unless it is queued already.
+     */
+    public synchronized void add(String uri, String name) throws IOException {
+        load();
+        if (mItems.containsKey(uri)) {
+            return;
+        }
+        mItems.put(uri, new Item(UUID.randomUUID().toString(), uri, name));
+        save();
+    }
+
+    /**
+     * Removes an exported file, or one that can't be exported any more.
+     */
+    public synchronized void remove(Item item) throws IOException {
+        load();
+        if (mItems.remove(item.uri) != null) {
+            save();
+        }
+    }
+
+    /**
+     * @param skip ids of items that are being exported or failed in this run
+     * @return the oldest item not in {@code skip}, or null
+     */
+    public synchronized Item next(Collection<String> skip) throws IOException {
+        load();
+        for (Item item : mItems.values()) {
+            if (!skip.contains(item.id)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() throws IOException {
+        load();
+        return mItems.size();
+    }
+
+    public synchronized List<Item> items() throws IOException {
+        load();
+        return new ArrayList<>(mItems.values());
+    }
+
+    private void load() throws IOException {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // id, name, uri; ids and names have no tabs, uris are encoded
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3) {
+                    mItems.put(fields[2], new Item(fields[0], fields[2], fields[1]));
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            Writer out = new OutputStreamWriter(file, StandardCharsets.UTF_8);
+            for (Item item : mItems.values()) {
+                out.write(item.id + "\t" + item.name.replace('\t', ' ') + "\t" + item.uri + "\n");
+            }
+            out.flush();
+            // the rename must not reach the disk before the data
+            file.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Failed to replace " + mFile);
+        }
+    }
+}
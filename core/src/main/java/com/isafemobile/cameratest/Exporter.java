@@ -0,0 +1,124 @@
+package com.isafemobile.cameratest;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Works through an {@link ExportQueue} with a bounded number of concurrent uploads. An
+ * upload that fails is left in the queue and not retried within the same run; an upload
+ * that was interrupted resumes from the server's offset on the next run.
+ */
+public class Exporter {
+
+    public interface Source {
+        /**
+         * @return a channel over the file, closed once the upload is done
+         * @throws FileNotFoundException if the file is gone, it is dropped from the queue then
+         */
+        FileChannel open(ExportQueue.Item item) throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * Called on an upload thread.
+         *
+         * @param bytesSent bytes sent in this run, 0 if it failed
+         * @param error     null if the file was exported
+         */
+        void onExportFinished(ExportQueue.Item item, long bytesSent, IOException error);
+    }
+
+    private static class Result {
+        final ExportQueue.Item item;
+        final boolean done;
+
+        Result(ExportQueue.Item item, boolean done) {
+            this.item = item;
+            this.done = done;
+        }
+    }
+
+    private final ExportQueue mQueue;
+    private final Source mSource;
+    private final String mEndpoint;
+    private final int mChunkBytes;
+    private final int mConcurrency;
+    private final Listener mListener;
+
+    public Exporter(ExportQueue queue, Source source, String endpoint, int chunkBytes, int concurrency,
+                    Listener listener) {
+        mQueue = queue;
+        mSource = source;
+        mEndpoint = endpoint;
+        mChunkBytes = chunkBytes;
+        mConcurrency = concurrency;
+        mListener = listener;
+    }
+
+    /**
+     * Exports queued files until every item was tried once. Blocks; interrupting the calling
+     * thread stops the uploads after their current chunk.
+     *
+     * @return true if the queue is empty
+     * @throws InterruptedException if the run was interrupted
+     */
+    public boolean run() throws IOException, InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(mConcurrency);
+        ExecutorCompletionService<Result> results = new ExecutorCompletionService<>(workers);
+        // being exported or failed, not started again in this run
+        Set<String> skip = new HashSet<>();
+        int running = 0;
+        try {
+            while (true) {
+                ExportQueue.Item item;
+                while (running < mConcurrency && (item = mQueue.next(skip)) != null) {
+                    skip.add(item.id);
+                    ExportQueue.Item started = item;
+                    results.submit(() -> new Result(started, export(started)));
+                    running++;
+                }
+                if (running == 0) {
+                    return mQueue.size() == 0;
+                }
+                Result result = results.take().get();
+                running--;
+                if (result.done) {
+                    mQueue.remove(result.item);
+                }
+            }
+        } catch (ExecutionException e) {
+            // export() catches its own errors, this is a bug
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // interrupts the uploads when the run itself was interrupted
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if the item can leave the queue
+     */
+    private boolean export(ExportQueue.Item item) {
+        ChunkedUploader uploader = new ChunkedUploader(mEndpoint, mChunkBytes);
+        long sent;
+        try (FileChannel source = mSource.open(item)) {
+            sent = uploader.upload(item.id, item.name, source);
+        } catch (FileNotFoundException e) {
+            // deleted before it was exported, nothing left to retry
+            mListener.onExportFinished(item, 0, e);
+            return true;
+        } catch (IOException e) {
+            mListener.onExportFinished(item, 0, e);
+            return false;
+        }
+        mListener.onExportFinished(item, sent, null);
+        return true;
+    }
+}
@@ -0,0 +1,47 @@
+package com.isafemobile.cameratest;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Names of the files the app writes: IMG_&lt;timestamp&gt;.jpg and VID_&lt;timestamp&gt;.mp4 with a
+ * local yyyyMMdd_HHmmss timestamp. Segment names are in {@link SegmentQuota}. Outputs
+ * created ahead of a recording are named PENDING_&lt;timestamp&gt;_&lt;n&gt;.mp4 until the recording
+ * starts.
+ */
+public class FileNames {
+
+    private static final String TIME_STAMP_PATTERN = "yyyyMMdd_HHmmss";
+
+    public static String timeStamp() {
+        return timeStamp(System.currentTimeMillis());
+    }
+
+    public static String timeStamp(long timeMillis) {
+        return new SimpleDateFormat(TIME_STAMP_PATTERN, Locale.getDefault()).format(new Date(timeMillis));
+    }
+
+    public static String video(String timeStamp) {
+        return "VID_" + timeStamp + ".mp4";
+    }
+
+    /**
+     * For an output created before its recording starts. Never matches a segment name, the
+     * loop quota must not delete outputs that are still waiting to be recorded into.
+     */
+    public static String pendingVideo(String timeStamp, int sequence) {
+        return "PENDING_" + timeStamp + "_" + sequence + ".mp4";
+    }
+
+    public static String image(String timeStamp) {
+        return "IMG_" + timeStamp + ".jpg";
+    }
+
+    /**
+     * For several images within the same second, e.g. a burst.
+     */
+    public static String image(String timeStamp, int sequence) {
+        return "IMG_" + timeStamp + "_" + sequence + ".jpg";
+    }
+}
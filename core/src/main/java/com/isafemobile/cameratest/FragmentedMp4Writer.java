@@ -0,0 +1,705 @@
+package com.isafemobile.cameratest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streams encoded AVC/AAC access units into a fragmented MP4: ftyp and a sample-less moov up
+ * front, then one moof/mdat pair per GOP of the first track. Nothing is ever rewritten, so a
+ * file cut off by a crash still plays up to its last complete fragment and finishing it only
+ * writes the samples of the last GOP.
+ * <p>
+ * The samples of a fragment are collected per track in direct buffers and the fragment goes
+ * out in a single gathering write once the next keyframe arrives. Presentation times are used
+ * as decode times, the encoders have to be configured without B-frames; a video sample that
+ * goes back in time fails the write instead of producing a file that plays out of order.
+ * <p>
+ * Not thread safe.
+ */
+public class FragmentedMp4Writer {
+
+    /** Same value as {@code MediaCodec.BUFFER_FLAG_KEY_FRAME}. */
+    public static final int FLAG_KEY_FRAME = 1;
+
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int INITIAL_TRACK_BYTES = 1024 * 1024;
+    // ftyp, moov and moof without the per track and per sample parts
+    private static final int BOX_BYTES = 2048;
+    private static final int TRACK_BOX_BYTES = 1024;
+
+    // sample_depends_on = 2
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    // sample_depends_on = 1, sample_is_non_sync_sample = 1
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+
+    /**
+     * Format of one track, from the encoder's output format.
+     */
+    public static class Track {
+        final boolean video;
+        final int timescale;
+        final int width;
+        final int height;
+        final int channelCount;
+        final int bitRate;
+        final byte[] sps;
+        final byte[] pps;
+        final byte[] audioSpecificConfig;
+
+        private Track(boolean video, int timescale, int width, int height, int channelCount, int bitRate,
+                      byte[] sps, byte[] pps, byte[] audioSpecificConfig) {
+            this.video = video;
+            this.timescale = timescale;
+            this.width = width;
+            this.height = height;
+            this.channelCount = channelCount;
+            this.bitRate = bitRate;
+            this.sps = sps;
+            this.pps = pps;
+            this.audioSpecificConfig = audioSpecificConfig;
+        }
+
+        /**
+         * @param sps sequence parameter set ({@code csd-0}), with or without start code
+         * @param pps picture parameter set ({@code csd-1}), with or without start code
+         */
+        public static Track avc(int width, int height, byte[] sps, byte[] pps) {
+            return new Track(true, VIDEO_TIMESCALE, width, height, 0, 0,
+                    stripStartCode(sps), stripStartCode(pps), null);
+        }
+
+        /**
+         * @param audioSpecificConfig {@code csd-0} of the AAC encoder
+         */
+        public static Track aac(int sampleRate, int channelCount, int bitRate, byte[] audioSpecificConfig) {
+            return new Track(false, sampleRate, 0, 0, channelCount, bitRate, null, null, audioSpecificConfig);
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final int mRotationDegrees;
+    private final Track[] mTracks;
+    private final TrackState[] mStates;
+    // ftyp/moov, then moof and the mdat header of each fragment
+    private ByteBuffer mBoxes = ByteBuffer.allocate(4096);
+    private final ByteBuffer[] mGather;
+
+    private boolean mHeaderWritten = false;
+    private boolean mClosed = false;
+    // presentation time of the first keyframe, time zero of every track
+    private long mBasePtsUs = Long.MIN_VALUE;
+    private int mSequence = 0;
+    private long mBytesWritten = 0;
+
+    /**
+     * @param channel         written from the current position on; the caller closes it
+     * @param rotationDegrees clockwise rotation to apply on playback, 0, 90, 180 or 270
+     * @param tracks          the first track cuts the fragments at its keyframes
+     */
+    public FragmentedMp4Writer(WritableByteChannel channel, int rotationDegrees, Track... tracks) {
+        if (tracks.length == 0) {
+            throw new IllegalArgumentException("no tracks");
+        }
+        mChannel = channel;
+        mRotationDegrees = rotationDegrees;
+        mTracks = tracks.clone();
+        mStates = new TrackState[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            mStates[i] = new TrackState();
+        }
+        mGather = new ByteBuffer[tracks.length + 1];
+    }
+
+    /**
+     * Adds an access unit; video samples are expected in Annex B as the encoders produce them.
+     * Samples before the first keyframe of the first track are dropped. The position of
+     * {@code data} is not changed.
+     *
+     * @return false if the sample was dropped
+     * @throws IOException also if a video sample is older than the one before, the frames are
+     *                     reordered
+     */
+    public boolean writeSample(int track, ByteBuffer data, long ptsUs, int flags) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("closed");
+        }
+        boolean sync = (flags & FLAG_KEY_FRAME) != 0 || !mTracks[track].video;
+        if (mBasePtsUs == Long.MIN_VALUE) {
+            if (track != 0 || !sync) {
+                return false;
+            }
+            mBasePtsUs = ptsUs;
+        }
+        if (ptsUs < mBasePtsUs) {
+            return false;
+        }
+        TrackState state = mStates[track];
+        long ticks = (ptsUs - mBasePtsUs) * mTracks[track].timescale / 1000000;
+        if (state.hasPending) {
+            if (ticks < state.pendingTicks && mTracks[track].video) {
+                throw new IOException("video presentation time went back from " + state.pendingTicks
+                        + " to " + ticks + ", the encoder produces B-frames");
+            }
+            if (ticks <= state.pendingTicks) {
+                // out of order or duplicate, would need a negative duration
+                return false;
+            }
+            state.commitPending((int) (ticks - state.pendingTicks));
+        } else if (!state.started) {
+            // a track starting after the first keyframe starts at its own time
+            state.decodeTime = ticks;
+            state.started = true;
+        }
+        if (track == 0 && sync && hasCommittedSamples()) {
+            flushFragment();
+        }
+        state.append(data, mTracks[track].video);
+        state.pendingTicks = ticks;
+        state.pendingSync = sync;
+        state.hasPending = true;
+        return true;
+    }
+
+    /**
+     * Writes the samples still held back as a last fragment. The channel stays open.
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        for (TrackState state : mStates) {
+            if (state.hasPending) {
+                // no next sample to measure against, assume the previous duration
+                state.commitPending(Math.max(state.lastDuration, 1));
+            }
+        }
+        if (hasCommittedSamples()) {
+            flushFragment();
+        }
+        mClosed = true;
+    }
+
+    public long bytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return number of moof/mdat pairs written
+     */
+    public int fragments() {
+        return mSequence;
+    }
+
+    private boolean hasCommittedSamples() {
+        for (TrackState state : mStates) {
+            if (state.sampleCount > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flushFragment() throws IOException {
+        mBoxes.clear();
+        ensureBoxCapacity(boxBytesBound());
+        if (!mHeaderWritten) {
+            writeFtyp();
+            writeMoov();
+        }
+        int moofStart = mBoxes.position();
+        int[] dataOffsetPositions = writeMoof();
+        int mdatPayload = 0;
+        for (TrackState state : mStates) {
+            mdatPayload += state.committedBytes;
+        }
+        int moofSize = mBoxes.position() - moofStart;
+        int dataOffset = moofSize + 8;
+        for (int i = 0; i < mStates.length; i++) {
+            if (dataOffsetPositions[i] >= 0) {
+                mBoxes.putInt(dataOffsetPositions[i], dataOffset);
+            }
+            dataOffset += mStates[i].committedBytes;
+        }
+        mBoxes.putInt(8 + mdatPayload);
+        mBoxes.put(fourcc("mdat"));
+        mBoxes.flip();
+
+        mGather[0] = mBoxes;
+        for (int i = 0; i < mStates.length; i++) {
+            mGather[i + 1] = mStates[i].committed();
+        }
+        long total = mBoxes.remaining() + mdatPayload;
+        writeFully(mGather, total);
+        mBytesWritten += total;
+        mHeaderWritten = true;
+        for (int i = 0; i < mStates.length; i++) {
+            mGather[i + 1] = null;
+            mStates[i].startFragment();
+        }
+    }
+
+    private int boxBytesBound() {
+        int bytes = BOX_BYTES;
+        for (int i = 0; i < mTracks.length; i++) {
+            Track track = mTracks[i];
+            bytes += TRACK_BOX_BYTES + mStates[i].sampleCount * 12;
+            if (!mHeaderWritten) {
+                bytes += track.video ? track.sps.length + track.pps.length : track.audioSpecificConfig.length;
+            }
+        }
+        return bytes;
+    }
+
+    private void writeFully(ByteBuffer[] buffers, long total) throws IOException {
+        if (mChannel instanceof GatheringByteChannel) {
+            GatheringByteChannel channel = (GatheringByteChannel) mChannel;
+            long written = 0;
+            while (written < total) {
+                written += channel.write(buffers);
+            }
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+    }
+
+    private void writeFtyp() {
+        int ftyp = startBox("ftyp");
+        mBoxes.put(fourcc("isom"));
+        mBoxes.putInt(0x200);
+        mBoxes.put(fourcc("isom"));
+        mBoxes.put(fourcc("iso6"));
+        mBoxes.put(fourcc("avc1"));
+        mBoxes.put(fourcc("mp41"));
+        endBox(ftyp);
+    }
+
+    private void writeMoov() {
+        int moov = startBox("moov");
+        int mvhd = startFullBox("mvhd", 0, 0);
+        mBoxes.putInt(0); // creation_time
+        mBoxes.putInt(0); // modification_time
+        mBoxes.putInt(MOVIE_TIMESCALE);
+        mBoxes.putInt(0); // duration, unknown while streaming
+        mBoxes.putInt(0x00010000); // rate 1.0
+        mBoxes.putShort((short) 0x0100); // volume 1.0
+        putZeros(10);
+        putMatrix(0);
+        putZeros(24);
+        mBoxes.putInt(mTracks.length + 1); // next_track_ID
+        endBox(mvhd);
+        for (int i = 0; i < mTracks.length; i++) {
+            writeTrak(i + 1, mTracks[i]);
+        }
+        int mvex = startBox("mvex");
+        for (int i = 0; i < mTracks.length; i++) {
+            int trex = startFullBox("trex", 0, 0);
+            mBoxes.putInt(i + 1);
+            mBoxes.putInt(1); // default_sample_description_index
+            mBoxes.putInt(0);
+            mBoxes.putInt(0);
+            mBoxes.putInt(0);
+            endBox(trex);
+        }
+        endBox(mvex);
+        endBox(moov);
+    }
+
+    private void writeTrak(int trackId, Track track) {
+        int trak = startBox("trak");
+        // enabled, in movie
+        int tkhd = startFullBox("tkhd", 0, 0x000003);
+        mBoxes.putInt(0);
+        mBoxes.putInt(0);
+        mBoxes.putInt(trackId);
+        mBoxes.putInt(0);
+        mBoxes.putInt(0); // duration
+        putZeros(8);
+        mBoxes.putShort((short) 0); // layer
+        mBoxes.putShort((short) 0); // alternate_group
+        mBoxes.putShort((short) (track.video ? 0 : 0x0100));
+        mBoxes.putShort((short) 0);
+        putMatrix(track.video ? mRotationDegrees : 0);
+        mBoxes.putInt(track.width << 16);
+        mBoxes.putInt(track.height << 16);
+        endBox(tkhd);
+
+        int mdia = startBox("mdia");
+        int mdhd = startFullBox("mdhd", 0, 0);
+        mBoxes.putInt(0);
+        mBoxes.putInt(0);
+        mBoxes.putInt(track.timescale);
+        mBoxes.putInt(0);
+        mBoxes.putShort((short) 0x55C4); // "und"
+        mBoxes.putShort((short) 0);
+        endBox(mdhd);
+        int hdlr = startFullBox("hdlr", 0, 0);
+        mBoxes.putInt(0);
+        mBoxes.put(fourcc(track.video ? "vide" : "soun"));
+        putZeros(12);
+        byte[] name = (track.video ? "VideoHandle" : "SoundHandle").getBytes(StandardCharsets.US_ASCII);
+        mBoxes.put(name);
+        mBoxes.put((byte) 0);
+        endBox(hdlr);
+
+        int minf = startBox("minf");
+        if (track.video) {
+            int vmhd = startFullBox("vmhd", 0, 1);
+            putZeros(8);
+            endBox(vmhd);
+        } else {
+            int smhd = startFullBox("smhd", 0, 0);
+            putZeros(4);
+            endBox(smhd);
+        }
+        int dinf = startBox("dinf");
+        int dref = startFullBox("dref", 0, 0);
+        mBoxes.putInt(1);
+        // self contained
+        endBox(startFullBox("url ", 0, 1));
+        endBox(dref);
+        endBox(dinf);
+
+        int stbl = startBox("stbl");
+        int stsd = startFullBox("stsd", 0, 0);
+        mBoxes.putInt(1);
+        if (track.video) {
+            writeAvc1(track);
+        } else {
+            writeMp4a(track);
+        }
+        endBox(stsd);
+        // the samples are in the fragments
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = startFullBox(type, 0, 0);
+            mBoxes.putInt(0);
+            endBox(box);
+        }
+        int stsz = startFullBox("stsz", 0, 0);
+        mBoxes.putInt(0);
+        mBoxes.putInt(0);
+        endBox(stsz);
+        endBox(stbl);
+        endBox(minf);
+        endBox(mdia);
+        endBox(trak);
+    }
+
+    private void writeAvc1(Track track) {
+        int avc1 = startBox("avc1");
+        putZeros(6);
+        mBoxes.putShort((short) 1); // data_reference_index
+        putZeros(16);
+        mBoxes.putShort((short) track.width);
+        mBoxes.putShort((short) track.height);
+        mBoxes.putInt(0x00480000); // 72 dpi
+        mBoxes.putInt(0x00480000);
+        mBoxes.putInt(0);
+        mBoxes.putShort((short) 1); // frame_count
+        putZeros(32); // compressorname
+        mBoxes.putShort((short) 0x0018); // depth
+        mBoxes.putShort((short) -1);
+        int avcC = startBox("avcC");
+        mBoxes.put((byte) 1); // configurationVersion
+        mBoxes.put(track.sps.length > 1 ? track.sps[1] : 0); // AVCProfileIndication
+        mBoxes.put(track.sps.length > 2 ? track.sps[2] : 0); // profile_compatibility
+        mBoxes.put(track.sps.length > 3 ? track.sps[3] : 0); // AVCLevelIndication
+        mBoxes.put((byte) 0xFF); // 4 byte NAL lengths
+        mBoxes.put((byte) 0xE1); // one SPS
+        mBoxes.putShort((short) track.sps.length);
+        mBoxes.put(track.sps);
+        mBoxes.put((byte) 1); // one PPS
+        mBoxes.putShort((short) track.pps.length);
+        mBoxes.put(track.pps);
+        endBox(avcC);
+        endBox(avc1);
+    }
+
+    private void writeMp4a(Track track) {
+        int mp4a = startBox("mp4a");
+        putZeros(6);
+        mBoxes.putShort((short) 1); // data_reference_index
+        putZeros(8);
+        mBoxes.putShort((short) track.channelCount);
+        mBoxes.putShort((short) 16); // samplesize
+        putZeros(4);
+        mBoxes.putInt(track.timescale << 16);
+        int esds = startFullBox("esds", 0, 0);
+        byte[] asc = track.audioSpecificConfig;
+        // ES_Descriptor
+        mBoxes.put((byte) 0x03);
+        mBoxes.put((byte) (23 + asc.length));
+        mBoxes.putShort((short) 0); // ES_ID
+        mBoxes.put((byte) 0);
+        // DecoderConfigDescriptor
+        mBoxes.put((byte) 0x04);
+        mBoxes.put((byte) (15 + asc.length));
+        mBoxes.put((byte) 0x40); // MPEG-4 audio
+        mBoxes.put((byte) 0x15); // audio stream
+        putZeros(3); // bufferSizeDB
+        mBoxes.putInt(track.bitRate); // maxBitrate
+        mBoxes.putInt(track.bitRate); // avgBitrate
+        // DecoderSpecificInfo
+        mBoxes.put((byte) 0x05);
+        mBoxes.put((byte) asc.length);
+        mBoxes.put(asc);
+        // SLConfigDescriptor
+        mBoxes.put((byte) 0x06);
+        mBoxes.put((byte) 1);
+        mBoxes.put((byte) 0x02);
+        endBox(esds);
+        endBox(mp4a);
+    }
+
+    /**
+     * @return per track the position of the trun data_offset to patch, -1 if the track has no
+     * samples in this fragment
+     */
+    private int[] writeMoof() {
+        int[] dataOffsetPositions = new int[mStates.length];
+        int moof = startBox("moof");
+        int mfhd = startFullBox("mfhd", 0, 0);
+        mBoxes.putInt(++mSequence);
+        endBox(mfhd);
+        for (int i = 0; i < mStates.length; i++) {
+            TrackState state = mStates[i];
+            if (state.sampleCount == 0) {
+                dataOffsetPositions[i] = -1;
+                continue;
+            }
+            int traf = startBox("traf");
+            int tfhd = startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            mBoxes.putInt(i + 1);
+            endBox(tfhd);
+            int tfdt = startFullBox("tfdt", 1, 0);
+            mBoxes.putLong(state.decodeTime);
+            endBox(tfdt);
+            int trun = startFullBox("trun", 0,
+                    TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS);
+            mBoxes.putInt(state.sampleCount);
+            dataOffsetPositions[i] = mBoxes.position();
+            mBoxes.putInt(0);
+            for (int s = 0; s < state.sampleCount; s++) {
+                mBoxes.putInt(state.durations[s]);
+                mBoxes.putInt(state.sizes[s]);
+                mBoxes.putInt(state.sync[s] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            endBox(trun);
+            endBox(traf);
+        }
+        endBox(moof);
+        return dataOffsetPositions;
+    }
+
+    private int startBox(String type) {
+        int start = mBoxes.position();
+        mBoxes.putInt(0);
+        mBoxes.put(fourcc(type));
+        return start;
+    }
+
+    private int startFullBox(String type, int version, int flags) {
+        int start = startBox(type);
+        mBoxes.putInt(version << 24 | flags);
+        return start;
+    }
+
+    private void endBox(int start) {
+        mBoxes.putInt(start, mBoxes.position() - start);
+    }
+
+    private void putZeros(int count) {
+        for (int i = 0; i < count; i++) {
+            mBoxes.put((byte) 0);
+        }
+    }
+
+    /**
+     * Writes the transformation matrix for a clockwise rotation, like MediaMuxer does.
+     */
+    private void putMatrix(int rotationDegrees) {
+        int a = 0x10000;
+        int b = 0;
+        switch (rotationDegrees) {
+            case 90:
+                a = 0;
+                b = 0x10000;
+                break;
+            case 180:
+                a = -0x10000;
+                break;
+            case 270:
+                a = 0;
+                b = -0x10000;
+                break;
+        }
+        mBoxes.putInt(a);
+        mBoxes.putInt(b);
+        mBoxes.putInt(0);
+        mBoxes.putInt(-b);
+        mBoxes.putInt(a);
+        mBoxes.putInt(0);
+        mBoxes.putInt(0);
+        mBoxes.putInt(0);
+        mBoxes.putInt(0x40000000);
+    }
+
+    private void ensureBoxCapacity(int bytes) {
+        if (mBoxes.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(mBoxes.capacity() * 2, mBoxes.position() + bytes));
+        mBoxes.flip();
+        grown.put(mBoxes);
+        mBoxes = grown;
+    }
+
+    private static byte[] fourcc(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] stripStartCode(byte[] nal) {
+        int start = startCodeLength(ByteBuffer.wrap(nal), 0);
+        if (start == 0) {
+            return nal.clone();
+        }
+        byte[] stripped = new byte[nal.length - start];
+        System.arraycopy(nal, start, stripped, 0, stripped.length);
+        return stripped;
+    }
+
+    /**
+     * @return length of the start code at {@code pos}, 0 if there is none
+     */
+    private static int startCodeLength(ByteBuffer data, int pos) {
+        int limit = data.limit();
+        if (pos + 3 <= limit && data.get(pos) == 0 && data.get(pos + 1) == 0) {
+            if (data.get(pos + 2) == 1) {
+                return 3;
+            }
+            if (pos + 4 <= limit && data.get(pos + 2) == 0 && data.get(pos + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Samples of one track for the fragment being collected, and the newest sample, which is
+     * held back until the next one gives it a duration.
+     */
+    private static class TrackState {
+        ByteBuffer data = ByteBuffer.allocateDirect(INITIAL_TRACK_BYTES);
+        // bytes of the samples in the fragment, the pending sample follows them
+        int committedBytes = 0;
+        int sampleCount = 0;
+        int[] sizes = new int[64];
+        int[] durations = new int[64];
+        boolean[] sync = new boolean[64];
+        // decode time of the first sample in the fragment
+        long decodeTime = 0;
+        int lastDuration = 0;
+        boolean started = false;
+
+        boolean hasPending = false;
+        long pendingTicks;
+        boolean pendingSync;
+
+        void commitPending(int duration) {
+            if (sampleCount == sizes.length) {
+                int capacity = sizes.length * 2;
+                sizes = Arrays.copyOf(sizes, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+                sync = Arrays.copyOf(sync, capacity);
+            }
+            sizes[sampleCount] = data.position() - committedBytes;
+            durations[sampleCount] = duration;
+            sync[sampleCount] = pendingSync;
+            sampleCount++;
+            committedBytes = data.position();
+            lastDuration = duration;
+            hasPending = false;
+        }
+
+        /**
+         * Copies a sample behind the committed ones, converting Annex B start codes to 4 byte
+         * lengths for video.
+         */
+        void append(ByteBuffer src, boolean annexB) {
+            int pos = src.position();
+            int limit = src.limit();
+            if (!annexB || startCodeLength(src, pos) == 0) {
+                ensureCapacity(limit - pos);
+                data.put(src.duplicate());
+                return;
+            }
+            // a 3 byte start code turns into a 4 byte length
+            ensureCapacity((limit - pos) * 4 / 3 + 4);
+            int nalStart = pos + startCodeLength(src, pos);
+            while (nalStart < limit) {
+                int next = nalStart;
+                int codeLength = 0;
+                while (next < limit && (codeLength = startCodeLength(src, next)) == 0) {
+                    next++;
+                }
+                int nalEnd = next;
+                while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) {
+                    // trailing_zero_8bits, a NAL unit never ends with a zero byte
+                    nalEnd--;
+                }
+                if (nalEnd > nalStart) {
+                    data.putInt(nalEnd - nalStart);
+                    ByteBuffer nal = src.duplicate();
+                    nal.limit(nalEnd).position(nalStart);
+                    data.put(nal);
+                }
+                nalStart = next + codeLength;
+            }
+        }
+
+        ByteBuffer committed() {
+            ByteBuffer committed = data.duplicate();
+            committed.flip();
+            committed.limit(committedBytes);
+            return committed;
+        }
+
+        /**
+         * Drops the written samples and moves the pending one to the front.
+         */
+        void startFragment() {
+            for (int i = 0; i < sampleCount; i++) {
+                decodeTime += durations[i];
+            }
+            data.limit(data.position());
+            data.position(committedBytes);
+            data.compact();
+            committedBytes = 0;
+            sampleCount = 0;
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (data.remaining() >= bytes) {
+                return;
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + bytes));
+            data.flip();
+            grown.put(data);
+            data = grown;
+        }
+    }
+}
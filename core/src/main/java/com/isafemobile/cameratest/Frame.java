@@ -0,0 +1,56 @@
+package com.isafemobile.cameratest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A preview frame buffer owned by a {@link FrameBufferPool}. Frames are reference counted
+ * so one camera buffer can be shared by several consumers; the buffer goes back to the
+ * pool when the last reference is released.
+ */
+public final class Frame {
+
+    public final byte[] data;
+    public final int width;
+    public final int height;
+
+    private final FrameBufferPool mPool;
+    private final AtomicInteger mRefs = new AtomicInteger();
+    private long mTimestampNs;
+    private long mSequence;
+
+    Frame(FrameBufferPool pool, int width, int height, int size) {
+        mPool = pool;
+        this.width = width;
+        this.height = height;
+        this.data = new byte[size];
+    }
+
+    public long timestampNs() {
+        return mTimestampNs;
+    }
+
+    public long sequence() {
+        return mSequence;
+    }
+
+    void reset(long timestampNs, long sequence) {
+        mTimestampNs = timestampNs;
+        mSequence = sequence;
+        mRefs.set(1);
+    }
+
+    public void retain() {
+        if (mRefs.getAndIncrement() <= 0) {
+            throw new IllegalStateException("frame already recycled");
+        }
+    }
+
+    public void release() {
+        int refs = mRefs.decrementAndGet();
+        if (refs == 0) {
+            mPool.recycle(this);
+        } else if (refs < 0) {
+            throw new IllegalStateException("frame released too often");
+        }
+    }
+}
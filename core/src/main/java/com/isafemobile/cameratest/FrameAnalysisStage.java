@@ -0,0 +1,101 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Runs a {@link FrameAnalyzer} on its own thread. The stage holds at most one frame: a
+ * frame arriving while the analyzer is still busy replaces the waiting one, which is
+ * released right away. A slow analyzer therefore only sees fewer frames and never holds
+ * back camera buffers or the preview.
+ */
+public class FrameAnalysisStage implements FrameConsumer {
+
+    private final FrameAnalyzer mAnalyzer;
+    private final Thread mThread;
+    private Frame mPending;
+    private boolean mClosed = false;
+    private long mDropped = 0;
+    private long mAnalyzed = 0;
+
+    public FrameAnalysisStage(FrameAnalyzer analyzer, String threadName) {
+        mAnalyzer = analyzer;
+        mThread = new Thread(this::analyzeFrames, threadName);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Releases the waiting frame and lets the analysis thread finish the frame it is on.
+     */
+    public void stop() {
+        Frame pending;
+        synchronized (this) {
+            mClosed = true;
+            pending = mPending;
+            mPending = null;
+            notifyAll();
+        }
+        if (pending != null) {
+            pending.release();
+        }
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        Frame replaced;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            frame.retain();
+            replaced = mPending;
+            mPending = frame;
+            if (replaced != null) {
+                mDropped++;
+            }
+            notify();
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+    }
+
+    /**
+     * @return number of frames replaced by a newer one before the analyzer got to them
+     */
+    public synchronized long dropped() {
+        return mDropped;
+    }
+
+    public synchronized long analyzed() {
+        return mAnalyzed;
+    }
+
+    private void analyzeFrames() {
+        while (true) {
+            Frame frame;
+            synchronized (this) {
+                while (mPending == null && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                frame = mPending;
+                mPending = null;
+            }
+            try {
+                mAnalyzer.analyze(frame.data, frame.width, frame.height, frame.timestampNs());
+            } finally {
+                frame.release();
+            }
+            synchronized (this) {
+                mAnalyzed++;
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Looks at preview frames on the analysis thread of a {@link FrameAnalysisStage}. Only the
+ * luma plane is meant to be read: for NV21 these are the first {@code width * height}
+ * bytes of {@code data}. The array is a pooled camera buffer and must not be kept.
+ */
+public interface FrameAnalyzer {
+    void analyze(byte[] data, int width, int height, long timestampNs);
+}
@@ -0,0 +1,96 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Fixed set of preview frame buffers that are reused for the whole session, so the
+ * frame path does not allocate and cannot cause GC pauses. With the camera as producer
+ * the buffers circulate camera -&gt; {@link #onFrameFilled} -&gt; consumers -&gt;
+ * {@link Recycler} -&gt; camera.
+ */
+public class FrameBufferPool {
+
+    public interface Recycler {
+        /**
+         * Called when the last reference to a frame was released, from the releasing thread.
+         */
+        void onRecycle(Frame frame);
+    }
+
+    private final Frame[] mFrames;
+    private final Frame[] mFree;
+    private int mFreeCount;
+    private long mSequence;
+    private volatile Recycler mRecycler;
+
+    /**
+     * @param frameSize bytes per buffer, width * height * 3 / 2 for NV21
+     */
+    public FrameBufferPool(int buffers, int width, int height, int frameSize) {
+        mFrames = new Frame[buffers];
+        mFree = new Frame[buffers];
+        for (int i = 0; i < buffers; i++) {
+            mFrames[i] = new Frame(this, width, height, frameSize);
+            mFree[i] = mFrames[i];
+        }
+        mFreeCount = buffers;
+    }
+
+    /**
+     * Routes recycled frames to {@code recycler} instead of the free list, e.g. back to the camera.
+     */
+    public void setRecycler(Recycler recycler) {
+        mRecycler = recycler;
+    }
+
+    public int size() {
+        return mFrames.length;
+    }
+
+    public Frame get(int index) {
+        return mFrames[index];
+    }
+
+    /**
+     * @return a free frame holding one reference, or null if all frames are in use
+     */
+    public synchronized Frame acquire(long timestampNs) {
+        if (mFreeCount == 0) {
+            return null;
+        }
+        Frame frame = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        frame.reset(timestampNs, mSequence++);
+        return frame;
+    }
+
+    /**
+     * Looks up the frame for a buffer the producer filled and gives it one reference.
+     *
+     * @return null if the buffer does not belong to this pool
+     */
+    public Frame onFrameFilled(byte[] data, long timestampNs) {
+        for (Frame frame : mFrames) {
+            if (frame.data == data) {
+                synchronized (this) {
+                    frame.reset(timestampNs, mSequence++);
+                }
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    synchronized int freeCount() {
+        return mFreeCount;
+    }
+
+    void recycle(Frame frame) {
+        Recycler recycler = mRecycler;
+        if (recycler != null) {
+            recycler.onRecycle(frame);
+            return;
+        }
+        synchronized (this) {
+            mFree[mFreeCount++] = frame;
+        }
+    }
+}
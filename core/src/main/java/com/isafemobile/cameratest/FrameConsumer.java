@@ -0,0 +1,9 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Receives preview frames on the camera thread. The frame is only valid during the call
+ * unless the consumer {@link Frame#retain() retains} it, and must not block.
+ */
+public interface FrameConsumer {
+    void onFrame(Frame frame);
+}
@@ -0,0 +1,82 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Bounded queue handing frames from the camera thread to worker threads. Backed by a
+ * fixed array, so neither side allocates. The queue does not touch reference counts;
+ * the producer transfers its reference with a successful {@link #offer}.
+ */
+public class FrameHandoffQueue {
+
+    private final Frame[] mItems;
+    private int mHead = 0;
+    private int mCount = 0;
+    private boolean mClosed = false;
+    private long mDropped = 0;
+
+    public FrameHandoffQueue(int capacity) {
+        mItems = new Frame[capacity];
+    }
+
+    /**
+     * @return false if the queue is full or closed, the caller keeps the frame then
+     */
+    public synchronized boolean offer(Frame frame) {
+        if (mClosed || mCount == mItems.length) {
+            mDropped++;
+            return false;
+        }
+        mItems[(mHead + mCount) % mItems.length] = frame;
+        mCount++;
+        notify();
+        return true;
+    }
+
+    /**
+     * Waits for a frame.
+     *
+     * @return null once the queue is closed and empty
+     */
+    public synchronized Frame take() throws InterruptedException {
+        while (mCount == 0) {
+            if (mClosed) {
+                return null;
+            }
+            wait();
+        }
+        return removeHead();
+    }
+
+    /**
+     * @return the oldest frame or null if empty
+     */
+    public synchronized Frame poll() {
+        return mCount == 0 ? null : removeHead();
+    }
+
+    /**
+     * Wakes up all waiting takers; frames still queued can be drained with {@link #poll()}.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return number of frames refused because the queue was full
+     */
+    public synchronized long dropped() {
+        return mDropped;
+    }
+
+    private Frame removeHead() {
+        Frame frame = mItems[mHead];
+        mItems[mHead] = null;
+        mHead = (mHead + 1) % mItems.length;
+        mCount--;
+        return frame;
+    }
+}
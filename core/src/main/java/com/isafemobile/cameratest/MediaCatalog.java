@@ -0,0 +1,436 @@
+package com.isafemobile.cameratest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Catalog of the captures the app wrote, so they can be listed without enumerating the SAF
+ * tree. It is an append-only log of put/remove records, each framed with its length and a
+ * CRC32; a record torn by a crash is cut off on the next {@link #open()}. The whole catalog
+ * is held in memory sorted by capture time, listing the newest captures or a time range is
+ * a binary search and a copy.
+ * <p>
+ * Each append is a single unbuffered write, an entry is in the file as soon as
+ * {@link #add(Entry)} returns; what a failed append left behind is cut off before the next
+ * one. Replaced and removed entries stay in the log until it is
+ * compacted on open. Thread safe; appends touch the disk, keep them off the main thread.
+ * Lookups and listings don't take the writers' lock, they read a map and a published copy of
+ * the time ordered list and never wait for the disk.
+ */
+public class MediaCatalog {
+
+    public static final int TYPE_IMAGE = 1;
+    public static final int TYPE_VIDEO = 2;
+
+    // durations and rotations of files found by reconcile()
+    public static final int UNKNOWN = -1;
+
+    private static final int MAGIC = 0x4d434154;
+    private static final int VERSION = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    // a uri is far shorter, anything longer is garbage
+    private static final int MAX_RECORD_BYTES = 16 * 1024;
+    // compact once the log holds more dead records than this and than live ones
+    private static final int COMPACT_MIN_DEAD = 256;
+
+    public static class Entry {
+        public final String uri;
+        public final int type;
+        // wall clock time the capture started
+        public final long timestampMs;
+        public final long durationMs;
+        public final long size;
+        // clockwise degrees to show the capture upright
+        public final int rotation;
+        // order of the append, for reconcile()
+        long sequence;
+
+        public Entry(String uri, int type, long timestampMs, long durationMs, long size, int rotation) {
+            this.uri = uri;
+            this.type = type;
+            this.timestampMs = timestampMs;
+            this.durationMs = durationMs;
+            this.size = size;
+            this.rotation = rotation;
+        }
+    }
+
+    private final File mFile;
+    // sorted by timestamp, equal timestamps in append order
+    private final ArrayList<Entry> mByTime = new ArrayList<>();
+    private final Map<String, Entry> mByUri = new ConcurrentHashMap<>();
+    // copy of mByTime for the readers, replaced after every change
+    private volatile List<Entry> mSnapshot = Collections.emptyList();
+    private final CRC32 mCrc = new CRC32();
+    private FileOutputStream mOut;
+    // end of the last complete record in the log
+    private long mLength;
+    private long mSequence = 0;
+    private int mDeadRecords = 0;
+
+    public MediaCatalog(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Loads the log, drops a torn tail and compacts it if it is mostly dead records.
+     */
+    public synchronized void open() throws IOException {
+        if (mOut != null) {
+            return;
+        }
+        long validBytes = load();
+        if (validBytes < 0) {
+            // missing or not a catalog
+            rewrite();
+        } else if (validBytes < mFile.length()) {
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(validBytes);
+            }
+        }
+        if (mDeadRecords > COMPACT_MIN_DEAD && mDeadRecords > mByUri.size()) {
+            rewrite();
+        }
+        publish();
+        mLength = mFile.length();
+        mOut = new FileOutputStream(mFile, true);
+    }
+
+    public synchronized void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            // nothing buffered
+        }
+        mOut = null;
+    }
+
+    /**
+     * Adds an entry, replacing one with the same uri.
+     */
+    public synchronized void add(Entry entry) throws IOException {
+        append(put(entry));
+        apply(entry);
+        publish();
+    }
+
+    /**
+     * @return false if there was no entry for the uri
+     */
+    public synchronized boolean remove(String uri) throws IOException {
+        if (!mByUri.containsKey(uri)) {
+            return false;
+        }
+        append(removal(uri));
+        applyRemoval(uri);
+        publish();
+        return true;
+    }
+
+    public Entry get(String uri) {
+        return mByUri.get(uri);
+    }
+
+    public int size() {
+        return mByUri.size();
+    }
+
+    /**
+     * @return up to {@code count} entries, newest first
+     */
+    public List<Entry> recent(int count) {
+        List<Entry> byTime = mSnapshot;
+        int n = Math.min(count, byTime.size());
+        List<Entry> entries = new ArrayList<>(n);
+        for (int i = byTime.size() - 1; i >= byTime.size() - n; i--) {
+            entries.add(byTime.get(i));
+        }
+        return entries;
+    }
+
+    /**
+     * @return entries captured at or after {@code fromMs} and before {@code toMs}, oldest first
+     */
+    public List<Entry> query(long fromMs, long toMs) {
+        List<Entry> byTime = mSnapshot;
+        int from = lowerBound(byTime, fromMs);
+        int to = Math.max(from, lowerBound(byTime, toMs));
+        return new ArrayList<>(byTime.subList(from, to));
+    }
+
+    /**
+     * @return a mark to pass to {@link #reconcile} for a listing started after this call
+     */
+    public synchronized long mark() {
+        return mSequence;
+    }
+
+    /**
+     * Makes the catalog match a listing of the folders: entries whose file is gone are removed,
+     * files the catalog does not know are added. Entries added after {@code mark} are kept,
+     * their files may have been created after the listing. All changes go to the log in one
+     * write.
+     *
+     * @param onDisk every file in the cataloged folders
+     * @return number of entries added or removed
+     */
+    public synchronized int reconcile(Collection<Entry> onDisk, long mark) throws IOException {
+        Set<String> listed = new HashSet<>();
+        List<Entry> found = new ArrayList<>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Entry entry : onDisk) {
+            if (listed.add(entry.uri) && !mByUri.containsKey(entry.uri)) {
+                found.add(entry);
+                records.write(put(entry));
+            }
+        }
+        List<String> gone = new ArrayList<>();
+        for (Entry entry : mByTime) {
+            if (entry.sequence <= mark && !listed.contains(entry.uri)) {
+                gone.add(entry.uri);
+                records.write(removal(entry.uri));
+            }
+        }
+        if (records.size() == 0) {
+            return 0;
+        }
+        append(records.toByteArray());
+        for (Entry entry : found) {
+            apply(entry);
+        }
+        for (String uri : gone) {
+            applyRemoval(uri);
+        }
+        publish();
+        return found.size() + gone.size();
+    }
+
+    /**
+     * @return bytes of the log that were read, -1 if the file is missing or has no valid header
+     */
+    private long load() throws IOException {
+        mByTime.clear();
+        mByUri.clear();
+        mDeadRecords = 0;
+        if (!mFile.exists()) {
+            return -1;
+        }
+        long valid;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return -1;
+                }
+            } catch (EOFException e) {
+                return -1;
+            }
+            valid = 8;
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    in.readFully(payload, 0, length);
+                    mCrc.reset();
+                    mCrc.update(payload, 0, length);
+                    if (in.readInt() != (int) mCrc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // torn by a crash while appending
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+                byte op = record.readByte();
+                String uri = record.readUTF();
+                if (op == OP_PUT) {
+                    apply(new Entry(uri, record.readByte(), record.readLong(), record.readLong(),
+                            record.readLong(), record.readShort()));
+                } else if (op == OP_REMOVE) {
+                    applyRemoval(uri);
+                } else {
+                    break;
+                }
+                valid += 8 + length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Writes the live entries to a new log and replaces the old one with it.
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Entry entry : mByTime) {
+                out.write(put(entry));
+            }
+            out.flush();
+            // the rename must not reach the disk before the data
+            file.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Failed to replace " + mFile);
+        }
+        mDeadRecords = 0;
+    }
+
+    private void append(byte[] record) throws IOException {
+        if (mOut == null) {
+            throw new IOException("Catalog is not open");
+        }
+        FileChannel channel = mOut.getChannel();
+        if (channel.size() > mLength) {
+            // part of a failed append, the next open() would cut everything after it
+            channel.truncate(mLength);
+        }
+        try {
+            mOut.write(record);
+        } catch (IOException e) {
+            try {
+                channel.truncate(mLength);
+            } catch (IOException ignored) {
+                // tried again before the next append
+            }
+            throw e;
+        }
+        mLength += record.length;
+    }
+
+    private void publish() {
+        mSnapshot = Collections.unmodifiableList(new ArrayList<>(mByTime));
+    }
+
+    private void apply(Entry entry) {
+        Entry replaced = mByUri.put(entry.uri, entry);
+        if (replaced != null) {
+            removeByTime(replaced);
+            mDeadRecords++;
+        }
+        entry.sequence = ++mSequence;
+        // captures arrive in time order, this is almost always the end of the list
+        mByTime.add(upperBound(mByTime, entry.timestampMs), entry);
+    }
+
+    private void applyRemoval(String uri) {
+        Entry removed = mByUri.remove(uri);
+        if (removed != null) {
+            removeByTime(removed);
+            // the put and the removal
+            mDeadRecords += 2;
+        }
+    }
+
+    private void removeByTime(Entry entry) {
+        for (int i = lowerBound(mByTime, entry.timestampMs); i < mByTime.size(); i++) {
+            if (mByTime.get(i) == entry) {
+                mByTime.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return index of the first entry at or after {@code timestampMs}
+     */
+    private static int lowerBound(List<Entry> byTime, long timestampMs) {
+        int low = 0;
+        int high = byTime.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (byTime.get(mid).timestampMs < timestampMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the first entry after {@code timestampMs}
+     */
+    private static int upperBound(List<Entry> byTime, long timestampMs) {
+        int low = 0;
+        int high = byTime.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (byTime.get(mid).timestampMs <= timestampMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private byte[] put(Entry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64 + entry.uri.length());
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(OP_PUT);
+        out.writeUTF(entry.uri);
+        out.writeByte(entry.type);
+        out.writeLong(entry.timestampMs);
+        out.writeLong(entry.durationMs);
+        out.writeLong(entry.size);
+        out.writeShort(entry.rotation);
+        return frame(payload);
+    }
+
+    private byte[] removal(String uri) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(8 + uri.length());
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(uri);
+        return frame(payload);
+    }
+
+    /**
+     * @return length, payload and CRC of the payload as one record
+     */
+    private byte[] frame(ByteArrayOutputStream payload) throws IOException {
+        byte[] bytes = payload.toByteArray();
+        mCrc.reset();
+        mCrc.update(bytes, 0, bytes.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt((int) mCrc.getValue());
+        return record.toByteArray();
+    }
+}
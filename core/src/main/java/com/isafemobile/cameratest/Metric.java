@@ -0,0 +1,20 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Latencies and rates tracked by {@link MetricsRecorder}.
+ */
+public enum Metric {
+    CAMERA_OPEN_MS("cameraOpenMs"),
+    FIRST_PREVIEW_FRAME_MS("firstPreviewFrameMs"),
+    RECORD_START_MS("recordStartMs"),
+    STOP_TO_FINALIZED_MS("stopToFinalizedMs"),
+    SHOT_TO_SAVED_MS("shotToSavedMs"),
+    IMAGE_WRITE_BYTES_PER_SEC("imageWriteBytesPerSec"),
+    VIDEO_WRITE_BYTES_PER_SEC("videoWriteBytesPerSec");
+
+    public final String key;
+
+    Metric(String key) {
+        this.key = key;
+    }
+}
@@ -0,0 +1,101 @@
+package com.isafemobile.cameratest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory capture metrics: one {@link LatencyHistogram} per {@link Metric} plus preview
+ * frame counters. Recording is a single volatile read while disabled, so the calls can stay
+ * in the hot paths.
+ */
+public class MetricsRecorder {
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Metric.values().length];
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private volatile boolean mEnabled = false;
+
+    public MetricsRecorder() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void record(Metric metric, long value) {
+        if (mEnabled) {
+            mHistograms[metric.ordinal()].record(value);
+        }
+    }
+
+    /**
+     * Records {@code bytes / durationMs} as bytes per second, nothing if the duration is not positive.
+     */
+    public void recordRate(Metric metric, long bytes, long durationMs) {
+        if (mEnabled && bytes >= 0 && durationMs > 0) {
+            mHistograms[metric.ordinal()].record(bytes * 1000 / durationMs);
+        }
+    }
+
+    public void countFrame() {
+        if (mEnabled) {
+            mFrames.incrementAndGet();
+        }
+    }
+
+    public void countDroppedFrame() {
+        if (mEnabled) {
+            mDroppedFrames.incrementAndGet();
+        }
+    }
+
+    public long frames() {
+        return mFrames.get();
+    }
+
+    public long droppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    public LatencyHistogram.Snapshot snapshot(Metric metric) {
+        return mHistograms[metric.ordinal()].snapshot();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mFrames.set(0);
+        mDroppedFrames.set(0);
+    }
+
+    /**
+     * @return all metrics as a JSON object, {@code timestampMs} is stored as is
+     */
+    public String toJson(long timestampMs) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"timestampMs\": ").append(timestampMs);
+        json.append(",\n  \"frames\": ").append(mFrames.get());
+        json.append(",\n  \"droppedFrames\": ").append(mDroppedFrames.get());
+        for (Metric metric : Metric.values()) {
+            LatencyHistogram.Snapshot snapshot = snapshot(metric);
+            json.append(",\n  \"").append(metric.key).append("\": {")
+                    .append("\"count\": ").append(snapshot.count)
+                    .append(", \"mean\": ").append(snapshot.mean())
+                    .append(", \"min\": ").append(snapshot.min)
+                    .append(", \"p50\": ").append(snapshot.p50)
+                    .append(", \"p90\": ").append(snapshot.p90)
+                    .append(", \"p99\": ").append(snapshot.p99)
+                    .append(", \"max\": ").append(snapshot.max)
+                    .append('}');
+        }
+        json.append("\n}\n");
+        return json.toString();
+    }
+}
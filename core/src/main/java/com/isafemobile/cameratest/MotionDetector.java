@@ -0,0 +1,185 @@
+package com.isafemobile.cameratest;
+
+import java.util.Arrays;
+
+/**
+ * Block based motion detector on the luma plane. Each frame is reduced to the mean
+ * brightness of square blocks; a block counts as changed when its mean moved by more than
+ * a threshold relative to the previous frame, after removing the change of the whole
+ * picture so auto exposure does not look like motion.
+ * <p>
+ * Motion starts once the changed fraction stayed above {@code startFraction} for
+ * {@code startFrames} frames in a row and stops after it stayed below
+ * {@code stopFraction} for {@code stopDelayNs}. Works on primitive arrays only and does
+ * not allocate after the first frame of a given size.
+ */
+public class MotionDetector implements FrameAnalyzer {
+
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+    public static final int DEFAULT_LUMA_THRESHOLD = 12;
+    public static final float DEFAULT_START_FRACTION = 0.02f;
+    public static final float DEFAULT_STOP_FRACTION = 0.01f;
+    public static final int DEFAULT_START_FRAMES = 3;
+    public static final long DEFAULT_STOP_DELAY_NS = 3000000000L;
+
+    public interface Listener {
+        /**
+         * Called on the analysis thread.
+         */
+        void onMotionStarted();
+
+        /**
+         * Called on the analysis thread.
+         */
+        void onMotionStopped();
+    }
+
+    private final Listener mListener;
+    private final int mBlockSize;
+    private final int mLumaThreshold;
+    private final float mStartFraction;
+    private final float mStopFraction;
+    private final int mStartFrames;
+    private final long mStopDelayNs;
+
+    private int mWidth;
+    private int mHeight;
+    private int mColumns;
+    private int mRows;
+    // block sums, swapped after every frame
+    private int[] mCurrent;
+    private int[] mPrevious;
+    private boolean mHasPrevious = false;
+    private volatile float mChangedFraction;
+    private boolean mMotion = false;
+    private int mFramesAbove = 0;
+    private long mLastMotionNs;
+
+    public MotionDetector(Listener listener) {
+        this(listener, DEFAULT_BLOCK_SIZE, DEFAULT_LUMA_THRESHOLD, DEFAULT_START_FRACTION,
+                DEFAULT_STOP_FRACTION, DEFAULT_START_FRAMES, DEFAULT_STOP_DELAY_NS);
+    }
+
+    /**
+     * @param lumaThreshold change of a block's mean luma (0-255) that counts as changed
+     * @param startFraction fraction of changed blocks that counts as motion
+     * @param stopFraction  fraction below which the picture counts as quiet, at most startFraction
+     */
+    public MotionDetector(Listener listener, int blockSize, int lumaThreshold, float startFraction,
+                          float stopFraction, int startFrames, long stopDelayNs) {
+        if (blockSize <= 0 || stopFraction > startFraction) {
+            throw new IllegalArgumentException("blockSize " + blockSize + ", start " + startFraction
+                    + ", stop " + stopFraction);
+        }
+        mListener = listener;
+        mBlockSize = blockSize;
+        mLumaThreshold = lumaThreshold;
+        mStartFraction = startFraction;
+        mStopFraction = stopFraction;
+        mStartFrames = startFrames;
+        mStopDelayNs = stopDelayNs;
+    }
+
+    @Override
+    public void analyze(byte[] data, int width, int height, long timestampNs) {
+        if (mCurrent == null || width != mWidth || height != mHeight) {
+            resize(width, height);
+        }
+        if (mCurrent.length == 0) {
+            return;
+        }
+        sumBlocks(data);
+        if (mHasPrevious) {
+            mChangedFraction = computeChangedFraction();
+            update(mChangedFraction, timestampNs);
+        }
+        int[] swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+        mHasPrevious = true;
+    }
+
+    /**
+     * @return fraction of changed blocks in the last analyzed frame
+     */
+    public float changedFraction() {
+        return mChangedFraction;
+    }
+
+    public boolean isMotion() {
+        return mMotion;
+    }
+
+    private void resize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mColumns = width / mBlockSize;
+        mRows = height / mBlockSize;
+        mCurrent = new int[mColumns * mRows];
+        mPrevious = new int[mColumns * mRows];
+        mHasPrevious = false;
+    }
+
+    /**
+     * Sums the luma of every full block; the right and bottom remainders are ignored.
+     */
+    private void sumBlocks(byte[] luma) {
+        int[] sums = mCurrent;
+        int blockSize = mBlockSize;
+        int columns = mColumns;
+        Arrays.fill(sums, 0);
+        for (int row = 0; row < mRows; row++) {
+            int blockBase = row * columns;
+            int lineEnd = (row + 1) * blockSize;
+            for (int y = row * blockSize; y < lineEnd; y++) {
+                int pixel = y * mWidth;
+                for (int column = 0; column < columns; column++) {
+                    int sum = 0;
+                    int end = pixel + blockSize;
+                    for (; pixel < end; pixel++) {
+                        sum += luma[pixel] & 0xFF;
+                    }
+                    sums[blockBase + column] += sum;
+                }
+            }
+        }
+    }
+
+    private float computeChangedFraction() {
+        int[] current = mCurrent;
+        int[] previous = mPrevious;
+        int blocks = current.length;
+        long totalDiff = 0;
+        for (int i = 0; i < blocks; i++) {
+            totalDiff += current[i] - previous[i];
+        }
+        // global brightness change, e.g. from auto exposure
+        int meanDiff = (int) (totalDiff / blocks);
+        int threshold = mLumaThreshold * mBlockSize * mBlockSize;
+        int changed = 0;
+        for (int i = 0; i < blocks; i++) {
+            int diff = current[i] - previous[i] - meanDiff;
+            if (diff > threshold || diff < -threshold) {
+                changed++;
+            }
+        }
+        return (float) changed / blocks;
+    }
+
+    private void update(float changedFraction, long timestampNs) {
+        if (!mMotion) {
+            mFramesAbove = changedFraction >= mStartFraction ? mFramesAbove + 1 : 0;
+            if (mFramesAbove >= mStartFrames) {
+                mMotion = true;
+                mLastMotionNs = timestampNs;
+                mListener.onMotionStarted();
+            }
+        } else if (changedFraction >= mStopFraction) {
+            mLastMotionNs = timestampNs;
+        } else if (timestampNs - mLastMotionNs >= mStopDelayNs) {
+            mMotion = false;
+            mFramesAbove = 0;
+            mListener.onMotionStopped();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.isafemobile.cameratest;
+
+import java.util.List;
+
+/**
+ * Preview size selection, kept free of Android types so it can be tested and benchmarked
+ * on the JVM.
+ */
+public class PreviewSizes {
+
+    private static final double ASPECT_TOLERANCE = 0.1;
+
+    /**
+     * Picks the size whose aspect ratio matches the surface within 0.1 and whose height is
+     * closest to the surface height, or just the closest height if no ratio matches. The
+     * ratio is taken as height / width of the surface against width / height of the
+     * camera size, since the sensor is landscape and the surface usually portrait. Ties go
+     * to the earlier size in the list.
+     *
+     * @return null if {@code sizes} is null or empty
+     */
+    public static Size getOptimalPreviewSize(List<Size> sizes, int w, int h) {
+        double targetRatio = (double) h / w;
+        if (sizes == null) return null;
+
+        Size optimalSize = null;
+        double minDiff = Double.MAX_VALUE;
+
+        int targetHeight = h;
+
+        for (Size size : sizes) {
+            double ratio = (double) size.width / size.height;
+            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
+            if (Math.abs(size.height - targetHeight) < minDiff) {
+                optimalSize = size;
+                minDiff = Math.abs(size.height - targetHeight);
+            }
+        }
+
+        if (optimalSize == null) {
+            minDiff = Double.MAX_VALUE;
+            for (Size size : sizes) {
+                if (Math.abs(size.height - targetHeight) < minDiff) {
+                    optimalSize = size;
+                    minDiff = Math.abs(size.height - targetHeight);
+                }
+            }
+        }
+        return optimalSize;
+    }
+}
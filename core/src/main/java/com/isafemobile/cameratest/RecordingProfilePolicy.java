@@ -0,0 +1,112 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Picks the video bitrate a recording can sustain. The levels step down from the profile's
+ * bitrate; a level is only picked if the storage writes comfortably faster than the recorder
+ * produces and the thermal status leaves room for it.
+ * <p>
+ * A new recording gets the best sustainable level. A running one is only re-evaluated at
+ * segment boundaries and only ever steps down, so a device hovering around a thermal
+ * threshold does not switch back and forth every segment.
+ */
+public class RecordingProfilePolicy {
+
+    // PowerManager.THERMAL_STATUS_*
+    public static final int THERMAL_NONE = 0;
+    public static final int THERMAL_LIGHT = 1;
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+    public static final int THERMAL_CRITICAL = 4;
+    public static final int THERMAL_EMERGENCY = 5;
+    public static final int THERMAL_SHUTDOWN = 6;
+
+    // the storage has to keep up with twice the recording rate, it also writes metadata and
+    // other apps' files, and SD cards slow down when they garbage collect
+    static final int STORAGE_HEADROOM = 2;
+
+    private static final int[] LEVEL_PERCENT = {100, 70, 50, 35, 25};
+
+    private final int[] mVideoBitRates;
+    private final int mAudioBitRate;
+    // 0 until the storage was probed
+    private long mStorageBytesPerSec = 0;
+    private int mThermalStatus = THERMAL_NONE;
+
+    /**
+     * @param videoBitRate the bitrate of the recording profile, level 0
+     */
+    public RecordingProfilePolicy(int videoBitRate, int audioBitRate) {
+        mVideoBitRates = new int[LEVEL_PERCENT.length];
+        for (int i = 0; i < LEVEL_PERCENT.length; i++) {
+            mVideoBitRates[i] = (int) ((long) videoBitRate * LEVEL_PERCENT[i] / 100);
+        }
+        mAudioBitRate = audioBitRate;
+    }
+
+    public int levels() {
+        return mVideoBitRates.length;
+    }
+
+    public int videoBitRate(int level) {
+        return mVideoBitRates[level];
+    }
+
+    /**
+     * @param bytesPerSec sustained write throughput of the storage, 0 or less if unknown
+     */
+    public void onStorageThroughput(long bytesPerSec) {
+        mStorageBytesPerSec = Math.max(bytesPerSec, 0);
+    }
+
+    public void onThermalStatus(int status) {
+        mThermalStatus = status;
+    }
+
+    /**
+     * @return the level for a new recording
+     */
+    public int select() {
+        return Math.max(storageLevel(), thermalLevel());
+    }
+
+    /**
+     * @return the level for the segment after one recorded at {@code current}, never better
+     */
+    public int atSegmentBoundary(int current) {
+        return Math.max(current, select());
+    }
+
+    /**
+     * @return bytes per second a recording at the level writes
+     */
+    public long bytesPerSec(int level) {
+        return ((long) mVideoBitRates[level] + mAudioBitRate) / 8;
+    }
+
+    private int storageLevel() {
+        if (mStorageBytesPerSec == 0) {
+            return 0;
+        }
+        for (int level = 0; level < mVideoBitRates.length; level++) {
+            if (bytesPerSec(level) * STORAGE_HEADROOM <= mStorageBytesPerSec) {
+                return level;
+            }
+        }
+        // too slow for any level, the lowest drops the fewest frames
+        return mVideoBitRates.length - 1;
+    }
+
+    private int thermalLevel() {
+        switch (mThermalStatus) {
+            case THERMAL_NONE:
+            case THERMAL_LIGHT:
+                return 0;
+            case THERMAL_MODERATE:
+                return 1;
+            case THERMAL_SEVERE:
+                return 2;
+            default:
+                return mVideoBitRates.length - 1;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.isafemobile.cameratest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Loop recording quota: picks the oldest segment files to delete so the folder
+ * fits a byte budget again. Only files named like segments are ever selected.
+ */
+public class SegmentQuota {
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("VID_\\d{8}_\\d{6}_\\d+\\.mp4");
+
+    public static class Entry {
+        public final String documentId;
+        public final String name;
+        public final long size;
+        public final long lastModified;
+
+        public Entry(String documentId, String name, long size, long lastModified) {
+            this.documentId = documentId;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public static String segmentName(String timeStamp, int index) {
+        return "VID_" + timeStamp + "_" + index + ".mp4";
+    }
+
+    public static boolean isSegmentName(String name) {
+        return name != null && SEGMENT_NAME.matcher(name).matches();
+    }
+
+    /**
+     * @param files  all files in the folder, their sizes count against the budget
+     * @param keep   names that must not be deleted, e.g. the segment being recorded
+     * @return segments to delete, oldest first
+     */
+    public static List<Entry> selectForDeletion(List<Entry> files, long budgetBytes, Set<String> keep) {
+        long total = 0;
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry entry : files) {
+            total += Math.max(entry.size, 0);
+            if (isSegmentName(entry.name) && !keep.contains(entry.name)) {
+                candidates.add(entry);
+            }
+        }
+        List<Entry> delete = new ArrayList<>();
+        if (total <= budgetBytes) {
+            return delete;
+        }
+        Collections.sort(candidates, (a, b) -> Long.compare(a.lastModified, b.lastModified));
+        for (Entry entry : candidates) {
+            if (total <= budgetBytes) {
+                break;
+            }
+            delete.add(entry);
+            total -= Math.max(entry.size, 0);
+        }
+        return delete;
+    }
+}
@@ -0,0 +1,56 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Immutable width x height pair, independent of the Android size classes so the camera
+ * logic in this module can be tested on the JVM.
+ */
+public final class Size {
+
+    public final int width;
+    public final int height;
+
+    public Size(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return the size for "&lt;width&gt;x&lt;height&gt;", or null if the text is not a size
+     */
+    public static Size parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        int x = text.indexOf('x');
+        if (x <= 0) {
+            return null;
+        }
+        try {
+            return new Size(Integer.parseInt(text.substring(0, x)), Integer.parseInt(text.substring(x + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Size)) {
+            return false;
+        }
+        Size other = (Size) o;
+        return width == other.width && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return width * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height;
+    }
+}
@@ -0,0 +1,53 @@
+package com.isafemobile.cameratest;
+
+/**
+ * Preview and video size picked together by {@link SizeSelector}.
+ */
+public final class SizeSelection {
+
+    public final Size preview;
+    public final Size video;
+
+    public SizeSelection(Size preview, Size video) {
+        this.preview = preview;
+        this.video = video;
+    }
+
+    /**
+     * @return null if the text is not "&lt;preview&gt;/&lt;video&gt;"
+     */
+    public static SizeSelection parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        int slash = text.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        Size preview = Size.parse(text.substring(0, slash));
+        Size video = Size.parse(text.substring(slash + 1));
+        return preview != null && video != null ? new SizeSelection(preview, video) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SizeSelection)) {
+            return false;
+        }
+        SizeSelection other = (SizeSelection) o;
+        return preview.equals(other.preview) && video.equals(other.video);
+    }
+
+    @Override
+    public int hashCode() {
+        return preview.hashCode() * 31 + video.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return preview + "/" + video;
+    }
+}
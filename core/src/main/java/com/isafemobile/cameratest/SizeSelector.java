@@ -0,0 +1,125 @@
+package com.isafemobile.cameratest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scores the preview sizes of one camera against the recording size and the surface and
+ * remembers the result per surface size and rotation, so rotating back or resizing to a
+ * size seen before costs a map lookup.
+ * <p>
+ * The video size is the recording profile's size if the camera supports it, otherwise the
+ * closest supported one. A preview size equal to the video size is preferred strongly:
+ * with Camera1 the recorder otherwise reconfigures or scales the preview stream for every
+ * recording. After that candidates lose points for a different aspect ratio than the
+ * video and the surface, for a pixel count far from the surface and for a maximum frame
+ * rate below the target.
+ * <p>
+ * Not thread safe.
+ */
+public class SizeSelector {
+
+    private static final double VIDEO_MISMATCH_PENALTY = 1.0;
+    private static final double VIDEO_ASPECT_WEIGHT = 2.0;
+    private static final double SURFACE_ASPECT_WEIGHT = 0.5;
+    private static final double PIXEL_WEIGHT = 0.5;
+    private static final double FPS_WEIGHT = 2.0;
+
+    private final List<Size> mPreviewSizes;
+    private final int[] mPreviewMaxFps;
+    private final int mTargetFps;
+    private final Size mVideoSize;
+    private final Map<Long, SizeSelection> mMemo = new HashMap<>();
+
+    /**
+     * @param previewMaxFps   highest frame rate per preview size, same order; null or 0 if unknown
+     * @param videoSizes      supported recording sizes, empty if the preview sizes are used
+     * @param profileVideoSize size of the recording profile
+     */
+    public SizeSelector(List<Size> previewSizes, int[] previewMaxFps, List<Size> videoSizes,
+                        Size profileVideoSize, int targetFps) {
+        if (previewSizes.isEmpty()) {
+            throw new IllegalArgumentException("no preview sizes");
+        }
+        mPreviewSizes = previewSizes;
+        mPreviewMaxFps = previewMaxFps;
+        mTargetFps = targetFps;
+        mVideoSize = chooseVideoSize(videoSizes.isEmpty() ? previewSizes : videoSizes, profileVideoSize);
+    }
+
+    public Size videoSize() {
+        return mVideoSize;
+    }
+
+    /**
+     * @param rotationDegrees rotation between sensor and display, see
+     *                        {@link CameraRotation#computeRelativeRotation}; at 90 and 270
+     *                        the surface is compared with its sides swapped
+     */
+    public SizeSelection select(int surfaceWidth, int surfaceHeight, int rotationDegrees) {
+        long key = ((long) surfaceWidth << 32) | ((long) (surfaceHeight & 0xFFFFFF) << 8) | ((rotationDegrees / 90) & 3);
+        SizeSelection selection = mMemo.get(key);
+        if (selection == null) {
+            boolean swap = rotationDegrees % 180 != 0;
+            selection = new SizeSelection(
+                    choosePreviewSize(swap ? surfaceHeight : surfaceWidth, swap ? surfaceWidth : surfaceHeight),
+                    mVideoSize);
+            mMemo.put(key, selection);
+        }
+        return selection;
+    }
+
+    int memoSize() {
+        return mMemo.size();
+    }
+
+    private Size choosePreviewSize(int width, int height) {
+        double surfaceRatio = ratio(width, height);
+        double surfacePixels = Math.max(1.0, (double) width * height);
+        double videoRatio = ratio(mVideoSize.width, mVideoSize.height);
+        Size best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < mPreviewSizes.size(); i++) {
+            Size size = mPreviewSizes.get(i);
+            double sizeRatio = ratio(size.width, size.height);
+            double score = (size.equals(mVideoSize) ? 0 : VIDEO_MISMATCH_PENALTY)
+                    + VIDEO_ASPECT_WEIGHT * Math.abs(Math.log(sizeRatio / videoRatio))
+                    + SURFACE_ASPECT_WEIGHT * Math.abs(Math.log(sizeRatio / surfaceRatio))
+                    + PIXEL_WEIGHT * Math.abs(Math.log((double) size.width * size.height / surfacePixels));
+            int fps = mPreviewMaxFps != null && i < mPreviewMaxFps.length ? mPreviewMaxFps[i] : 0;
+            if (fps > 0 && fps < mTargetFps) {
+                score += FPS_WEIGHT * (mTargetFps - fps) / mTargetFps;
+            }
+            // ties keep the first size in list order
+            if (score < bestScore) {
+                best = size;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private static Size chooseVideoSize(List<Size> sizes, Size profileSize) {
+        if (sizes.contains(profileSize)) {
+            return profileSize;
+        }
+        double profileRatio = ratio(profileSize.width, profileSize.height);
+        double profilePixels = (double) profileSize.width * profileSize.height;
+        Size best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Size size : sizes) {
+            double score = VIDEO_ASPECT_WEIGHT * Math.abs(Math.log(ratio(size.width, size.height) / profileRatio))
+                    + Math.abs(Math.log((double) size.width * size.height / profilePixels));
+            if (score < bestScore) {
+                best = size;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private static double ratio(int width, int height) {
+        return (double) Math.max(width, 1) / Math.max(height, 1);
+    }
+}
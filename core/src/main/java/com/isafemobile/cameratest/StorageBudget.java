@@ -0,0 +1,115 @@
+package com.isafemobile.cameratest;
+
+/**
+ * How much recording fits on the volume: predicts the remaining recording time from the
+ * free space and the bitrate, and caps recordings so they stop cleanly before the volume is
+ * full instead of the recorder failing on a write and leaving a file without its index.
+ */
+public class StorageBudget {
+
+    public static final long UNKNOWN = -1;
+
+    // left free for the index MediaRecorder writes when it stops, the catalog, the thumbnails
+    // and the rest of the system
+    static final long RESERVE_BYTES = 64L * 1024 * 1024;
+    // a recording that would stop sooner is refused
+    static final long MIN_RECORDING_MS = 10 * 1000;
+
+    private StorageBudget() {
+    }
+
+    /**
+     * @param freeBytes   free bytes of the volume, {@link #UNKNOWN} if not known
+     * @param bytesPerSec bytes per second the recording writes
+     * @return how long a recording fits, {@link Long#MAX_VALUE} if the free space is unknown
+     */
+    public static long remainingMs(long freeBytes, long bytesPerSec) {
+        if (freeBytes == UNKNOWN || bytesPerSec <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, freeBytes - RESERVE_BYTES) / bytesPerSec * 1000;
+    }
+
+    public static boolean canRecord(long freeBytes, long bytesPerSec) {
+        return remainingMs(freeBytes, bytesPerSec) >= MIN_RECORDING_MS;
+    }
+
+    /**
+     * @param segmentMaxBytes the size limit of a segment, 0 for none
+     * @return the limit for {@code MediaRecorder.setMaxFileSize()}, 0 for none
+     */
+    public static long maxFileSize(long freeBytes, long segmentMaxBytes) {
+        if (freeBytes == UNKNOWN) {
+            return segmentMaxBytes;
+        }
+        // 0 would lift the limit
+        long room = Math.max(1, freeBytes - RESERVE_BYTES);
+        return segmentMaxBytes > 0 ? Math.min(segmentMaxBytes, room) : room;
+    }
+
+    /**
+     * The file size limit of a recorder. {@code MediaRecorder} only moves on to its next
+     * output file at the file size limit, at the duration limit it stops; a segment duration
+     * is therefore turned into the size the segment grows to at the recording's rate.
+     *
+     * @param segmentDurationMs the duration of a segment, 0 for none
+     * @param segmentMaxBytes   the size limit of a segment, 0 for none
+     * @return the limit for {@code MediaRecorder.setMaxFileSize()}, 0 for none
+     */
+    public static long recorderMaxFileSize(long freeBytes, long bytesPerSec, long segmentDurationMs,
+                                           long segmentMaxBytes) {
+        return maxFileSize(freeBytes, segmentBytes(bytesPerSec, segmentDurationMs, segmentMaxBytes));
+    }
+
+    /**
+     * Whether a recorder prepared earlier with {@code maxFileSize} could now run into the
+     * reserve. Free space drifts with every capture, half the reserve is tolerated.
+     */
+    public static boolean exceedsFreeSpace(long maxFileSize, long freeBytes) {
+        if (freeBytes == UNKNOWN) {
+            return false;
+        }
+        return maxFileSize == 0 || maxFileSize > freeBytes - RESERVE_BYTES / 2;
+    }
+
+    /**
+     * Whether a clip the app writes itself, without a recorder's size limit, has to end now:
+     * it filled the room there was when it started, or the volume already reached into the
+     * reserve through other writes.
+     *
+     * @param clipMaxBytes from {@link #maxFileSize} when the clip started, 0 for none
+     * @param freeBytes    the latest measured free space
+     */
+    public static boolean clipMustEnd(long writtenBytes, long clipMaxBytes, long freeBytes) {
+        if (clipMaxBytes > 0 && writtenBytes >= clipMaxBytes) {
+            return true;
+        }
+        return freeBytes != UNKNOWN && freeBytes < RESERVE_BYTES / 2;
+    }
+
+    /**
+     * @param segmentDurationMs the duration limit of a segment, 0 for none
+     * @param maxFileSize       the size limit of a segment, 0 for none
+     * @return the bytes a segment grows to, 0 if it is unbounded
+     */
+    public static long segmentBytes(long bytesPerSec, long segmentDurationMs, long maxFileSize) {
+        long byDuration = segmentDurationMs > 0 ? bytesPerSec * segmentDurationMs / 1000 : 0;
+        if (byDuration > 0 && maxFileSize > 0) {
+            return Math.min(byDuration, maxFileSize);
+        }
+        return Math.max(byDuration, maxFileSize);
+    }
+
+    /**
+     * Whether a segmented recording can roll over into another segment: the volume must hold
+     * the rest of the current segment as well as the next one.
+     *
+     * @param segmentBytes from {@link #segmentBytes}
+     */
+    public static boolean fitsNextSegment(long freeBytes, long segmentBytes) {
+        if (freeBytes == UNKNOWN) {
+            return true;
+        }
+        return segmentBytes > 0 && freeBytes - RESERVE_BYTES >= 2 * segmentBytes;
+    }
+}
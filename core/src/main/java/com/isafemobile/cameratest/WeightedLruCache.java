@@ -0,0 +1,70 @@
+package com.isafemobile.cameratest;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache bounded by the total weight of its values, e.g. the bytes of decoded bitmaps,
+ * rather than by their number. A value heavier than the whole cache is not kept. Thread safe.
+ */
+public class WeightedLruCache<K, V> {
+
+    public interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private final long mMaxWeight;
+    private final Weigher<V> mWeigher;
+    // access order, eldest first
+    private final LinkedHashMap<K, V> mMap = new LinkedHashMap<>(16, 0.75f, true);
+    private long mWeight = 0;
+
+    public WeightedLruCache(long maxWeight, Weigher<V> weigher) {
+        mMaxWeight = maxWeight;
+        mWeigher = weigher;
+    }
+
+    public synchronized V get(K key) {
+        return mMap.get(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        long weight = mWeigher.weigh(value);
+        remove(key);
+        if (weight > mMaxWeight) {
+            return;
+        }
+        mMap.put(key, value);
+        mWeight += weight;
+        trimTo(mMaxWeight);
+    }
+
+    public synchronized V remove(K key) {
+        V removed = mMap.remove(key);
+        if (removed != null) {
+            mWeight -= mWeigher.weigh(removed);
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        trimTo(0);
+    }
+
+    public synchronized long weight() {
+        return mWeight;
+    }
+
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    private void trimTo(long maxWeight) {
+        Iterator<Map.Entry<K, V>> eldest = mMap.entrySet().iterator();
+        while (mWeight > maxWeight && eldest.hasNext()) {
+            mWeight -= mWeigher.weigh(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CameraCapabilitiesTest {
+
+    private static final String FINGERPRINT = "isafe/IS655/IS655:11/RP1A/20240402:user/release-keys";
+
+    private static CameraCapabilities capabilities() {
+        return new CameraCapabilities(FINGERPRINT, 90, 1, CameraEngines.HARDWARE_LEVEL_FULL,
+                Arrays.asList(new Size(1920, 1080), new Size(1280, 720), new Size(640, 480)),
+                new int[]{30, 60, 0},
+                Arrays.asList(new Size(1920, 1080), new Size(1280, 720)));
+    }
+
+    @Test
+    public void roundTripsThroughEncode() {
+        CameraCapabilities original = capabilities();
+        SizeSelection selection = new SizeSelection(new Size(1920, 1080), new Size(1920, 1080));
+        original.putChosenSizes(1080, 2160, 90, selection);
+
+        CameraCapabilities decoded = CameraCapabilities.decode(original.encode(), FINGERPRINT);
+        assertNotNull(decoded);
+        assertTrue(original.sameCapabilities(decoded));
+        assertEquals(90, decoded.sensorOrientation);
+        assertEquals(CameraEngines.HARDWARE_LEVEL_FULL, decoded.hardwareLevel);
+        assertArrayEquals(new int[]{30, 60, 0}, decoded.previewMaxFps());
+        assertEquals(selection, decoded.chosenSizes(1080, 2160, 90));
+        assertNull(decoded.chosenSizes(1080, 2160, 0));
+        assertNull(decoded.chosenSizes(720, 1280, 90));
+    }
+
+    @Test
+    public void entryOfOlderVersionIsStillUsed() {
+        String older = "fingerprint=" + FINGERPRINT + "\nsensorOrientation=90\nlensFacing=1\n"
+                + "previewSizes=1920x1080,1280x720\nvideoSizes=1920x1080\nchosen.1080x2160=1280x720\n";
+        CameraCapabilities decoded = CameraCapabilities.decode(older, FINGERPRINT);
+        assertNotNull(decoded);
+        assertArrayEquals(new int[]{0, 0}, decoded.previewMaxFps());
+        assertEquals(CameraEngines.HARDWARE_LEVEL_LEGACY, decoded.hardwareLevel);
+        assertNull(decoded.chosenSizes(1080, 2160, 90));
+    }
+
+    @Test
+    public void otherBuildIsNotUsed() {
+        assertNull(CameraCapabilities.decode(capabilities().encode(), FINGERPRINT + "2"));
+    }
+
+    @Test
+    public void malformedTextIsNotUsed() {
+        assertNull(CameraCapabilities.decode(null, FINGERPRINT));
+        assertNull(CameraCapabilities.decode("", FINGERPRINT));
+        String encoded = capabilities().encode();
+        assertNull(CameraCapabilities.decode(encoded.replace("sensorOrientation=90", "sensorOrientation=x"), FINGERPRINT));
+        assertNull(CameraCapabilities.decode(encoded.replace("1280x720", "1280by720"), FINGERPRINT));
+        assertNull(CameraCapabilities.decode(encoded.replace("lensFacing=1\n", ""), FINGERPRINT));
+    }
+
+    @Test
+    public void chosenSizeMustStillBeSupported() {
+        CameraCapabilities cached = capabilities();
+        cached.putChosenSizes(1080, 2160, 90, new SizeSelection(new Size(1920, 1080), new Size(1920, 1080)));
+        SizeSelection small = new SizeSelection(new Size(640, 480), new Size(640, 480));
+        cached.putChosenSizes(480, 640, 90, small);
+
+        CameraCapabilities live = new CameraCapabilities(FINGERPRINT, 90, 1, CameraEngines.HARDWARE_LEVEL_FULL,
+                Collections.singletonList(new Size(640, 480)), null, Collections.<Size>emptyList());
+        assertFalse(live.sameCapabilities(cached));
+        live.keepChosenSizes(cached);
+        assertNull(live.chosenSizes(1080, 2160, 90));
+        // video uses the preview sizes
+        assertEquals(small, live.chosenSizes(480, 640, 90));
+    }
+
+    @Test
+    public void parsesSizes() {
+        assertEquals(new Size(1920, 1080), Size.parse("1920x1080"));
+        assertNull(Size.parse("x1080"));
+        assertNull(Size.parse("1920x"));
+        assertNull(Size.parse(null));
+        assertEquals(new SizeSelection(new Size(1280, 720), new Size(1920, 1080)),
+                SizeSelection.parse("1280x720/1920x1080"));
+        assertNull(SizeSelection.parse("1280x720"));
+    }
+}
@@ -0,0 +1,213 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * The contract both engines are held to, run against a fake of each. It covers the state
+ * rules {@link AbstractCameraEngine} enforces; Camera1Engine and Camera2Engine need a device.
+ */
+@RunWith(Parameterized.class)
+public class CameraEngineContractTest {
+
+    private static final SizeSelection SIZES = new SizeSelection(new Size(1920, 1080), new Size(1920, 1080));
+    private static final Object SURFACE = new Object();
+    private static final Object RECORDER = new Object();
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[]{"camera1", false}, new Object[]{"camera2", true});
+    }
+
+    private final boolean mCamera2Style;
+    private FakeCameraEngine mEngine;
+
+    public CameraEngineContractTest(String name, boolean camera2Style) {
+        mCamera2Style = camera2Style;
+    }
+
+    @Before
+    public void setUp() {
+        mEngine = new FakeCameraEngine(mCamera2Style);
+    }
+
+    private void startPreview() throws IOException {
+        mEngine.open();
+        mEngine.startPreview(SURFACE, SIZES, 90);
+    }
+
+    private void startRecording() throws IOException {
+        mEngine.attachRecorder(RECORDER);
+        mEngine.bindRecorderSurface(RECORDER);
+        mEngine.startRecorderStream();
+    }
+
+    @Test
+    public void goesThroughRecordingStates() throws IOException {
+        assertEquals(CameraEngine.State.CLOSED, mEngine.state());
+        mEngine.open();
+        assertEquals(CameraEngine.State.OPEN, mEngine.state());
+        mEngine.startPreview(SURFACE, SIZES, 90);
+        assertEquals(CameraEngine.State.PREVIEW, mEngine.state());
+        mEngine.attachRecorder(RECORDER);
+        assertEquals(CameraEngine.State.RECORDER_ATTACHED, mEngine.state());
+        mEngine.bindRecorderSurface(RECORDER);
+        mEngine.startRecorderStream();
+        assertEquals(CameraEngine.State.RECORDING, mEngine.state());
+        mEngine.stopRecorderStream();
+        assertEquals(CameraEngine.State.RECORDER_ATTACHED, mEngine.state());
+        mEngine.detachRecorder();
+        assertEquals(CameraEngine.State.PREVIEW, mEngine.state());
+        mEngine.stopPreview();
+        assertEquals(CameraEngine.State.OPEN, mEngine.state());
+        mEngine.close();
+        assertEquals(CameraEngine.State.CLOSED, mEngine.state());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void previewNeedsOpenCamera() throws IOException {
+        mEngine.startPreview(SURFACE, SIZES, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void openTwiceFails() throws IOException {
+        mEngine.open();
+        mEngine.open();
+    }
+
+    @Test
+    public void failedOpenStaysClosed() {
+        mEngine.failOpen = true;
+        try {
+            mEngine.open();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(CameraEngine.State.CLOSED, mEngine.state());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recorderNeedsPreview() throws IOException {
+        mEngine.open();
+        mEngine.attachRecorder(RECORDER);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void previewCanNotBeReconfiguredWhileRecorderIsAttached() throws IOException {
+        startPreview();
+        mEngine.attachRecorder(RECORDER);
+        mEngine.startPreview(SURFACE, SIZES, 0);
+    }
+
+    @Test
+    public void previewMovesToAnotherSurfaceWhileRecording() throws IOException {
+        startPreview();
+        mEngine.attachRecorder(RECORDER);
+        try {
+            mEngine.rebindPreview(new Object());
+            fail();
+        } catch (IllegalStateException expected) {
+            // a Camera1 recorder holds the unlocked camera until it started
+        }
+        mEngine.bindRecorderSurface(RECORDER);
+        mEngine.startRecorderStream();
+        mEngine.rebindPreview(new Object());
+        assertEquals(CameraEngine.State.RECORDING, mEngine.state());
+        assertTrue(mEngine.calls.contains("rebindPreview"));
+    }
+
+    @Test
+    public void failedRecorderStreamKeepsRecorderAttached() throws IOException {
+        startPreview();
+        mEngine.attachRecorder(RECORDER);
+        mEngine.failStartRecorderStream = true;
+        try {
+            mEngine.startRecorderStream();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(CameraEngine.State.RECORDER_ATTACHED, mEngine.state());
+        mEngine.detachRecorder();
+        assertEquals(CameraEngine.State.PREVIEW, mEngine.state());
+    }
+
+    @Test
+    public void stillReturnsToPreview() throws IOException {
+        startPreview();
+        AtomicReference<byte[]> still = new AtomicReference<>();
+        mEngine.takePicture(still::set);
+        assertFalse(mEngine.canTakePicture());
+        mEngine.deliverStill(new byte[]{1, 2});
+        assertArrayEquals(new byte[]{1, 2}, still.get());
+        assertEquals(CameraEngine.State.PREVIEW, mEngine.state());
+        assertTrue(mEngine.streaming);
+        assertTrue(mEngine.canTakePicture());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void onlyOneStillInFlight() throws IOException {
+        startPreview();
+        mEngine.takePicture(jpeg -> { });
+        mEngine.takePicture(jpeg -> { });
+    }
+
+    @Test
+    public void stillWhileRecordingNeedsVideoSnapshot() throws IOException {
+        startPreview();
+        startRecording();
+        assertEquals(mEngine.supportsVideoSnapshot(), mEngine.canTakePicture());
+    }
+
+    @Test
+    public void previewStreamSurvivesCaptureOnlyWhereItShould() throws IOException {
+        startPreview();
+        mEngine.takePicture(jpeg -> { });
+        mEngine.deliverStill(new byte[1]);
+        startRecording();
+        mEngine.detachRecorder();
+        // Camera1 restarts the preview after the still, Camera2 never stops it
+        assertEquals(mEngine.keepsPreviewDuringCapture() ? 1 : 2, mEngine.previewStreamStarts());
+    }
+
+    @Test
+    public void stillIsReportedOnlyOnce() throws IOException {
+        startPreview();
+        AtomicInteger reports = new AtomicInteger();
+        mEngine.takePicture(jpeg -> reports.incrementAndGet());
+        // close() on the session thread against a late capture on the callback thread
+        mEngine.close();
+        mEngine.deliverStill(new byte[1]);
+        assertEquals(1, reports.get());
+    }
+
+    @Test
+    public void closeDetachesRecorderAndCancelsStill() throws IOException {
+        startPreview();
+        AtomicReference<byte[]> still = new AtomicReference<>(new byte[1]);
+        if (mEngine.keepsPreviewDuringCapture()) {
+            startRecording();
+            mEngine.takePicture(still::set);
+        } else {
+            mEngine.takePicture(still::set);
+            // a Camera1 still can't overlap a recording, attach happens after it
+            mEngine.deliverStill(null);
+            startRecording();
+        }
+        mEngine.close();
+        assertEquals(CameraEngine.State.CLOSED, mEngine.state());
+        assertNull(mEngine.attachedRecorder);
+        assertNull(still.get());
+        assertEquals("close", mEngine.calls.get(mEngine.calls.size() - 1));
+        assertTrue(mEngine.calls.indexOf("stopRecorderStream") < mEngine.calls.indexOf("detachRecorder"));
+    }
+}
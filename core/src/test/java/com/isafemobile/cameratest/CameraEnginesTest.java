@@ -0,0 +1,22 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CameraEnginesTest {
+
+    @Test
+    public void camera2OnlyOnFullAndLevel3() {
+        assertFalse(CameraEngines.useCamera2(CameraEngines.HARDWARE_LEVEL_LEGACY, false));
+        assertFalse(CameraEngines.useCamera2(CameraEngines.HARDWARE_LEVEL_LIMITED, false));
+        assertFalse(CameraEngines.useCamera2(CameraEngines.HARDWARE_LEVEL_EXTERNAL, false));
+        assertTrue(CameraEngines.useCamera2(CameraEngines.HARDWARE_LEVEL_FULL, false));
+        assertTrue(CameraEngines.useCamera2(CameraEngines.HARDWARE_LEVEL_3, false));
+    }
+
+    @Test
+    public void previewFramesNeedCamera1() {
+        assertFalse(CameraEngines.useCamera2(CameraEngines.HARDWARE_LEVEL_3, true));
+    }
+}
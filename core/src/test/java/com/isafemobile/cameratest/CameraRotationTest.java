@@ -0,0 +1,36 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CameraRotationTest {
+
+    @Test
+    public void backCameraFollowsDisplayRotation() {
+        assertEquals(90, CameraRotation.computeRelativeRotation(90, true, 0));
+        assertEquals(0, CameraRotation.computeRelativeRotation(90, true, 90));
+        assertEquals(270, CameraRotation.computeRelativeRotation(90, true, 180));
+        assertEquals(180, CameraRotation.computeRelativeRotation(90, true, 270));
+    }
+
+    @Test
+    public void frontCameraIsMirrored() {
+        assertEquals(270, CameraRotation.computeRelativeRotation(270, false, 0));
+        assertEquals(0, CameraRotation.computeRelativeRotation(270, false, 90));
+        assertEquals(90, CameraRotation.computeRelativeRotation(270, false, 180));
+        assertEquals(180, CameraRotation.computeRelativeRotation(270, false, 270));
+    }
+
+    @Test
+    public void alwaysInRange() {
+        for (int sensor = 0; sensor < 360; sensor += 90) {
+            for (int display = 0; display < 360; display += 90) {
+                int back = CameraRotation.computeRelativeRotation(sensor, true, display);
+                int front = CameraRotation.computeRelativeRotation(sensor, false, display);
+                assertTrue(back >= 0 && back < 360 && back % 90 == 0);
+                assertTrue(front >= 0 && front < 360 && front % 90 == 0);
+            }
+        }
+    }
+}
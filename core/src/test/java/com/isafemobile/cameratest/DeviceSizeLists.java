@@ -0,0 +1,52 @@
+package com.isafemobile.cameratest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Preview size lists in the shape Camera1 reports them, with the order, duplicates of
+ * aspect ratio and odd sizes that real devices have. Add a device's list here when it
+ * shows a problem.
+ */
+final class DeviceSizeLists {
+
+    static final List<Size> FLAGSHIP = sizes(
+            "1920x1080,1600x1200,1440x1080,1280x960,1280x768,1280x720,1024x768,800x600,"
+                    + "800x480,720x480,640x480,640x360,352x288,320x240,176x144");
+
+    static final List<Size> TALL_SCREEN = sizes(
+            "2220x1080,1920x1080,1440x1080,1088x1088,1280x720,1056x704,1024x768,960x720,"
+                    + "800x450,720x720,720x480,640x480,352x288,320x240,256x144,176x144");
+
+    static final List<Size> ENTRY_LEVEL = sizes(
+            "1280x720,800x480,720x480,640x480,352x288,320x240,176x144");
+
+    // ascending order, as some vendors report it
+    static final List<Size> ASCENDING = sizes(
+            "176x144,320x240,352x288,640x480,720x480,1280x720,1440x1080,1920x1080");
+
+    static final List<Size> FOUR_BY_THREE_ONLY = sizes(
+            "2048x1536,1600x1200,1280x960,1024x768,800x600,640x480,320x240");
+
+    static final List<List<Size>> ALL = Collections.unmodifiableList(Arrays.asList(
+            FLAGSHIP, TALL_SCREEN, ENTRY_LEVEL, ASCENDING, FOUR_BY_THREE_ONLY));
+
+    // portrait and landscape surfaces of common screens, plus a split screen window
+    static final int[][] SURFACES = {
+            {1080, 2160}, {1080, 2340}, {1080, 1920}, {720, 1280}, {720, 1440}, {1440, 3040},
+            {2160, 1080}, {1920, 1080}, {1280, 720}, {1080, 1080}, {1080, 900}, {480, 800},
+    };
+
+    private DeviceSizeLists() {
+    }
+
+    private static List<Size> sizes(String text) {
+        List<Size> sizes = new ArrayList<>();
+        for (String item : text.split(",")) {
+            sizes.add(Size.parse(item));
+        }
+        return Collections.unmodifiableList(sizes);
+    }
+}
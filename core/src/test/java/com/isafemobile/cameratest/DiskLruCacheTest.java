@@ -0,0 +1,117 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DiskLruCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiskLruCache open(long maxBytes) throws IOException {
+        DiskLruCache cache = new DiskLruCache(new File(folder.getRoot(), "thumbnails"), maxBytes);
+        cache.open();
+        return cache;
+    }
+
+    private static byte[] data(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test
+    public void storesAndReadsBack() throws IOException {
+        DiskLruCache cache = open(1000);
+        cache.put("content://tree/Images/IMG_1.jpg@1000", data(100, 1));
+
+        assertArrayEquals(data(100, 1), cache.get("content://tree/Images/IMG_1.jpg@1000"));
+        assertNull(cache.get("content://tree/Images/IMG_2.jpg@1000"));
+        assertEquals(100, cache.bytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverTheCap() throws IOException {
+        DiskLruCache cache = open(250);
+        cache.put("a", data(100, 1));
+        cache.put("b", data(100, 2));
+        assertNotNull(cache.get("a"));
+        cache.put("c", data(100, 3));
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertEquals(2, cache.size());
+        assertEquals(2, new File(folder.getRoot(), "thumbnails").list().length);
+    }
+
+    @Test
+    public void replacingAnEntryKeepsOneFile() throws IOException {
+        DiskLruCache cache = open(1000);
+        cache.put("a", data(100, 1));
+        cache.put("a", data(50, 2));
+
+        assertArrayEquals(data(50, 2), cache.get("a"));
+        assertEquals(50, cache.bytes());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void reopeningKeepsEntriesAndUseOrder() throws IOException {
+        DiskLruCache cache = open(1000);
+        cache.put("old", data(100, 1));
+        cache.put("new", data(100, 2));
+        File directory = new File(folder.getRoot(), "thumbnails");
+        // mtime resolution can be a second, make the order explicit
+        new File(directory, DiskLruCache.fileName("old")).setLastModified(1000000);
+        new File(directory, DiskLruCache.fileName("new")).setLastModified(2000000);
+
+        DiskLruCache smaller = open(150);
+        assertNull(smaller.get("old"));
+        assertArrayEquals(data(100, 2), smaller.get("new"));
+    }
+
+    @Test
+    public void dropsLeftoversOfInterruptedWrites() throws IOException {
+        File directory = new File(folder.getRoot(), "thumbnails");
+        assertTrue(directory.mkdirs());
+        try (FileOutputStream out = new FileOutputStream(new File(directory, DiskLruCache.fileName("a") + ".tmp"))) {
+            out.write(data(10, 1));
+        }
+
+        DiskLruCache cache = open(1000);
+        assertEquals(0, cache.size());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void fileDeletedBehindTheCacheIsForgotten() throws IOException {
+        DiskLruCache cache = open(1000);
+        cache.put("a", data(100, 1));
+        assertTrue(new File(new File(folder.getRoot(), "thumbnails"), DiskLruCache.fileName("a")).delete());
+
+        try {
+            cache.get("a");
+            fail("read a deleted file");
+        } catch (IOException expected) {
+            // the system cleared the cache
+        }
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.bytes());
+    }
+
+    @Test
+    public void skipsDataLargerThanTheCache() throws IOException {
+        DiskLruCache cache = open(100);
+        cache.put("a", data(101, 1));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,169 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EncodedPacketRingTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long FRAME_US = 33_333;
+
+    private static class Packet {
+        final int track;
+        final byte[] data;
+        final long ptsUs;
+        final int flags;
+
+        Packet(int track, byte[] data, long ptsUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+        }
+    }
+
+    private static List<Packet> drain(EncodedPacketRing ring) {
+        List<Packet> packets = new ArrayList<>();
+        ring.drainTo((track, data, offset, size, ptsUs, flags) -> {
+            byte[] copy = new byte[size];
+            System.arraycopy(data, offset, copy, 0, size);
+            packets.add(new Packet(track, copy, ptsUs, flags));
+        });
+        return packets;
+    }
+
+    private static byte[] payload(int size, long seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    /**
+     * Writes {@code frames} video frames with a keyframe every {@code gop} frames.
+     */
+    private static void writeVideo(EncodedPacketRing ring, int frames, int gop, int size) {
+        for (int n = 0; n < frames; n++) {
+            int flags = n % gop == 0 ? EncodedPacketRing.FLAG_KEY_FRAME : 0;
+            ring.write(VIDEO, payload(size, n), 0, size, n * FRAME_US, flags);
+        }
+    }
+
+    @Test
+    public void dropsPacketsUntilFirstKeyFrame() {
+        EncodedPacketRing ring = new EncodedPacketRing(1024, 16, VIDEO, 10_000_000);
+        assertFalse(ring.write(AUDIO, new byte[10], 0, 10, 0, 0));
+        assertFalse(ring.write(VIDEO, new byte[10], 0, 10, 0, 0));
+        assertEquals(0, ring.size());
+
+        assertTrue(ring.write(VIDEO, new byte[10], 0, 10, 1, EncodedPacketRing.FLAG_KEY_FRAME));
+        assertTrue(ring.write(AUDIO, new byte[10], 0, 10, 2, 0));
+        assertEquals(2, ring.size());
+    }
+
+    @Test
+    public void drainsInOrderWithIntactPayloads() {
+        EncodedPacketRing ring = new EncodedPacketRing(4096, 64, VIDEO, 10_000_000);
+        writeVideo(ring, 20, 10, 100);
+
+        List<Packet> packets = drain(ring);
+        assertEquals(20, packets.size());
+        for (int n = 0; n < packets.size(); n++) {
+            assertEquals(n * FRAME_US, packets.get(n).ptsUs);
+            assertArrayEquals(payload(100, n), packets.get(n).data);
+        }
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void evictsWholeGopsOutsideWindow() {
+        // 1 second window, keyframe every 30 frames
+        EncodedPacketRing ring = new EncodedPacketRing(1 << 20, 1024, VIDEO, 1_000_000);
+        writeVideo(ring, 30 * 5 + 10, 30, 50);
+
+        List<Packet> packets = drain(ring);
+        Packet first = packets.get(0);
+        Packet last = packets.get(packets.size() - 1);
+        assertEquals(VIDEO, first.track);
+        assertEquals(EncodedPacketRing.FLAG_KEY_FRAME, first.flags & EncodedPacketRing.FLAG_KEY_FRAME);
+        // at least the window is kept, but never more than one extra GOP
+        assertTrue(last.ptsUs - first.ptsUs >= 1_000_000);
+        assertTrue(last.ptsUs - first.ptsUs < 1_000_000 + 30 * FRAME_US);
+    }
+
+    @Test
+    public void evictsWhenBytesRunOutAndStaysKeyFrameAligned() {
+        // room for about 25 frames of 100 bytes, GOP of 10
+        EncodedPacketRing ring = new EncodedPacketRing(2500, 1024, VIDEO, 60_000_000);
+        writeVideo(ring, 1000, 10, 100);
+
+        assertTrue(ring.usedBytes() <= ring.capacityBytes());
+        List<Packet> packets = drain(ring);
+        assertFalse(packets.isEmpty());
+        assertEquals(EncodedPacketRing.FLAG_KEY_FRAME, packets.get(0).flags & EncodedPacketRing.FLAG_KEY_FRAME);
+        long firstPts = packets.get(0).ptsUs;
+        for (int n = 0; n < packets.size(); n++) {
+            long frame = firstPts / FRAME_US + n;
+            assertEquals(frame * FRAME_US, packets.get(n).ptsUs);
+            assertArrayEquals(payload(100, frame), packets.get(n).data);
+        }
+        assertEquals(999 * FRAME_US, packets.get(packets.size() - 1).ptsUs);
+    }
+
+    @Test
+    public void evictsWhenPacketSlotsRunOut() {
+        EncodedPacketRing ring = new EncodedPacketRing(1 << 20, 25, VIDEO, 60_000_000);
+        writeVideo(ring, 100, 10, 10);
+
+        assertTrue(ring.size() <= 25);
+        assertEquals(80 * FRAME_US, ring.oldestPtsUs());
+    }
+
+    @Test
+    public void interleavedAudioIsEvictedWithItsGop() {
+        EncodedPacketRing ring = new EncodedPacketRing(1 << 20, 4096, VIDEO, 1_000_000);
+        for (int n = 0; n < 300; n++) {
+            int flags = n % 30 == 0 ? EncodedPacketRing.FLAG_KEY_FRAME : 0;
+            ring.write(VIDEO, payload(40, n), 0, 40, n * FRAME_US, flags);
+            ring.write(AUDIO, payload(8, -n), 0, 8, n * FRAME_US + 1, 0);
+        }
+
+        List<Packet> packets = drain(ring);
+        assertEquals(VIDEO, packets.get(0).track);
+        for (Packet packet : packets) {
+            assertTrue(packet.ptsUs >= packets.get(0).ptsUs);
+        }
+    }
+
+    @Test
+    public void oversizedPacketResetsRing() {
+        EncodedPacketRing ring = new EncodedPacketRing(100, 16, VIDEO, 10_000_000);
+        writeVideo(ring, 3, 10, 20);
+        assertFalse(ring.write(VIDEO, new byte[200], 0, 200, 10 * FRAME_US, 0));
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void writeFromByteBufferKeepsPosition() {
+        EncodedPacketRing ring = new EncodedPacketRing(1024, 16, VIDEO, 10_000_000);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.put(payload(64, 7));
+        buffer.flip();
+        buffer.position(4);
+
+        assertTrue(ring.write(VIDEO, buffer, 0, EncodedPacketRing.FLAG_KEY_FRAME));
+        assertEquals(4, buffer.position());
+
+        List<Packet> packets = drain(ring);
+        byte[] expected = new byte[60];
+        System.arraycopy(payload(64, 7), 4, expected, 0, 60);
+        assertArrayEquals(expected, packets.get(0).data);
+    }
+}
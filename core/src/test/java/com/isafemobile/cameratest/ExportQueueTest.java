@@ -0,0 +1,63 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ExportQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() {
+        return new File(folder.getRoot(), "export.queue");
+    }
+
+    @Test
+    public void survivesARestartInOrder() throws IOException {
+        ExportQueue queue = new ExportQueue(file());
+        queue.add("content://tree/VID_1.mp4", "VID_1.mp4");
+        queue.add("content://tree/IMG_2.jpg", "IMG_2.jpg");
+        List<ExportQueue.Item> before = queue.items();
+
+        List<ExportQueue.Item> after = new ExportQueue(file()).items();
+        assertEquals(2, after.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(before.get(i).id, after.get(i).id);
+            assertEquals(before.get(i).uri, after.get(i).uri);
+            assertEquals(before.get(i).name, after.get(i).name);
+        }
+    }
+
+    @Test
+    public void queuesAFileOnce() throws IOException {
+        ExportQueue queue = new ExportQueue(file());
+        queue.add("content://tree/VID_1.mp4", "VID_1.mp4");
+        String id = queue.items().get(0).id;
+        queue.add("content://tree/VID_1.mp4", "VID_1.mp4");
+
+        assertEquals(1, queue.size());
+        assertEquals(id, queue.items().get(0).id);
+    }
+
+    @Test
+    public void nextSkipsItemsOfTheRun() throws IOException {
+        ExportQueue queue = new ExportQueue(file());
+        queue.add("content://tree/VID_1.mp4", "VID_1.mp4");
+        queue.add("content://tree/IMG_2.jpg", "IMG_2.jpg");
+        ExportQueue.Item first = queue.next(Collections.emptySet());
+        assertEquals("VID_1.mp4", first.name);
+        assertEquals("IMG_2.jpg", queue.next(Collections.singleton(first.id)).name);
+
+        queue.remove(first);
+        assertEquals(1, new ExportQueue(file()).size());
+        assertNull(queue.next(Collections.singleton(queue.items().get(0).id)));
+    }
+}
@@ -0,0 +1,210 @@
+package com.isafemobile.cameratest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ExporterTest {
+
+    private static final int CHUNK_BYTES = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInUploadServer server;
+    private ExportQueue queue;
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+
+    // the uri of an item is the path of a local file here
+    private final Exporter.Source source = item -> {
+        File file = new File(item.uri);
+        if (!file.exists()) {
+            throw new FileNotFoundException(item.uri);
+        }
+        return new RandomAccessFile(file, "r").getChannel();
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInUploadServer();
+        queue = new ExportQueue(new File(folder.getRoot(), "export.queue"));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private Exporter exporter(int concurrency) {
+        return new Exporter(queue, source, server.endpoint(), CHUNK_BYTES, concurrency,
+                (item, bytesSent, error) -> {
+                    if (error != null) {
+                        failed.add(item.name);
+                    }
+                });
+    }
+
+    private byte[] queueFile(String name, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(name.hashCode()).nextBytes(data);
+        File file = new File(folder.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        queue.add(file.getPath(), name);
+        return data;
+    }
+
+    private String idOf(String name) throws IOException {
+        for (ExportQueue.Item item : queue.items()) {
+            if (item.name.equals(name)) {
+                return item.id;
+            }
+        }
+        throw new AssertionError(name + " is not queued");
+    }
+
+    @Test
+    public void uploadsQueuedFilesInChunks() throws Exception {
+        byte[] video = queueFile("VID_1.mp4", CHUNK_BYTES * 2 + 1000);
+        String id = idOf("VID_1.mp4");
+
+        assertTrue(exporter(2).run());
+        assertArrayEquals(video, server.received(id));
+        assertEquals("VID_1.mp4", server.name(id));
+        assertEquals(Arrays.asList(0L, (long) CHUNK_BYTES, 2L * CHUNK_BYTES), server.putOffsets());
+        assertEquals(0, queue.size());
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void interruptedUploadResumesAtTheServerOffset() throws Exception {
+        byte[] video = queueFile("VID_1.mp4", CHUNK_BYTES * 3);
+        String id = idOf("VID_1.mp4");
+        // the connection drops in the middle of the second chunk
+        server.cutPut(CHUNK_BYTES, CHUNK_BYTES / 2);
+
+        assertFalse(exporter(1).run());
+        assertEquals(Collections.singletonList("VID_1.mp4"), failed);
+        assertEquals(CHUNK_BYTES, server.received(id).length);
+        assertEquals(1, queue.size());
+
+        // the next run, e.g. the next time the job is started
+        assertTrue(exporter(1).run());
+        assertArrayEquals(video, server.received(id));
+        // the first chunk was not sent again
+        assertEquals(Arrays.asList(0L, (long) CHUNK_BYTES, (long) CHUNK_BYTES, 2L * CHUNK_BYTES), server.putOffsets());
+    }
+
+    @Test
+    public void resumesAfterARestart() throws Exception {
+        byte[] video = queueFile("VID_1.mp4", CHUNK_BYTES * 2);
+        String id = idOf("VID_1.mp4");
+        server.cutPut(CHUNK_BYTES, 10);
+        assertFalse(exporter(1).run());
+
+        // a new process reads the queue, the upload id is the same
+        queue = new ExportQueue(new File(folder.getRoot(), "export.queue"));
+        assertEquals(id, idOf("VID_1.mp4"));
+        assertTrue(exporter(1).run());
+        assertArrayEquals(video, server.received(id));
+    }
+
+    @Test
+    public void interruptingTheRunStopsBetweenChunks() throws Exception {
+        byte[] video = queueFile("VID_1.mp4", CHUNK_BYTES * 8);
+        String id = idOf("VID_1.mp4");
+        server.setPutDelayMs(50);
+        Exporter exporter = exporter(1);
+        Thread job = new Thread(() -> {
+            try {
+                exporter.run();
+                fail("run was not interrupted");
+            } catch (InterruptedException expected) {
+                // the job was stopped
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        job.start();
+        Thread.sleep(120);
+        job.interrupt();
+        job.join(5000);
+        // the upload thread sees the interrupt after its chunk
+        Thread.sleep(200);
+
+        int received = server.received(id).length;
+        assertTrue(received > 0 && received < video.length);
+        assertEquals(1, queue.size());
+        server.setPutDelayMs(0);
+        assertTrue(exporter(1).run());
+        assertArrayEquals(video, server.received(id));
+    }
+
+    @Test
+    public void limitsConcurrentUploads() throws Exception {
+        List<byte[]> files = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            files.add(queueFile("IMG_" + i + ".jpg", CHUNK_BYTES / 2));
+        }
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            ids.add(idOf("IMG_" + i + ".jpg"));
+        }
+        server.setPutDelayMs(50);
+
+        assertTrue(exporter(2).run());
+        assertEquals(2, server.maxConcurrentPuts());
+        for (int i = 0; i < 6; i++) {
+            assertArrayEquals(files.get(i), server.received(ids.get(i)));
+        }
+    }
+
+    @Test
+    public void failedUploadDoesNotHoldUpTheOthers() throws Exception {
+        queueFile("VID_1.mp4", CHUNK_BYTES);
+        byte[] image = queueFile("IMG_2.jpg", 1000);
+        String imageId = idOf("IMG_2.jpg");
+        server.cutPut(0, 10);
+
+        assertFalse(exporter(1).run());
+        assertEquals(Collections.singletonList("VID_1.mp4"), failed);
+        assertArrayEquals(image, server.received(imageId));
+        assertEquals("VID_1.mp4", queue.items().get(0).name);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void skipsWhatTheServerAlreadyHas() throws Exception {
+        byte[] video = queueFile("VID_1.mp4", CHUNK_BYTES * 2);
+        server.preload(idOf("VID_1.mp4"), video);
+
+        assertTrue(exporter(1).run());
+        assertTrue(server.putOffsets().isEmpty());
+    }
+
+    @Test
+    public void dropsFilesDeletedBeforeTheExport() throws Exception {
+        queueFile("VID_1.mp4", 1000);
+        assertTrue(new File(folder.getRoot(), "VID_1.mp4").delete());
+
+        assertTrue(exporter(1).run());
+        assertEquals(Collections.singletonList("VID_1.mp4"), failed);
+        assertEquals(0, server.uploads());
+    }
+}
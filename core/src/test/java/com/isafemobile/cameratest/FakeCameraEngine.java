@@ -0,0 +1,129 @@
+package com.isafemobile.cameratest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Engine without a camera that behaves like one of the two real ones: the Camera1 style
+ * stops the preview stream for a still and can't capture while a recorder holds the
+ * camera, the Camera2 style serves everything from one running session.
+ */
+class FakeCameraEngine extends AbstractCameraEngine<Object, Object> {
+
+    final boolean camera2Style;
+    final List<String> calls = new ArrayList<>();
+    boolean failOpen = false;
+    boolean failStartRecorderStream = false;
+    boolean streaming = false;
+    Object attachedRecorder;
+
+    FakeCameraEngine(boolean camera2Style) {
+        this.camera2Style = camera2Style;
+    }
+
+    @Override
+    public List<Size> previewSizes() {
+        return Arrays.asList(new Size(1920, 1080), new Size(1280, 720));
+    }
+
+    @Override
+    public List<Size> videoSizes() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean supportsVideoSnapshot() {
+        return camera2Style;
+    }
+
+    @Override
+    public boolean keepsPreviewDuringCapture() {
+        return camera2Style;
+    }
+
+    /**
+     * Finishes the still in flight like the camera's callback would.
+     */
+    void deliverStill(byte[] jpeg) {
+        if (!camera2Style && state() == State.PREVIEW) {
+            calls.add("restartPreview");
+            streaming = true;
+            previewStreamStarted();
+        }
+        stillCaptured(jpeg);
+    }
+
+    @Override
+    protected void onOpen() throws IOException {
+        if (failOpen) {
+            throw new IOException("camera in use");
+        }
+        calls.add("open");
+    }
+
+    @Override
+    protected void onStartPreview(Object surface, SizeSelection sizes, int displayOrientation) {
+        calls.add("startPreview");
+        streaming = true;
+        previewStreamStarted();
+    }
+
+    @Override
+    protected void onStopPreview() {
+        calls.add("stopPreview");
+        streaming = false;
+    }
+
+    @Override
+    protected void onRebindPreview(Object surface) {
+        calls.add("rebindPreview");
+    }
+
+    @Override
+    protected void onAttachRecorder(Object recorder) {
+        calls.add("attachRecorder");
+        attachedRecorder = recorder;
+    }
+
+    @Override
+    protected void onBindRecorderSurface(Object recorder) {
+        calls.add("bindRecorderSurface");
+    }
+
+    @Override
+    protected void onStartRecorderStream() throws IOException {
+        if (failStartRecorderStream) {
+            throw new IOException("session closed");
+        }
+        calls.add("startRecorderStream");
+    }
+
+    @Override
+    protected void onStopRecorderStream() {
+        calls.add("stopRecorderStream");
+    }
+
+    @Override
+    protected void onDetachRecorder() {
+        calls.add("detachRecorder");
+        attachedRecorder = null;
+    }
+
+    @Override
+    protected void onTakePicture() {
+        calls.add("takePicture");
+        if (!camera2Style && state() == State.PREVIEW) {
+            // Camera1 stops the preview for the capture
+            streaming = false;
+        }
+    }
+
+    @Override
+    protected void onClose() {
+        calls.add("close");
+        streaming = false;
+    }
+}
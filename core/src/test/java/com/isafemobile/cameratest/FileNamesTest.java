@@ -0,0 +1,31 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class FileNamesTest {
+
+    @Test
+    public void timeStampMatchesPreviousFormat() {
+        long time = 1712046567000L;
+        assertEquals(new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date(time)),
+                FileNames.timeStamp(time));
+    }
+
+    @Test
+    public void names() {
+        assertEquals("VID_20240402_083927.mp4", FileNames.video("20240402_083927"));
+        assertEquals("IMG_20240402_083927.jpg", FileNames.image("20240402_083927"));
+        assertEquals("IMG_20240402_083927_7.jpg", FileNames.image("20240402_083927", 7));
+        // plain recordings must never be taken for loop segments
+        assertFalse(SegmentQuota.isSegmentName(FileNames.video("20240402_083927")));
+        // neither must outputs created ahead of a recording
+        assertEquals("PENDING_20240402_083927_3.mp4", FileNames.pendingVideo("20240402_083927", 3));
+        assertFalse(SegmentQuota.isSegmentName(FileNames.pendingVideo("20240402_083927", 3)));
+    }
+}
@@ -0,0 +1,375 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+    private static final long FRAME_US = 33333;
+    private static final long AAC_FRAME_US = 1024 * 1000000L / 44100;
+    private static final int GOP = 5;
+
+    /**
+     * Parsed box, children are only parsed for the containers the tests look into.
+     */
+    private static class Box {
+        final String type;
+        final int start;
+        final int size;
+        final ByteBuffer payload;
+        final List<Box> children = new ArrayList<>();
+
+        Box(String type, int start, int size, ByteBuffer payload) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+            this.payload = payload;
+        }
+
+        Box child(String type) {
+            for (Box box : children) {
+                if (box.type.equals(type)) {
+                    return box;
+                }
+            }
+            throw new AssertionError("no " + type + " in " + this.type);
+        }
+
+        List<Box> all(String type) {
+            List<Box> boxes = new ArrayList<>();
+            for (Box box : children) {
+                if (box.type.equals(type)) {
+                    boxes.add(box);
+                }
+            }
+            return boxes;
+        }
+
+        /**
+         * @return the payload after the version and flags of a full box
+         */
+        ByteBuffer fields() {
+            ByteBuffer fields = payload.duplicate();
+            fields.position(fields.position() + 4);
+            return fields.slice();
+        }
+    }
+
+    private static final List<String> CONTAINERS = Arrays.asList(
+            "moov", "trak", "mdia", "minf", "stbl", "mvex", "moof", "traf", "dinf");
+
+    /**
+     * Parses complete boxes only, like a player reading a file cut off by a crash.
+     */
+    private static List<Box> parse(ByteBuffer data, int offset) {
+        List<Box> boxes = new ArrayList<>();
+        while (data.remaining() >= 8) {
+            int start = data.position();
+            int size = data.getInt(start);
+            if (size < 8 || size > data.remaining()) {
+                break;
+            }
+            String type = new String(new byte[]{data.get(start + 4), data.get(start + 5),
+                    data.get(start + 6), data.get(start + 7)}, StandardCharsets.US_ASCII);
+            ByteBuffer payload = data.duplicate();
+            payload.limit(start + size).position(start + 8);
+            Box box = new Box(type, offset + start, size, payload.slice());
+            if (CONTAINERS.contains(type)) {
+                box.children.addAll(parse(payload.slice(), offset + start + 8));
+            }
+            boxes.add(box);
+            data.position(start + size);
+        }
+        return boxes;
+    }
+
+    private static List<Box> parse(byte[] file) {
+        return parse(ByteBuffer.wrap(file), 0);
+    }
+
+    /**
+     * Gathering channel into memory that counts write calls.
+     */
+    private static class MemoryChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int writes = 0;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += append(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            writes++;
+            return append(src);
+        }
+
+        private int append(ByteBuffer src) {
+            int size = src.remaining();
+            byte[] bytes = new byte[size];
+            src.get(bytes);
+            out.write(bytes, 0, size);
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final MemoryChannel channel = new MemoryChannel();
+    private final FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, 90,
+            FragmentedMp4Writer.Track.avc(640, 480, SPS, PPS),
+            FragmentedMp4Writer.Track.aac(44100, 1, 96000, AUDIO_SPECIFIC_CONFIG));
+
+    /**
+     * One access unit with a 4 byte start code, filled with a pattern of the frame number.
+     */
+    private static ByteBuffer frame(int index, boolean key) {
+        byte[] nal = new byte[100 + index];
+        nal[0] = 0;
+        nal[1] = 0;
+        nal[2] = 0;
+        nal[3] = 1;
+        nal[4] = (byte) (key ? 0x65 : 0x41);
+        for (int i = 5; i < nal.length; i++) {
+            nal[i] = (byte) (index + 1);
+        }
+        return ByteBuffer.wrap(nal);
+    }
+
+    /**
+     * Writes interleaved video and audio, a keyframe every {@link #GOP} frames.
+     */
+    private void record(int frames) throws IOException {
+        long audioPtsUs = 0;
+        for (int i = 0; i < frames; i++) {
+            long ptsUs = 1000000 + i * FRAME_US;
+            assertTrue(writer.writeSample(0, frame(i, i % GOP == 0), ptsUs,
+                    i % GOP == 0 ? FragmentedMp4Writer.FLAG_KEY_FRAME : 0));
+            while (audioPtsUs <= i * FRAME_US) {
+                writer.writeSample(1, ByteBuffer.wrap(new byte[]{(byte) 0xAA, (byte) i}), 1000000 + audioPtsUs, 0);
+                audioPtsUs += AAC_FRAME_US;
+            }
+        }
+    }
+
+    private static List<Box> boxes(String type, List<Box> boxes) {
+        List<Box> matching = new ArrayList<>();
+        for (Box box : boxes) {
+            if (box.type.equals(type)) {
+                matching.add(box);
+            }
+        }
+        return matching;
+    }
+
+    private static Box videoTraf(Box moof) {
+        for (Box traf : moof.all("traf")) {
+            if (traf.child("tfhd").fields().getInt(0) == 1) {
+                return traf;
+            }
+        }
+        throw new AssertionError("no video traf");
+    }
+
+    @Test
+    public void writesHeaderThenOneFragmentPerGop() throws IOException {
+        record(3 * GOP);
+        writer.close();
+
+        List<Box> boxes = parse(channel.out.toByteArray());
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        assertEquals(8, boxes.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("moof", boxes.get(2 + 2 * i).type);
+            assertEquals("mdat", boxes.get(3 + 2 * i).type);
+            assertEquals(i + 1, boxes.get(2 + 2 * i).child("mfhd").fields().getInt(0));
+        }
+        assertEquals(3, writer.fragments());
+        assertEquals(channel.out.size(), writer.bytesWritten());
+    }
+
+    @Test
+    public void describesTracksInMoov() throws IOException {
+        record(GOP + 1);
+        Box moov = parse(channel.out.toByteArray()).get(1);
+        List<Box> traks = moov.all("trak");
+        assertEquals(2, traks.size());
+        assertEquals(2, moov.child("mvex").all("trex").size());
+
+        ByteBuffer tkhd = traks.get(0).child("tkhd").fields();
+        // matrix b = 1.0, c = -1.0 for 90 degrees
+        assertEquals(0, tkhd.getInt(36));
+        assertEquals(0x10000, tkhd.getInt(40));
+        assertEquals(-0x10000, tkhd.getInt(48));
+        assertEquals(640 << 16, tkhd.getInt(72));
+        assertEquals(480 << 16, tkhd.getInt(76));
+
+        assertEquals(90000, traks.get(0).child("mdia").child("mdhd").fields().getInt(8));
+        assertEquals(44100, traks.get(1).child("mdia").child("mdhd").fields().getInt(8));
+
+        ByteBuffer stsd = traks.get(0).child("mdia").child("minf").child("stbl").child("stsd").fields();
+        assertEquals("avc1", new String(new byte[]{stsd.get(8), stsd.get(9), stsd.get(10), stsd.get(11)},
+                StandardCharsets.US_ASCII));
+        // avcC follows the 78 byte visual sample entry
+        int avcC = 4 + 8 + 78;
+        assertEquals("avcC", new String(new byte[]{stsd.get(avcC + 4), stsd.get(avcC + 5), stsd.get(avcC + 6),
+                stsd.get(avcC + 7)}, StandardCharsets.US_ASCII));
+        assertEquals(0x42, stsd.get(avcC + 9));
+        assertEquals(0x1F, stsd.get(avcC + 11));
+        assertEquals(SPS.length - 4, stsd.getShort(avcC + 14));
+        assertEquals(0x67, stsd.get(avcC + 16));
+    }
+
+    @Test
+    public void samplesPointIntoTheFollowingMdat() throws IOException {
+        record(2 * GOP);
+        writer.close();
+        byte[] file = channel.out.toByteArray();
+        List<Box> boxes = parse(file);
+
+        int frame = 0;
+        for (Box moof : boxes("moof", boxes)) {
+            Box mdat = boxes.get(boxes.indexOf(moof) + 1);
+            Box traf = videoTraf(moof);
+            ByteBuffer trun = traf.child("trun").fields();
+            int count = trun.getInt(0);
+            int dataOffset = trun.getInt(4);
+            assertEquals(GOP, count);
+            int pos = moof.start + dataOffset;
+            assertEquals(mdat.start + 8, pos);
+            for (int s = 0; s < count; s++, frame++) {
+                int size = trun.getInt(8 + s * 12 + 4);
+                int flags = trun.getInt(8 + s * 12 + 8);
+                assertEquals(s == 0 ? 0x02000000 : 0x01010000, flags);
+                // the start code became a 4 byte length
+                assertEquals(size - 4, ByteBuffer.wrap(file).getInt(pos));
+                assertEquals(100 + frame, size);
+                assertEquals((byte) (frame + 1), file[pos + size - 1]);
+                pos += size;
+            }
+        }
+        assertEquals(2 * GOP, frame);
+    }
+
+    @Test
+    public void decodeTimesContinueAcrossFragments() throws IOException {
+        record(4 * GOP);
+        writer.close();
+        List<Box> moofs = boxes("moof", parse(channel.out.toByteArray()));
+
+        long expected = 0;
+        for (Box moof : moofs) {
+            Box traf = videoTraf(moof);
+            assertEquals(expected, traf.child("tfdt").fields().getLong(0));
+            ByteBuffer trun = traf.child("trun").fields();
+            for (int s = 0; s < trun.getInt(0); s++) {
+                int duration = trun.getInt(8 + s * 12);
+                assertTrue(duration == 2999 || duration == 3000);
+                expected += duration;
+            }
+        }
+        assertEquals(4 * GOP * FRAME_US * 90000 / 1000000, expected, 2);
+    }
+
+    @Test
+    public void writesEachFragmentInOneBatch() throws IOException {
+        record(3 * GOP);
+        assertEquals(2, channel.writes);
+        writer.close();
+        assertEquals(3, channel.writes);
+    }
+
+    @Test
+    public void reorderedVideoFramesFail() throws IOException {
+        assertTrue(writer.writeSample(0, frame(0, true), 0, FragmentedMp4Writer.FLAG_KEY_FRAME));
+        // a P-frame that comes out before the B-frame shown ahead of it
+        assertTrue(writer.writeSample(0, frame(1, false), 2 * FRAME_US, 0));
+        try {
+            writer.writeSample(0, frame(2, false), FRAME_US, 0);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void dropsSamplesBeforeTheFirstKeyFrame() throws IOException {
+        assertFalse(writer.writeSample(1, ByteBuffer.wrap(new byte[]{1}), 0, 0));
+        assertFalse(writer.writeSample(0, frame(0, false), 0, 0));
+        assertTrue(writer.writeSample(0, frame(1, true), FRAME_US, FragmentedMp4Writer.FLAG_KEY_FRAME));
+        // before the first keyframe
+        assertFalse(writer.writeSample(1, ByteBuffer.wrap(new byte[]{1}), FRAME_US - 1, 0));
+        assertTrue(writer.writeSample(1, ByteBuffer.wrap(new byte[]{1}), FRAME_US + 10000, 0));
+        writer.close();
+
+        List<Box> boxes = parse(channel.out.toByteArray());
+        Box moof = boxes.get(2);
+        assertEquals(2, moof.all("traf").size());
+        Box audio = moof.all("traf").get(1);
+        // 10 ms after the video starts, at 44.1 kHz
+        assertEquals(441, audio.child("tfdt").fields().getLong(0));
+    }
+
+    @Test
+    public void truncatedFileKeepsCompleteFragments() throws IOException {
+        record(3 * GOP + 2);
+        byte[] file = channel.out.toByteArray();
+        List<Box> complete = parse(file);
+        // the last GOP is still held back, as if the process died now
+        assertEquals(2 + 2 * 3, complete.size());
+
+        byte[] cut = Arrays.copyOf(file, file.length - 10);
+        List<Box> boxes = parse(cut);
+        assertEquals(2 + 2 * 2 + 1, boxes.size());
+        assertEquals("moof", boxes.get(boxes.size() - 1).type);
+    }
+
+    @Test
+    public void convertsEveryNalUnitOfAnAccessUnit() throws IOException {
+        byte[] accessUnit = {0, 0, 0, 1, 0x09, 0x10, 0, 0, 1, 0x65, 1, 2, 3, 0, 0, 0, 1, 0x65, 4, 5};
+        writer.writeSample(0, ByteBuffer.wrap(accessUnit), 0, FragmentedMp4Writer.FLAG_KEY_FRAME);
+        writer.close();
+        byte[] file = channel.out.toByteArray();
+        Box mdat = parse(file).get(3);
+        byte[] expected = {0, 0, 0, 2, 0x09, 0x10, 0, 0, 0, 4, 0x65, 1, 2, 3, 0, 0, 0, 3, 0x65, 4, 5};
+        assertArrayEquals(expected, Arrays.copyOfRange(file, mdat.start + 8, mdat.start + mdat.size));
+    }
+
+    @Test
+    public void closeWithoutSamplesWritesNothing() throws IOException {
+        writer.close();
+        assertEquals(0, channel.out.size());
+        assertEquals(0, writer.fragments());
+    }
+}
@@ -0,0 +1,95 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameAnalysisStageTest {
+
+    @Test
+    public void slowAnalyzerKeepsOnlyTheLatestFrame() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(4, 4, 4, 24);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        long[] analyzed = new long[2];
+        int[] calls = new int[1];
+        FrameAnalysisStage stage = new FrameAnalysisStage((data, width, height, timestampNs) -> {
+            analyzed[calls[0]++] = timestampNs;
+            entered.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Analysis");
+        stage.start();
+
+        Frame first = pool.acquire(1);
+        stage.onFrame(first);
+        first.release();
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+
+        // analyzer is busy, 2 and 3 are replaced by 4
+        for (long ts = 2; ts <= 4; ts++) {
+            Frame frame = pool.acquire(ts);
+            stage.onFrame(frame);
+            frame.release();
+        }
+        assertEquals(2, stage.dropped());
+        // the busy frame and the latest one are held, the replaced ones went back
+        assertEquals(2, pool.freeCount());
+
+        proceed.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (stage.analyzed() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        stage.stop();
+        assertEquals(2, stage.analyzed());
+        assertEquals(1, analyzed[0]);
+        assertEquals(4, analyzed[1]);
+        assertEquals(4, pool.freeCount());
+    }
+
+    @Test
+    public void stopReleasesTheWaitingFrame() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(2, 4, 4, 24);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        FrameAnalysisStage stage = new FrameAnalysisStage((data, width, height, timestampNs) -> {
+            entered.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Analysis");
+        stage.start();
+
+        Frame busy = pool.acquire(1);
+        stage.onFrame(busy);
+        busy.release();
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        Frame waiting = pool.acquire(2);
+        stage.onFrame(waiting);
+        waiting.release();
+
+        stage.stop();
+        assertEquals(1, pool.freeCount());
+        proceed.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (pool.freeCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, pool.freeCount());
+
+        // frames after stop are not retained
+        Frame late = pool.acquire(3);
+        stage.onFrame(late);
+        late.release();
+        assertEquals(2, pool.freeCount());
+    }
+}
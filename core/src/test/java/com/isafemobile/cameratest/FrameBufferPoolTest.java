@@ -0,0 +1,66 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+
+    @Test
+    public void acquiresUntilEmptyAndReusesReleasedFrames() {
+        FrameBufferPool pool = new FrameBufferPool(2, 4, 2, 12);
+        Frame a = pool.acquire(1);
+        Frame b = pool.acquire(2);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(pool.acquire(3));
+
+        a.release();
+        Frame c = pool.acquire(4);
+        assertSame(a, c);
+        assertEquals(4, c.timestampNs());
+        assertTrue(c.sequence() > b.sequence());
+    }
+
+    @Test
+    public void frameIsRecycledAfterLastReference() {
+        FrameBufferPool pool = new FrameBufferPool(1, 4, 2, 12);
+        Frame frame = pool.acquire(0);
+        frame.retain();
+        frame.release();
+        assertEquals(0, pool.freeCount());
+        frame.release();
+        assertEquals(1, pool.freeCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasingRecycledFrameFails() {
+        FrameBufferPool pool = new FrameBufferPool(1, 4, 2, 12);
+        Frame frame = pool.acquire(0);
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void recyclerReceivesFramesInsteadOfFreeList() {
+        FrameBufferPool pool = new FrameBufferPool(3, 4, 2, 12);
+        List<Frame> recycled = new ArrayList<>();
+        pool.setRecycler(recycled::add);
+
+        Frame frame = pool.onFrameFilled(pool.get(1).data, 42);
+        assertSame(pool.get(1), frame);
+        assertEquals(42, frame.timestampNs());
+        frame.release();
+        assertEquals(1, recycled.size());
+        assertSame(frame, recycled.get(0));
+    }
+
+    @Test
+    public void foreignBufferIsNotAFrame() {
+        FrameBufferPool pool = new FrameBufferPool(2, 4, 2, 12);
+        assertNull(pool.onFrameFilled(new byte[12], 0));
+    }
+}
@@ -0,0 +1,120 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class FrameHandoffQueueTest {
+
+    @Test
+    public void handsOverInOrderAndRefusesWhenFull() {
+        FrameBufferPool pool = new FrameBufferPool(3, 4, 2, 12);
+        FrameHandoffQueue queue = new FrameHandoffQueue(2);
+        Frame a = pool.acquire(1);
+        Frame b = pool.acquire(2);
+        Frame c = pool.acquire(3);
+
+        assertTrue(queue.offer(a));
+        assertTrue(queue.offer(b));
+        assertFalse(queue.offer(c));
+        assertEquals(1, queue.dropped());
+
+        assertSame(a, queue.poll());
+        assertSame(b, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void closeWakesUpTaker() throws Exception {
+        FrameHandoffQueue queue = new FrameHandoffQueue(2);
+        Thread taker = new Thread(() -> {
+            try {
+                assertNull(queue.take());
+            } catch (InterruptedException e) {
+                fail();
+            }
+        });
+        taker.start();
+        Thread.sleep(50);
+        queue.close();
+        taker.join(1000);
+        assertFalse(taker.isAlive());
+    }
+
+    @Test
+    public void everyFrameReturnsToThePoolAcrossThreads() throws Exception {
+        FrameBufferPool pool = new FrameBufferPool(4, 16, 16, 16 * 16 * 3 / 2);
+        FrameHandoffQueue queue = new FrameHandoffQueue(3);
+        AtomicLong processed = new AtomicLong();
+        Thread[] workers = new Thread[2];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    Frame frame;
+                    while ((frame = queue.take()) != null) {
+                        processed.incrementAndGet();
+                        frame.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[i].start();
+        }
+
+        long offered = 0;
+        for (int n = 0; n < 100_000; n++) {
+            Frame frame = pool.acquire(n);
+            if (frame == null) {
+                Thread.yield();
+                continue;
+            }
+            if (queue.offer(frame)) {
+                offered++;
+            } else {
+                frame.release();
+            }
+        }
+        queue.close();
+        for (Thread worker : workers) {
+            worker.join(5000);
+        }
+        assertEquals(offered, processed.get());
+        assertEquals(pool.size(), pool.freeCount());
+    }
+
+    @Test
+    public void steadyStateFramePathDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        FrameBufferPool pool = new FrameBufferPool(4, 64, 64, 64 * 64 * 3 / 2);
+        FrameHandoffQueue queue = new FrameHandoffQueue(4);
+        // warm up so the JIT and the class loading are out of the way
+        cycle(pool, queue, 200_000);
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        cycle(pool, queue, 1_000_000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // a few bytes of noise from the measurement itself, far from one allocation per frame
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void cycle(FrameBufferPool pool, FrameHandoffQueue queue, int frames) {
+        for (int n = 0; n < frames; n++) {
+            Frame frame = pool.acquire(n);
+            frame.retain();
+            queue.offer(frame);
+            frame.release();
+            queue.poll().release();
+        }
+    }
+}
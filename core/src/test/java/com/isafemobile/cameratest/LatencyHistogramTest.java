@@ -0,0 +1,72 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        assertEquals(0, LatencyHistogram.bucketIndex(0));
+        assertEquals(15, LatencyHistogram.bucketIndex(15));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+            previous = index;
+        }
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count);
+        assertEquals(1, snapshot.min);
+        assertEquals(1000, snapshot.max);
+        assertEquals(500, snapshot.mean());
+        assertEquals(500, snapshot.p50, 500 * 0.125);
+        assertEquals(900, snapshot.p90, 900 * 0.125);
+        assertEquals(990, snapshot.p99, 990 * 0.125);
+        assertTrue(snapshot.p99 <= snapshot.max);
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().count);
+        assertEquals(0, histogram.snapshot().max);
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().max);
+        histogram.reset();
+        assertEquals(0, histogram.count());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i % 1000 + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.count);
+        assertEquals(0, snapshot.min);
+        assertEquals(1002, snapshot.max);
+    }
+}
@@ -0,0 +1,226 @@
+package com.isafemobile.cameratest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MediaCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private MediaCatalog catalog;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "media.catalog");
+        catalog = new MediaCatalog(file);
+        catalog.open();
+    }
+
+    @After
+    public void tearDown() {
+        catalog.close();
+    }
+
+    private static MediaCatalog.Entry image(String name, long timestampMs) {
+        return new MediaCatalog.Entry("content://tree/Images/" + name, MediaCatalog.TYPE_IMAGE, timestampMs, 0, 1000, 90);
+    }
+
+    private static MediaCatalog.Entry video(String name, long timestampMs, long durationMs) {
+        return new MediaCatalog.Entry("content://tree/Videos/" + name, MediaCatalog.TYPE_VIDEO, timestampMs, durationMs, 5000000, 0);
+    }
+
+    private MediaCatalog reopen() throws IOException {
+        catalog.close();
+        catalog = new MediaCatalog(file);
+        catalog.open();
+        return catalog;
+    }
+
+    private static List<String> uris(List<MediaCatalog.Entry> entries) {
+        List<String> uris = new ArrayList<>();
+        for (MediaCatalog.Entry entry : entries) {
+            uris.add(entry.uri);
+        }
+        return uris;
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws IOException {
+        catalog.add(image("IMG_1.jpg", 1000));
+        catalog.add(video("VID_2.mp4", 2000, 15000));
+
+        MediaCatalog.Entry video = reopen().get("content://tree/Videos/VID_2.mp4");
+        assertEquals(2, catalog.size());
+        assertEquals(MediaCatalog.TYPE_VIDEO, video.type);
+        assertEquals(2000, video.timestampMs);
+        assertEquals(15000, video.durationMs);
+        assertEquals(5000000, video.size);
+        assertEquals(0, video.rotation);
+        assertEquals(90, catalog.get("content://tree/Images/IMG_1.jpg").rotation);
+    }
+
+    @Test
+    public void listsNewestFirst() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            catalog.add(image("IMG_" + i + ".jpg", 1000 + i));
+        }
+        // a recording finalized after a later shot is sorted by its start
+        catalog.add(video("VID_late.mp4", 1004, 3000));
+
+        List<String> recent = uris(catalog.recent(3));
+        assertEquals(Arrays.asList("content://tree/Images/IMG_9.jpg", "content://tree/Images/IMG_8.jpg",
+                "content://tree/Images/IMG_7.jpg"), recent);
+        assertEquals(11, catalog.recent(100).size());
+        assertEquals("content://tree/Videos/VID_late.mp4", catalog.recent(7).get(5).uri);
+    }
+
+    @Test
+    public void queriesHalfOpenTimeRanges() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            catalog.add(image("IMG_" + i + ".jpg", i * 100));
+        }
+        List<MediaCatalog.Entry> range = catalog.query(200, 500);
+        assertEquals(Arrays.asList("content://tree/Images/IMG_2.jpg", "content://tree/Images/IMG_3.jpg",
+                "content://tree/Images/IMG_4.jpg"), uris(range));
+        assertTrue(catalog.query(5000, 6000).isEmpty());
+        assertTrue(catalog.query(500, 200).isEmpty());
+        assertEquals(10, catalog.query(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void addingTheSameUriReplacesTheEntry() throws IOException {
+        // the reconciliation found the file while it was still being recorded
+        catalog.add(video("VID_1.mp4", 1000, MediaCatalog.UNKNOWN));
+        catalog.add(video("VID_1.mp4", 900, 60000));
+
+        assertEquals(1, reopen().size());
+        assertEquals(60000, catalog.get("content://tree/Videos/VID_1.mp4").durationMs);
+        assertEquals(1, catalog.query(900, 901).size());
+        assertTrue(catalog.query(1000, 1001).isEmpty());
+    }
+
+    @Test
+    public void removalsArePersisted() throws IOException {
+        catalog.add(image("IMG_1.jpg", 1000));
+        catalog.add(image("IMG_2.jpg", 2000));
+        assertTrue(catalog.remove("content://tree/Images/IMG_1.jpg"));
+        assertFalse(catalog.remove("content://tree/Images/IMG_1.jpg"));
+
+        assertEquals(Collections.singletonList("content://tree/Images/IMG_2.jpg"), uris(reopen().recent(10)));
+    }
+
+    @Test
+    public void tornTailIsCutOffAndAppendingContinues() throws IOException {
+        catalog.add(image("IMG_1.jpg", 1000));
+        catalog.add(image("IMG_2.jpg", 2000));
+        catalog.close();
+        // crash in the middle of the last append
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        reopen().add(image("IMG_3.jpg", 3000));
+        assertEquals(Arrays.asList("content://tree/Images/IMG_3.jpg", "content://tree/Images/IMG_1.jpg"),
+                uris(reopen().recent(10)));
+    }
+
+    @Test
+    public void partialAppendIsCutOffBeforeTheNextOne() throws IOException {
+        catalog.add(image("IMG_1.jpg", 1000));
+        // what a write that ran out of space leaves behind
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 0});
+        }
+
+        catalog.add(image("IMG_2.jpg", 2000));
+        assertEquals(Arrays.asList("content://tree/Images/IMG_2.jpg", "content://tree/Images/IMG_1.jpg"),
+                uris(reopen().recent(10)));
+    }
+
+    @Test
+    public void corruptRecordEndsTheLog() throws IOException {
+        catalog.add(image("IMG_1.jpg", 1000));
+        long firstRecordEnd = file.length();
+        catalog.add(image("IMG_2.jpg", 2000));
+        catalog.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(firstRecordEnd + 10);
+            raf.write(0x55);
+        }
+
+        assertEquals(1, reopen().size());
+        assertEquals(firstRecordEnd, file.length());
+    }
+
+    @Test
+    public void foreignFileIsReplaced() throws IOException {
+        catalog.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.write("not a catalog".getBytes("US-ASCII"));
+        }
+
+        reopen().add(image("IMG_1.jpg", 1000));
+        assertEquals(1, reopen().size());
+    }
+
+    @Test
+    public void reconcileAddsFoundAndRemovesMissingFiles() throws IOException {
+        catalog.add(image("IMG_kept.jpg", 1000));
+        catalog.add(image("IMG_deleted.jpg", 2000));
+        long mark = catalog.mark();
+        List<MediaCatalog.Entry> onDisk = Arrays.asList(
+                image("IMG_kept.jpg", 1000),
+                video("VID_copied.mp4", 1500, MediaCatalog.UNKNOWN));
+
+        assertEquals(2, catalog.reconcile(onDisk, mark));
+        assertEquals(Arrays.asList("content://tree/Videos/VID_copied.mp4", "content://tree/Images/IMG_kept.jpg"),
+                uris(reopen().recent(10)));
+        assertEquals(0, catalog.reconcile(onDisk, catalog.mark()));
+    }
+
+    @Test
+    public void reconcileKeepsEntriesAddedDuringTheListing() throws IOException {
+        catalog.add(image("IMG_1.jpg", 1000));
+        long mark = catalog.mark();
+        List<MediaCatalog.Entry> onDisk = Collections.singletonList(image("IMG_1.jpg", 1000));
+        // saved while the folders were listed
+        catalog.add(image("IMG_2.jpg", 2000));
+
+        assertEquals(0, catalog.reconcile(onDisk, mark));
+        assertEquals(2, catalog.size());
+    }
+
+    @Test
+    public void compactsLogOfMostlyDeadRecords() throws IOException {
+        for (int i = 0; i < 400; i++) {
+            catalog.add(image("IMG_" + i + ".jpg", i));
+            if (i >= 10) {
+                catalog.remove("content://tree/Images/IMG_" + i + ".jpg");
+            }
+        }
+        long before = file.length();
+
+        assertEquals(10, reopen().size());
+        assertTrue(file.length() < before / 10);
+        assertEquals("content://tree/Images/IMG_9.jpg", catalog.recent(1).get(0).uri);
+        catalog.add(image("IMG_new.jpg", 1000));
+        assertEquals(11, reopen().size());
+    }
+}
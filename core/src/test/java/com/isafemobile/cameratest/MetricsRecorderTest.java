@@ -0,0 +1,58 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRecorderTest {
+
+    @Test
+    public void disabledRecordsNothing() {
+        MetricsRecorder metrics = new MetricsRecorder();
+        metrics.record(Metric.CAMERA_OPEN_MS, 120);
+        metrics.recordRate(Metric.IMAGE_WRITE_BYTES_PER_SEC, 1000, 10);
+        metrics.countFrame();
+        metrics.countDroppedFrame();
+        assertEquals(0, metrics.snapshot(Metric.CAMERA_OPEN_MS).count);
+        assertEquals(0, metrics.snapshot(Metric.IMAGE_WRITE_BYTES_PER_SEC).count);
+        assertEquals(0, metrics.frames());
+        assertEquals(0, metrics.droppedFrames());
+    }
+
+    @Test
+    public void recordsRatesAndCounters() {
+        MetricsRecorder metrics = new MetricsRecorder();
+        metrics.setEnabled(true);
+        metrics.recordRate(Metric.VIDEO_WRITE_BYTES_PER_SEC, 5000000, 2000);
+        // no duration, no rate
+        metrics.recordRate(Metric.VIDEO_WRITE_BYTES_PER_SEC, 100, 0);
+        metrics.countFrame();
+        metrics.countFrame();
+        metrics.countDroppedFrame();
+
+        LatencyHistogram.Snapshot rate = metrics.snapshot(Metric.VIDEO_WRITE_BYTES_PER_SEC);
+        assertEquals(1, rate.count);
+        assertEquals(2500000, rate.max);
+        assertEquals(2, metrics.frames());
+        assertEquals(1, metrics.droppedFrames());
+
+        metrics.reset();
+        assertEquals(0, metrics.frames());
+        assertEquals(0, metrics.snapshot(Metric.VIDEO_WRITE_BYTES_PER_SEC).count);
+    }
+
+    @Test
+    public void exportsEveryMetricAsJson() {
+        MetricsRecorder metrics = new MetricsRecorder();
+        metrics.setEnabled(true);
+        metrics.record(Metric.SHOT_TO_SAVED_MS, 42);
+        String json = metrics.toJson(1712046000000L);
+        assertTrue(json.startsWith("{"));
+        assertTrue(json.trim().endsWith("}"));
+        assertTrue(json.contains("\"timestampMs\": 1712046000000"));
+        assertTrue(json.contains("\"shotToSavedMs\": {\"count\": 1, \"mean\": 42, \"min\": 42"));
+        for (Metric metric : Metric.values()) {
+            assertTrue(json.contains("\"" + metric.key + "\""));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MotionDetectorTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final long FRAME_NS = 33000000L;
+
+    private static class Events implements MotionDetector.Listener {
+        int started;
+        int stopped;
+
+        @Override
+        public void onMotionStarted() {
+            started++;
+        }
+
+        @Override
+        public void onMotionStopped() {
+            stopped++;
+        }
+    }
+
+    private static byte[] frame(int luma) {
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(data, 0, WIDTH * HEIGHT, (byte) luma);
+        return data;
+    }
+
+    /**
+     * Background with a bright square at x, like an object crossing the picture.
+     */
+    private static byte[] frameWithSquare(int x) {
+        byte[] data = frame(60);
+        for (int y = 80; y < 160; y++) {
+            Arrays.fill(data, y * WIDTH + x, y * WIDTH + x + 64, (byte) 200);
+        }
+        return data;
+    }
+
+    @Test
+    public void staticSceneIsNoMotion() {
+        Events events = new Events();
+        MotionDetector detector = new MotionDetector(events);
+        for (int i = 0; i < 30; i++) {
+            detector.analyze(frame(80), WIDTH, HEIGHT, i * FRAME_NS);
+        }
+        assertEquals(0, events.started);
+        assertEquals(0f, detector.changedFraction(), 0f);
+    }
+
+    @Test
+    public void exposureChangeIsNoMotion() {
+        Events events = new Events();
+        MotionDetector detector = new MotionDetector(events);
+        for (int i = 0; i < 30; i++) {
+            detector.analyze(frame(60 + i * 5), WIDTH, HEIGHT, i * FRAME_NS);
+        }
+        assertEquals(0, events.started);
+    }
+
+    @Test
+    public void movingObjectStartsMotionAfterStartFrames() {
+        Events events = new Events();
+        MotionDetector detector = new MotionDetector(events);
+        detector.analyze(frameWithSquare(0), WIDTH, HEIGHT, 0);
+        for (int i = 1; i < MotionDetector.DEFAULT_START_FRAMES; i++) {
+            detector.analyze(frameWithSquare(i * 32), WIDTH, HEIGHT, i * FRAME_NS);
+            assertEquals(0, events.started);
+        }
+        detector.analyze(frameWithSquare(MotionDetector.DEFAULT_START_FRAMES * 32), WIDTH, HEIGHT,
+                MotionDetector.DEFAULT_START_FRAMES * FRAME_NS);
+        assertEquals(1, events.started);
+        assertTrue(detector.isMotion());
+    }
+
+    @Test
+    public void singleChangedFrameIsIgnored() {
+        Events events = new Events();
+        MotionDetector detector = new MotionDetector(events);
+        detector.analyze(frame(60), WIDTH, HEIGHT, 0);
+        detector.analyze(frameWithSquare(100), WIDTH, HEIGHT, FRAME_NS);
+        detector.analyze(frameWithSquare(100), WIDTH, HEIGHT, 2 * FRAME_NS);
+        detector.analyze(frameWithSquare(100), WIDTH, HEIGHT, 3 * FRAME_NS);
+        assertEquals(0, events.started);
+    }
+
+    @Test
+    public void motionStopsOnlyAfterQuietPeriod() {
+        Events events = new Events();
+        MotionDetector detector = new MotionDetector(events, 16, 12, 0.02f, 0.01f, 1, 1000000000L);
+        detector.analyze(frameWithSquare(0), WIDTH, HEIGHT, 0);
+        detector.analyze(frameWithSquare(128), WIDTH, HEIGHT, FRAME_NS);
+        assertEquals(1, events.started);
+
+        long t = 2 * FRAME_NS;
+        byte[] still = frameWithSquare(128);
+        for (; t < 1000000000L; t += FRAME_NS) {
+            detector.analyze(still, WIDTH, HEIGHT, t);
+        }
+        assertEquals(0, events.stopped);
+
+        // movement within the quiet period restarts it
+        detector.analyze(frameWithSquare(0), WIDTH, HEIGHT, t);
+        long lastMotion = t;
+        still = frameWithSquare(0);
+        for (t += FRAME_NS; t < lastMotion + 1000000000L; t += FRAME_NS) {
+            detector.analyze(still, WIDTH, HEIGHT, t);
+        }
+        assertEquals(0, events.stopped);
+        detector.analyze(still, WIDTH, HEIGHT, lastMotion + 1000000000L);
+        assertEquals(1, events.stopped);
+        assertFalse(detector.isMotion());
+    }
+
+    @Test
+    public void sizeChangeStartsOver() {
+        Events events = new Events();
+        MotionDetector detector = new MotionDetector(events, 16, 12, 0.02f, 0.01f, 1, 1000000000L);
+        detector.analyze(frame(0), WIDTH, HEIGHT, 0);
+        byte[] other = new byte[640 * 480 * 3 / 2];
+        Arrays.fill(other, (byte) 255);
+        detector.analyze(other, 640, 480, FRAME_NS);
+        assertEquals(0, events.started);
+    }
+}
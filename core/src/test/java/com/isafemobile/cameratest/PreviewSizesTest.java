@@ -0,0 +1,72 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PreviewSizesTest {
+
+    /**
+     * The selection as it was in MainActivity, kept as the reference for later optimizations.
+     */
+    private static Size reference(List<Size> sizes, int w, int h) {
+        final double ASPECT_TOLERANCE = 0.1;
+        double targetRatio = (double) h / w;
+        Size optimalSize = null;
+        double minDiff = Double.MAX_VALUE;
+        for (Size size : sizes) {
+            double ratio = (double) size.width / size.height;
+            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) continue;
+            if (Math.abs(size.height - h) < minDiff) {
+                optimalSize = size;
+                minDiff = Math.abs(size.height - h);
+            }
+        }
+        if (optimalSize == null) {
+            minDiff = Double.MAX_VALUE;
+            for (Size size : sizes) {
+                if (Math.abs(size.height - h) < minDiff) {
+                    optimalSize = size;
+                    minDiff = Math.abs(size.height - h);
+                }
+            }
+        }
+        return optimalSize;
+    }
+
+    @Test
+    public void matchesReferenceOnDeviceLists() {
+        for (List<Size> sizes : DeviceSizeLists.ALL) {
+            for (int[] surface : DeviceSizeLists.SURFACES) {
+                assertEquals(sizes + " for " + surface[0] + "x" + surface[1],
+                        reference(sizes, surface[0], surface[1]),
+                        PreviewSizes.getOptimalPreviewSize(sizes, surface[0], surface[1]));
+            }
+        }
+    }
+
+    @Test
+    public void knownChoices() {
+        // portrait 16:9 surface gets the 16:9 size with the closest height
+        assertEquals(new Size(1920, 1080), PreviewSizes.getOptimalPreviewSize(DeviceSizeLists.FLAGSHIP, 1080, 1920));
+        assertEquals(new Size(1280, 720), PreviewSizes.getOptimalPreviewSize(DeviceSizeLists.ENTRY_LEVEL, 720, 1280));
+        // no ratio match on an 18.5:9 screen, falls back to the height closest to the
+        // surface height, which for a portrait surface is the largest size
+        assertEquals(new Size(2048, 1536), PreviewSizes.getOptimalPreviewSize(DeviceSizeLists.FOUR_BY_THREE_ONLY, 1080, 2220));
+        // an 18:9 surface takes the wide sensor mode, 16:9 is outside the tolerance
+        assertEquals(new Size(2220, 1080), PreviewSizes.getOptimalPreviewSize(DeviceSizeLists.TALL_SCREEN, 1080, 2160));
+        // ties keep the first size in list order
+        assertEquals(new Size(1224, 720), PreviewSizes.getOptimalPreviewSize(
+                Arrays.asList(new Size(1224, 720), new Size(1280, 720)), 720, 1280));
+    }
+
+    @Test
+    public void nothingToChooseFrom() {
+        assertNull(PreviewSizes.getOptimalPreviewSize(null, 1080, 1920));
+        assertNull(PreviewSizes.getOptimalPreviewSize(Collections.<Size>emptyList(), 1080, 1920));
+    }
+}
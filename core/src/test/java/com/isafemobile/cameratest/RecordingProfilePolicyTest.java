@@ -0,0 +1,117 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RecordingProfilePolicyTest {
+
+    // a typical QUALITY_HIGH 1080p profile
+    private static final int VIDEO_BIT_RATE = 20000000;
+    private static final int AUDIO_BIT_RATE = 128000;
+
+    private final RecordingProfilePolicy policy = new RecordingProfilePolicy(VIDEO_BIT_RATE, AUDIO_BIT_RATE);
+
+    /**
+     * Replays thermal statuses reported during a segmented recording.
+     *
+     * @return the level of every segment, the first one selected at the start
+     */
+    private int[] replay(int... thermalStatusPerSegment) {
+        int[] levels = new int[thermalStatusPerSegment.length];
+        for (int i = 0; i < thermalStatusPerSegment.length; i++) {
+            policy.onThermalStatus(thermalStatusPerSegment[i]);
+            levels[i] = i == 0 ? policy.select() : policy.atSegmentBoundary(levels[i - 1]);
+        }
+        return levels;
+    }
+
+    @Test
+    public void recordsAtProfileBitRateUntilMeasured() {
+        assertEquals(0, policy.select());
+        assertEquals(VIDEO_BIT_RATE, policy.videoBitRate(0));
+        assertEquals(VIDEO_BIT_RATE / 4, policy.videoBitRate(policy.levels() - 1));
+        assertEquals((VIDEO_BIT_RATE + AUDIO_BIT_RATE) / 8, policy.bytesPerSec(0));
+    }
+
+    @Test
+    public void picksHighestLevelTheStorageSustains() {
+        policy.onStorageThroughput(10000000);
+        assertEquals(0, policy.select());
+        // 2.5 MB/s with headroom needs about 5 MB/s, 70% needs about 3.5 MB/s
+        policy.onStorageThroughput(3000000);
+        assertEquals(2, policy.select());
+        policy.onStorageThroughput(0);
+        assertEquals(0, policy.select());
+    }
+
+    @Test
+    public void usesLowestLevelOnStorageTooSlowForAny() {
+        policy.onStorageThroughput(500000);
+        assertEquals(policy.levels() - 1, policy.select());
+    }
+
+    @Test
+    public void stepsDownWithThermalStatus() {
+        assertEquals(0, status(RecordingProfilePolicy.THERMAL_NONE));
+        assertEquals(0, status(RecordingProfilePolicy.THERMAL_LIGHT));
+        assertEquals(1, status(RecordingProfilePolicy.THERMAL_MODERATE));
+        assertEquals(2, status(RecordingProfilePolicy.THERMAL_SEVERE));
+        assertEquals(policy.levels() - 1, status(RecordingProfilePolicy.THERMAL_CRITICAL));
+        assertEquals(policy.levels() - 1, status(RecordingProfilePolicy.THERMAL_SHUTDOWN));
+    }
+
+    private int status(int thermalStatus) {
+        policy.onThermalStatus(thermalStatus);
+        return policy.select();
+    }
+
+    @Test
+    public void takesTheLowerOfStorageAndThermalLevel() {
+        policy.onStorageThroughput(4000000);
+        assertEquals(1, policy.select());
+        policy.onThermalStatus(RecordingProfilePolicy.THERMAL_SEVERE);
+        assertEquals(2, policy.select());
+        policy.onThermalStatus(RecordingProfilePolicy.THERMAL_NONE);
+        policy.onStorageThroughput(1500000);
+        assertEquals(4, policy.select());
+    }
+
+    @Test
+    public void heatingDeviceStepsDownAtSegmentBoundaries() {
+        int[] levels = replay(
+                RecordingProfilePolicy.THERMAL_NONE,
+                RecordingProfilePolicy.THERMAL_LIGHT,
+                RecordingProfilePolicy.THERMAL_MODERATE,
+                RecordingProfilePolicy.THERMAL_MODERATE,
+                RecordingProfilePolicy.THERMAL_SEVERE,
+                RecordingProfilePolicy.THERMAL_CRITICAL);
+        assertArrayEquals(new int[]{0, 0, 1, 1, 2, 4}, levels);
+    }
+
+    @Test
+    public void neverStepsUpWithinARecording() {
+        int[] levels = replay(
+                RecordingProfilePolicy.THERMAL_SEVERE,
+                RecordingProfilePolicy.THERMAL_MODERATE,
+                RecordingProfilePolicy.THERMAL_MODERATE,
+                RecordingProfilePolicy.THERMAL_SEVERE,
+                RecordingProfilePolicy.THERMAL_NONE);
+        assertArrayEquals(new int[]{2, 2, 2, 2, 2}, levels);
+        // the next recording starts fresh
+        assertEquals(0, policy.select());
+    }
+
+    @Test
+    public void slowerStorageStepsDownAtTheNextBoundary() {
+        policy.onStorageThroughput(8000000);
+        int level = policy.select();
+        assertEquals(0, level);
+        // probe of a newly picked SD card tree
+        policy.onStorageThroughput(2000000);
+        level = policy.atSegmentBoundary(level);
+        assertEquals(3, level);
+        policy.onStorageThroughput(8000000);
+        assertEquals(3, policy.atSegmentBoundary(level));
+    }
+}
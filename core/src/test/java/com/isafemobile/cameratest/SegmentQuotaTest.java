@@ -0,0 +1,60 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentQuotaTest {
+
+    private static SegmentQuota.Entry entry(String name, long size, long lastModified) {
+        return new SegmentQuota.Entry(name, name, size, lastModified);
+    }
+
+    @Test
+    public void recognizesSegmentNames() {
+        assertTrue(SegmentQuota.isSegmentName(SegmentQuota.segmentName("20240402_083927", 12)));
+        assertFalse(SegmentQuota.isSegmentName("VID_20240402_083927.mp4"));
+        assertFalse(SegmentQuota.isSegmentName("IMG_20240402_083927_1.jpg"));
+        assertFalse(SegmentQuota.isSegmentName(null));
+    }
+
+    @Test
+    public void nothingToDeleteWithinBudget() {
+        List<SegmentQuota.Entry> files = Arrays.asList(
+                entry("VID_20240402_083927_0.mp4", 100, 1),
+                entry("VID_20240402_083927_1.mp4", 100, 2));
+        assertTrue(SegmentQuota.selectForDeletion(files, 200, Collections.<String>emptySet()).isEmpty());
+    }
+
+    @Test
+    public void deletesOldestSegmentsFirst() {
+        List<SegmentQuota.Entry> files = Arrays.asList(
+                entry("VID_20240402_083927_10.mp4", 100, 30),
+                entry("VID_20240402_083927_2.mp4", 100, 10),
+                entry("VID_20240402_083927_9.mp4", 100, 20),
+                entry("VID_20240402_083927_11.mp4", 100, 40));
+
+        List<SegmentQuota.Entry> delete = SegmentQuota.selectForDeletion(files, 250, Collections.<String>emptySet());
+        assertEquals(2, delete.size());
+        assertEquals("VID_20240402_083927_2.mp4", delete.get(0).name);
+        assertEquals("VID_20240402_083927_9.mp4", delete.get(1).name);
+    }
+
+    @Test
+    public void neverDeletesKeptOrNonSegmentFiles() {
+        List<SegmentQuota.Entry> files = Arrays.asList(
+                entry("VID_20240402_083927.mp4", 1000, 1),
+                entry("VID_20240402_083927_0.mp4", 100, 2),
+                entry("VID_20240402_083927_1.mp4", 100, 3));
+
+        List<SegmentQuota.Entry> delete = SegmentQuota.selectForDeletion(files, 0,
+                new HashSet<>(Collections.singletonList("VID_20240402_083927_1.mp4")));
+        assertEquals(1, delete.size());
+        assertEquals("VID_20240402_083927_0.mp4", delete.get(0).name);
+    }
+}
@@ -0,0 +1,70 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SizeSelectorTest {
+
+    private static final Size FHD = new Size(1920, 1080);
+    private static final Size HD = new Size(1280, 720);
+    private static final Size VGA = new Size(640, 480);
+
+    private static final List<Size> PREVIEW_SIZES = Arrays.asList(new Size(2220, 1080), FHD, new Size(1440, 1080), HD, VGA);
+
+    @Test
+    public void prefersPreviewEqualToProfileSize() {
+        SizeSelector selector = new SizeSelector(PREVIEW_SIZES, null, Arrays.asList(FHD, HD), FHD, 30);
+        assertEquals(FHD, selector.videoSize());
+        // a portrait 18.5:9 screen at rotation 90 would fit 2220x1080 better on its own
+        assertEquals(new SizeSelection(FHD, FHD), selector.select(1080, 2220, 90));
+    }
+
+    @Test
+    public void swapsSurfaceSidesWhenRotated() {
+        // a square video size scores both sizes the same, so the surface decides
+        List<Size> sizes = Arrays.asList(new Size(1080, 1920), new Size(1920, 1080));
+        Size video = new Size(1440, 1440);
+        SizeSelector selector = new SizeSelector(sizes, null, Collections.singletonList(video), video, 30);
+        assertEquals(new Size(1920, 1080), selector.select(1080, 1920, 90).preview);
+        assertEquals(new Size(1080, 1920), selector.select(1080, 1920, 0).preview);
+    }
+
+    @Test
+    public void memoizesPerSurfaceAndRotation() {
+        SizeSelector selector = new SizeSelector(PREVIEW_SIZES, null, Collections.<Size>emptyList(), FHD, 30);
+        SizeSelection first = selector.select(1080, 2220, 90);
+        assertSame(first, selector.select(1080, 2220, 90));
+        assertEquals(1, selector.memoSize());
+        selector.select(1080, 2220, 270);
+        selector.select(2220, 1080, 0);
+        assertEquals(3, selector.memoSize());
+    }
+
+    @Test
+    public void penalizesSizesBelowTargetFrameRate() {
+        List<Size> sizes = Arrays.asList(new Size(1280, 720), new Size(1280, 960));
+        Size video = new Size(3840, 2160);
+        SizeSelector unknown = new SizeSelector(sizes, null, Collections.singletonList(video), video, 30);
+        assertEquals(new Size(1280, 720), unknown.select(1280, 720, 0).preview);
+        SizeSelector slow = new SizeSelector(sizes, new int[]{15, 30}, Collections.singletonList(video), video, 30);
+        assertEquals(new Size(1280, 960), slow.select(1280, 720, 0).preview);
+    }
+
+    @Test
+    public void unsupportedProfileSizeFallsBackToClosestVideoSize() {
+        SizeSelector selector = new SizeSelector(PREVIEW_SIZES, null, Arrays.asList(VGA, HD, new Size(3840, 2160)),
+                FHD, 30);
+        assertEquals(HD, selector.videoSize());
+        assertEquals(HD, selector.select(1080, 2220, 90).preview);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPreviewSizes() {
+        new SizeSelector(Collections.<Size>emptyList(), null, Collections.<Size>emptyList(), FHD, 30);
+    }
+}
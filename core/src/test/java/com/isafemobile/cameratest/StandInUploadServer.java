@@ -0,0 +1,169 @@
+package com.isafemobile.cameratest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local server speaking the {@link ChunkedUploader} protocol. Keeps only complete chunks,
+ * like a real server would, and can cut a request off mid-body to simulate a dropped
+ * connection.
+ */
+class StandInUploadServer {
+
+    private final HttpServer mServer;
+    private final Map<String, ByteArrayOutputStream> mUploads = new HashMap<>();
+    private final Map<String, String> mNames = new HashMap<>();
+    private final List<Long> mPutOffsets = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger mConcurrentPuts = new AtomicInteger();
+    private final AtomicInteger mMaxConcurrentPuts = new AtomicInteger();
+    // offset of the PUT to cut off, -1 for none
+    private volatile long mCutOffset = -1;
+    private volatile int mCutAfterBytes;
+    private volatile long mPutDelayMs = 0;
+
+    StandInUploadServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/uploads/", this::handle);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    String endpoint() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/uploads";
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    /**
+     * Drops the connection of the next PUT at {@code offset} once this many body bytes arrived.
+     */
+    void cutPut(long offset, int afterBytes) {
+        mCutAfterBytes = afterBytes;
+        mCutOffset = offset;
+    }
+
+    void setPutDelayMs(long delayMs) {
+        mPutDelayMs = delayMs;
+    }
+
+    synchronized void preload(String id, byte[] data) {
+        upload(id).write(data, 0, data.length);
+    }
+
+    synchronized byte[] received(String id) {
+        ByteArrayOutputStream upload = mUploads.get(id);
+        return upload != null ? upload.toByteArray() : null;
+    }
+
+    synchronized String name(String id) {
+        return mNames.get(id);
+    }
+
+    synchronized int uploads() {
+        return mUploads.size();
+    }
+
+    List<Long> putOffsets() {
+        synchronized (mPutOffsets) {
+            return new ArrayList<>(mPutOffsets);
+        }
+    }
+
+    int maxConcurrentPuts() {
+        return mMaxConcurrentPuts.get();
+    }
+
+    private ByteArrayOutputStream upload(String id) {
+        ByteArrayOutputStream upload = mUploads.get(id);
+        if (upload == null) {
+            upload = new ByteArrayOutputStream();
+            mUploads.put(id, upload);
+        }
+        return upload;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String id = exchange.getRequestURI().getPath().substring("/uploads/".length());
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            // the JDK server drops the connection after a HEAD, the client must not reuse it
+            exchange.getResponseHeaders().add("Connection", "close");
+            byte[] received = received(id);
+            if (received == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.getResponseHeaders().add(ChunkedUploader.HEADER_OFFSET, Integer.toString(received.length));
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+            return;
+        }
+        int concurrent = mConcurrentPuts.incrementAndGet();
+        mMaxConcurrentPuts.accumulateAndGet(concurrent, Math::max);
+        try {
+            put(id, exchange);
+        } finally {
+            mConcurrentPuts.decrementAndGet();
+        }
+    }
+
+    private void put(String id, HttpExchange exchange) throws IOException {
+        long offset = Long.parseLong(exchange.getRequestHeaders().getFirst(ChunkedUploader.HEADER_OFFSET));
+        mPutOffsets.add(offset);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int cutAfter = -1;
+        if (offset == mCutOffset) {
+            mCutOffset = -1;
+            cutAfter = mCutAfterBytes;
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                chunk.write(buffer, 0, n);
+                if (cutAfter >= 0 && chunk.size() >= cutAfter) {
+                    // the partial chunk is discarded
+                    exchange.close();
+                    throw new IOException("connection cut");
+                }
+            }
+        }
+        if (mPutDelayMs > 0) {
+            try {
+                Thread.sleep(mPutDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int status;
+        long current;
+        synchronized (this) {
+            ByteArrayOutputStream upload = upload(id);
+            mNames.put(id, exchange.getRequestHeaders().getFirst(ChunkedUploader.HEADER_NAME));
+            if (offset == upload.size()) {
+                chunk.writeTo(upload);
+                status = 200;
+            } else {
+                status = 409;
+            }
+            current = upload.size();
+        }
+        exchange.getResponseHeaders().add(ChunkedUploader.HEADER_OFFSET, Long.toString(current));
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StorageBudgetTest {
+
+    private static final long MB = 1024 * 1024;
+    // 20 Mbps video and 128 kbps audio
+    private static final long BYTES_PER_SEC = (20000000 + 128000) / 8;
+
+    @Test
+    public void predictsTheRemainingTimeAboveTheReserve() {
+        long free = StorageBudget.RESERVE_BYTES + BYTES_PER_SEC * 600;
+        assertEquals(600 * 1000, StorageBudget.remainingMs(free, BYTES_PER_SEC));
+        assertEquals(0, StorageBudget.remainingMs(StorageBudget.RESERVE_BYTES / 2, BYTES_PER_SEC));
+        assertEquals(Long.MAX_VALUE, StorageBudget.remainingMs(StorageBudget.UNKNOWN, BYTES_PER_SEC));
+    }
+
+    @Test
+    public void refusesRecordingsThatStopRightAway() {
+        long minimum = StorageBudget.RESERVE_BYTES + BYTES_PER_SEC * StorageBudget.MIN_RECORDING_MS / 1000;
+        assertTrue(StorageBudget.canRecord(minimum, BYTES_PER_SEC));
+        assertFalse(StorageBudget.canRecord(minimum - BYTES_PER_SEC, BYTES_PER_SEC));
+        assertTrue(StorageBudget.canRecord(StorageBudget.UNKNOWN, BYTES_PER_SEC));
+    }
+
+    @Test
+    public void capsTheFileAtTheFreeSpace() {
+        long free = StorageBudget.RESERVE_BYTES + 500 * MB;
+        assertEquals(500 * MB, StorageBudget.maxFileSize(free, 0));
+        assertEquals(100 * MB, StorageBudget.maxFileSize(free, 100 * MB));
+        assertEquals(500 * MB, StorageBudget.maxFileSize(free, 4096 * MB));
+        // still limited when the volume is already full
+        assertEquals(1, StorageBudget.maxFileSize(MB, 0));
+        assertEquals(100 * MB, StorageBudget.maxFileSize(StorageBudget.UNKNOWN, 100 * MB));
+        assertEquals(0, StorageBudget.maxFileSize(StorageBudget.UNKNOWN, 0));
+    }
+
+    @Test
+    public void preparedLimitGoesStaleOnceItReachesIntoTheReserve() {
+        long free = StorageBudget.RESERVE_BYTES + 500 * MB;
+        long prepared = StorageBudget.maxFileSize(free, 0);
+        // a few captures later
+        assertFalse(StorageBudget.exceedsFreeSpace(prepared, free - 20 * MB));
+        assertTrue(StorageBudget.exceedsFreeSpace(prepared, free - StorageBudget.RESERVE_BYTES));
+        // prepared before the space was known
+        assertTrue(StorageBudget.exceedsFreeSpace(0, free));
+        assertFalse(StorageBudget.exceedsFreeSpace(0, StorageBudget.UNKNOWN));
+    }
+
+    @Test
+    public void segmentIsBoundedByDurationOrSize() {
+        assertEquals(BYTES_PER_SEC * 300, StorageBudget.segmentBytes(BYTES_PER_SEC, 300 * 1000, 0));
+        assertEquals(100 * MB, StorageBudget.segmentBytes(BYTES_PER_SEC, 300 * 1000, 100 * MB));
+        assertEquals(100 * MB, StorageBudget.segmentBytes(BYTES_PER_SEC, 0, 100 * MB));
+        assertEquals(0, StorageBudget.segmentBytes(BYTES_PER_SEC, 0, 0));
+    }
+
+    @Test
+    public void durationSegmentsAreCutBySize() {
+        // the recorder stops at a duration limit, only a size limit rolls over
+        long limit = StorageBudget.recorderMaxFileSize(StorageBudget.UNKNOWN, BYTES_PER_SEC, 300 * 1000, 0);
+        assertEquals(BYTES_PER_SEC * 300, limit);
+        long free = StorageBudget.RESERVE_BYTES + 10000 * MB;
+        assertEquals(BYTES_PER_SEC * 300, StorageBudget.recorderMaxFileSize(free, BYTES_PER_SEC, 300 * 1000, 0));
+        assertEquals(100 * MB, StorageBudget.recorderMaxFileSize(free, BYTES_PER_SEC, 300 * 1000, 100 * MB));
+        assertEquals(0, StorageBudget.recorderMaxFileSize(StorageBudget.UNKNOWN, BYTES_PER_SEC, 0, 0));
+    }
+
+    @Test
+    public void clipEndsAtTheRoomItStartedWithOrInTheReserve() {
+        long free = StorageBudget.RESERVE_BYTES + 100 * MB;
+        long clipMaxBytes = StorageBudget.maxFileSize(free, 0);
+        assertFalse(StorageBudget.clipMustEnd(100 * MB - 1, clipMaxBytes, free));
+        assertTrue(StorageBudget.clipMustEnd(100 * MB, clipMaxBytes, free));
+        // stills written meanwhile used up the space
+        assertTrue(StorageBudget.clipMustEnd(MB, clipMaxBytes, StorageBudget.RESERVE_BYTES / 2 - 1));
+        assertFalse(StorageBudget.clipMustEnd(100 * MB, 0, StorageBudget.UNKNOWN));
+    }
+
+    @Test
+    public void rollsOverOnlyIfTwoSegmentsFit() {
+        long segment = 100 * MB;
+        assertTrue(StorageBudget.fitsNextSegment(StorageBudget.RESERVE_BYTES + 2 * segment, segment));
+        assertFalse(StorageBudget.fitsNextSegment(StorageBudget.RESERVE_BYTES + 2 * segment - 1, segment));
+        assertTrue(StorageBudget.fitsNextSegment(StorageBudget.UNKNOWN, segment));
+    }
+}
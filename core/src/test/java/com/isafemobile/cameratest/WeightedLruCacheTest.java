@@ -0,0 +1,71 @@
+package com.isafemobile.cameratest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WeightedLruCacheTest {
+
+    // values weigh their length, like the bytes of a bitmap
+    private final WeightedLruCache<String, byte[]> cache = new WeightedLruCache<>(100, value -> value.length);
+
+    @Test
+    public void evictsLeastRecentlyUsedOnceOverWeight() {
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        // a is now more recent than b
+        assertNotNull(cache.get("a"));
+        cache.put("c", new byte[40]);
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(80, cache.weight());
+    }
+
+    @Test
+    public void evictsAsManyAsNeeded() {
+        for (int i = 0; i < 10; i++) {
+            cache.put("small" + i, new byte[10]);
+        }
+        cache.put("large", new byte[75]);
+
+        assertEquals(3, cache.size());
+        assertEquals(95, cache.weight());
+        assertNotNull(cache.get("small9"));
+        assertNull(cache.get("small7"));
+    }
+
+    @Test
+    public void replacingAValueUpdatesTheWeight() {
+        cache.put("a", new byte[60]);
+        cache.put("a", new byte[20]);
+        cache.put("b", new byte[70]);
+
+        assertEquals(90, cache.weight());
+        assertEquals(20, cache.get("a").length);
+    }
+
+    @Test
+    public void doesNotKeepValuesHeavierThanTheCache() {
+        cache.put("a", new byte[50]);
+        cache.put("huge", new byte[101]);
+
+        assertNull(cache.get("huge"));
+        assertNotNull(cache.get("a"));
+        assertEquals(50, cache.weight());
+    }
+
+    @Test
+    public void removeAndClearReleaseWeight() {
+        cache.put("a", new byte[30]);
+        cache.put("b", new byte[30]);
+        assertEquals(30, cache.remove("a").length);
+        assertNull(cache.remove("a"));
+        assertEquals(30, cache.weight());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+}